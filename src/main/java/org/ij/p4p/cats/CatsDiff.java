@@ -0,0 +1,58 @@
+package org.ij.p4p.cats;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.ij.p4p.util.Receiver;
+import org.ij.p4p.util.SqDiff;
+import org.ij.p4p.util.SqLite;
+import org.ij.p4p.util.SqProto;
+import org.ij.p4p.util.SqRecordDiff;
+
+import com.google.common.collect.Maps;
+import com.google.protobuf.TextFormat;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares two CATS databases, such as the imports of two monthly extracts, and
+ * prints the records that were added, removed or changed.
+ */
+public class CatsDiff {
+
+  public static void main(String[] args) throws Exception {
+    assertThat(args.length).isEqualTo(2);
+    SqProto<CatsSnapshot> before = open(new File(args[0]));
+    SqProto<CatsSnapshot> after = open(new File(args[1]));
+    final Map<String, AtomicInteger> diffCounts = Maps.newTreeMap();
+    SqDiff.create(before, after, CatsParser.TABLE_KEYS).diff(new Receiver<SqRecordDiff>() {
+        public void receive(SqRecordDiff diff) {
+          System.out.println(TextFormat.shortDebugString(diff));
+          String countKey = diff.getTableName() + " " + diff.getType();
+          AtomicInteger diffCount = diffCounts.get(countKey);
+          if (diffCount == null) {
+            diffCount = new AtomicInteger();
+            diffCounts.put(countKey, diffCount);
+          }
+          diffCount.incrementAndGet();
+        }
+      });
+    before.sqLite.connection.close();
+    after.sqLite.connection.close();
+    System.err.println("Diff complete.");
+    for (Map.Entry<String, AtomicInteger> e : diffCounts.entrySet()) {
+      System.err.println(String.format("%d %s", e.getValue().get(), e.getKey()));
+    }
+  }
+
+  /**
+   * Opens an existing CATS database.
+   */
+  private static SqProto<CatsSnapshot> open(File databaseFile) throws Exception {
+    assertThat(databaseFile.isFile()).isTrue();
+    return SqProto.create(
+        SqLite.connect(databaseFile.getPath()),
+        CatsSnapshot.getDefaultInstance());
+  }
+}
@@ -0,0 +1,30 @@
+package org.ij.p4p.cats;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.ij.p4p.util.ArrowExporter;
+import org.ij.p4p.util.SqLite;
+import org.ij.p4p.util.SqProto;
+
+import java.io.File;
+
+/**
+ * Exports the tables in a CATS database to Arrow IPC files (asset.arrow and
+ * equitable_sharing.arrow), which R and Python can read without parsing. The code
+ * fields are dictionary encoded, whether or not the database encodes them.
+ */
+public class CatsExport {
+
+  public static void main(String[] args) throws Exception {
+    assertThat(args.length).isEqualTo(2);
+    File databaseFile = new File(args[0]);
+    assertThat(databaseFile.isFile()).isTrue();
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connect(databaseFile.getPath()),
+        CatsSnapshot.getDefaultInstance());
+    ArrowExporter.exportTables(
+        sqProto, new File(args[1]), CatsParser.CODE_FIELD_DESCRIPTORS);
+    sqProto.sqLite.connection.close();
+    System.err.println("Export complete.");
+  }
+}
@@ -1,19 +1,42 @@
 package org.ij.p4p.cats;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.truth.Truth.assertThat;
 
+import org.ij.p4p.util.BatchReceiver;
+import org.ij.p4p.util.BatchSizer;
+import org.ij.p4p.util.ColumnProfiler;
+import org.ij.p4p.util.ColumnStore;
 import org.ij.p4p.util.CsvToPb;
+import org.ij.p4p.util.InferredSchema;
+import org.ij.p4p.util.LookupCache;
+import org.ij.p4p.util.PbShards;
 import org.ij.p4p.util.Receiver;
+import org.ij.p4p.util.SqCatalog;
 import org.ij.p4p.util.SqLite;
+import org.ij.p4p.util.SqMetadata;
 import org.ij.p4p.util.SqProto;
+import org.ij.p4p.util.SqRollup;
+import org.ij.p4p.util.SqRollupColumn;
+import org.ij.p4p.util.SqRollups;
+import org.ij.p4p.util.TableChecksums;
+import org.ij.p4p.util.TextParsers;
+import org.ij.p4p.util.Tracer;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
 import com.google.protobuf.TextFormat;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import org.apache.commons.csv.CSVFormat;
@@ -33,6 +56,95 @@ import java.util.zip.ZipInputStream;
  */
 public class CatsParser {
   private static final Set<String> BOOL_VALUES = ImmutableSet.of("Y", "N");
+  private static final int SHARD_COUNT = 8;
+  private static final String DESCRIPTION_SUFFIX = "_desc";
+
+  /**
+   * Names of the fields that identify a record in each table of the CatsSnapshot.
+   */
+  public static final ImmutableMap<String, ImmutableList<String>> TABLE_KEYS = ImmutableMap.of(
+      "asset", ImmutableList.of("asset_id"),
+      "equitable_sharing", ImmutableList.of("asset_id", "other_agency_ncic_code"));
+
+  /**
+   * Parent table of each child table in the CatsSnapshot, joined on the parent's key.
+   */
+  public static final ImmutableMap<String, String> PARENT_TABLES = ImmutableMap.of(
+      "equitable_sharing", "asset");
+
+  /**
+   * Most keys that don't identify a single stored record to report before refusing to
+   * migrate.
+   */
+  private static final int MAX_AMBIGUOUS_KEYS = 1000;
+
+  /**
+   * Names of the string fields in each table of the CatsSnapshot that hold codes with
+   * few distinct values. With encode_codes, these are interned per field during
+   * conversion, and dictionary encoded in the database.
+   */
+  public static final ImmutableMap<String, ImmutableList<String>> CODE_FIELDS = ImmutableMap.of(
+      "asset", ImmutableList.of(
+          "special_handling_code1", "special_handling_code2", "special_handling_code3",
+          "asset_id_type", "asset_subtype_code", "asset_type", "case_type_code",
+          "country_code", "fire_type", "forfeiture_type", "forfeiture_type_prev1",
+          "forfeiture_type_prev2", "government_private_code", "processing_district",
+          "seizing_agency_code", "seizure_district", "seizure_method_code", "seizure_state"),
+      "equitable_sharing", ImmutableList.of(
+          "legal_counsel_state", "sharing_execution_status_code", "sharing_request_type",
+          "sharing_type", "funds_location_code"));
+  static final ImmutableSet<FieldDescriptor> CODE_FIELD_DESCRIPTORS =
+      getFields(CatsSnapshot.getDescriptor(), CODE_FIELDS);
+  private static final ImmutableListMultimap<Descriptor, Decoding> DECODINGS =
+      getDecodings(CatsSnapshot.getDescriptor(), CatsRawSnapshot.getDescriptor());
+  private static final String CENTS_SUFFIX = "_cents";
+  private static final ImmutableListMultimap<Descriptor, FixedPointAmount> FIXED_POINT_AMOUNTS =
+      getFixedPointAmounts(CatsSnapshot.getDescriptor(), CatsRawSnapshot.getDescriptor());
+  private static final ImmutableListMultimap<Descriptor, TypedDate> TYPED_DATES =
+      getTypedDates(CatsSnapshot.getDescriptor());
+
+  /**
+   * Year fields that are indexed when importing with typed dates.
+   */
+  public static final ImmutableMap<String, ImmutableList<String>> YEAR_INDEXES = ImmutableMap.of(
+      "asset", ImmutableList.of("seizure_date_year"),
+      "equitable_sharing", ImmutableList.of("sharing_execution_date_year"));
+
+  /**
+   * Summary tables of the sharing amounts, for the reports in the README, which are
+   * filled in while importing with the fill_rollups option.
+   */
+  public static final ImmutableList<SqRollup> ROLLUPS = ImmutableList.of(
+      SqRollup.newBuilder()
+          .setRollupName("sharing_by_year")
+          .setTableName("equitable_sharing")
+          .setParentTableName("asset")
+          .setParentKey("asset_id")
+          .setWhere("a.sharing_execution_amount > 0")
+          .addGroupBy(rollupColumn("yr", "substr(a.sharing_execution_date, 1, 4)"))
+          .addSum(rollupColumn("avas", "b.asset_value_at_seizure"))
+          .addSum(rollupColumn("av", "b.asset_value"))
+          .addSum(rollupColumn("iafs", "a.income_available_for_sharing"))
+          .addSum(rollupColumn("ptsa",
+              "a.income_available_for_sharing * a.percent_to_share / 100.0"))
+          .addSum(rollupColumn("sea", "a.sharing_execution_amount"))
+          .build(),
+      SqRollup.newBuilder()
+          .setRollupName("sharing_by_year_and_state")
+          .setTableName("equitable_sharing")
+          .setParentTableName("asset")
+          .setParentKey("asset_id")
+          .setWhere("a.sharing_execution_amount > 0")
+          .addGroupBy(rollupColumn("yr", "substr(a.sharing_execution_date, 1, 4)"))
+          .addGroupBy(rollupColumn("st", "b.seizure_state"))
+          .addSum(rollupColumn("sea", "a.sharing_execution_amount"))
+          .build());
+
+  private static SqRollupColumn rollupColumn(String columnName, String expression) {
+    return SqRollupColumn.newBuilder()
+        .setColumnName(columnName)
+        .setExpression(expression).build();
+  }
 
   /**
    * Imports data from the Zip into a new SQLite database. Returns all of the parse
@@ -56,7 +168,286 @@ public class CatsParser {
   public static void importIntoDatabase(
       ZipInputStream zipInputStream, SqProto<CatsSnapshot> sqProto,
       Receiver<ParseIssue> issues) throws IOException, SQLException {
+    importIntoDatabase(zipInputStream, sqProto, ImportOptions.getDefaultInstance(), issues);
+  }
+
+  /**
+   * Imports data from the Zip into a new SQLite database, with options.
+   */
+  public static void importIntoDatabase(
+      ZipInputStream zipInputStream, SqProto<CatsSnapshot> sqProto,
+      ImportOptions options, Receiver<ParseIssue> issues) throws IOException, SQLException {
+    importIntoDatabase(zipInputStream, sqProto, options, null, issues);
+  }
+
+  /**
+   * Imports data from the Zip into a new SQLite database, with options. The lookup
+   * tables are required for the add_descriptions option, and can be read from a first
+   * pass over the Zip with readLookupTables().
+   */
+  public static void importIntoDatabase(
+      ZipInputStream zipInputStream, SqProto<CatsSnapshot> sqProto, ImportOptions options,
+      LookupCache lookups, Receiver<ParseIssue> issues) throws IOException, SQLException {
+    checkArgument(!options.getAddDescriptions() || lookups != null,
+        "Adding descriptions requires the lookup tables.");
+    if (!options.getAddDescriptions()) {
+      lookups = null;
+    }
+    // Check the filters before dropping any tables.
+    RawRecordFilter filter = RawRecordFilter.isFiltering(options)
+        ? RawRecordFilter.create(options, CatsRawSnapshot.getDescriptor()) : null;
+    if (options.getEncodeCodes()) {
+      sqProto = SqProto.create(
+          sqProto.sqLite, CatsSnapshot.getDefaultInstance(), CODE_FIELD_DESCRIPTORS);
+    }
+    if (options.getMigrate()) {
+      migrateDatabase(zipInputStream, sqProto, options, lookups, filter, issues);
+      return;
+    }
+    if (options.getShadowReload()) {
+      sqProto.sqLite.enableWal();
+      sqProto = sqProto.shadow();
+    }
     sqProto.dropAndCreateTables();
+    Receiver<CatsSnapshot> inserts = receiveInserts(sqProto, options.getShadowReload());
+    if (options.getFillRollups()) {
+      // The rollups aren't swapped in with shadow tables.
+      checkArgument(!options.getShadowReload(), "Rollups can't be filled in a shadow reload.");
+      SqRollups<CatsSnapshot> rollups = new SqRollups<CatsSnapshot>(sqProto, ROLLUPS, inserts);
+      rollups.dropAndCreateTables();
+      inserts = rollups;
+    }
+    IntegrityChecker<CatsSnapshot> checker = null;
+    if (options.getCheckIntegrity()) {
+      checker = new IntegrityChecker<CatsSnapshot>(
+          CatsSnapshot.getDescriptor(), TABLE_KEYS, PARENT_TABLES, inserts, issues);
+      inserts = checker;
+    }
+    ColumnProfiler<CatsSnapshot> profiler = null;
+    if (options.getCollectStats()) {
+      profiler = new ColumnProfiler<CatsSnapshot>(CatsSnapshot.getDescriptor(), inserts);
+      inserts = profiler;
+    }
+    TableChecksums<CatsSnapshot> checksums = null;
+    if (options.getComputeChecksums()) {
+      checksums = new TableChecksums<CatsSnapshot>(CatsSnapshot.getDescriptor(), inserts);
+      inserts = checksums;
+    }
+    try {
+      CsvToPb.parseTablesFromZip(
+          zipInputStream,
+          CSVFormat.EXCEL,
+          CatsRawSnapshot.getDefaultInstance(),
+          newBatchSizer(options),
+          receiveTableRecords(issues),
+          receiveConverted(inserts, options, lookups, filter, issues));
+    } catch (UncheckedExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), SQLException.class);
+      Throwables.propagate(e.getCause());
+    }
+    if (checker != null) {
+      checker.finish();
+    }
+    if (options.getTypedDates()) {
+      for (Map.Entry<String, ImmutableList<String>> e : YEAR_INDEXES.entrySet()) {
+        FieldDescriptor table = CatsSnapshot.getDescriptor().findFieldByName(e.getKey());
+        for (String fieldName : e.getValue()) {
+          sqProto.createIndex(table, fieldName);
+        }
+      }
+    }
+    if (options.getShadowReload()) {
+      sqProto.sqLite.commit();
+      sqProto.replaceLiveTables();
+    }
+    if (profiler != null || checksums != null) {
+      SqMetadata.Builder metadata = SqMetadata.newBuilder();
+      if (profiler != null) {
+        metadata.mergeFrom(profiler.getMetadata());
+      }
+      if (checksums != null) {
+        metadata.addAllTableChecksums(checksums.getChecksums());
+      }
+      SqProto.writeMetadata(sqProto.sqLite, metadata.build());
+    }
+    sqProto.sqLite.bumpGeneration();
+    sqProto.sqLite.commit();
+  }
+
+  /**
+   * Migrates the tables of an earlier import to the CatsSnapshot schema, then fills in
+   * the added columns of existing records by their TABLE_KEYS, and inserts the records
+   * of added tables, in one pass over the Zip. Nothing is written if the schema hasn't
+   * changed. With fill_rollups, the records of added tables are added to the rollups,
+   * and rollups over tables with added columns are rebuilt, since they may sum them.
+   *
+   * The keys must match one record each. Keys that match several stored records or
+   * several records in the Zip, and records without keys, are reported as parse issues,
+   * and the migration is rolled back.
+   */
+  private static void migrateDatabase(
+      ZipInputStream zipInputStream, final SqProto<CatsSnapshot> sqProto,
+      ImportOptions options, LookupCache lookups, RawRecordFilter filter,
+      final Receiver<ParseIssue> issues) throws IOException, SQLException {
+    checkArgument(!options.getShadowReload() && !options.getCheckIntegrity()
+        && !options.getCollectStats() && !options.getComputeChecksums(),
+        "Migrating only supports the options that convert records.");
+    final SqProto.Migration migration = sqProto.migrateTables();
+    boolean rebuildRollups = false;
+    if (options.getFillRollups()) {
+      for (SqRollup rollup : ROLLUPS) {
+        rebuildRollups |= !sqProto.sqLite.exists(rollup.getRollupName());
+        for (FieldDescriptor table : migration.addedFields.keySet()) {
+          rebuildRollups |= table.getName().equals(rollup.getTableName())
+              || table.getName().equals(rollup.getParentTableName());
+        }
+      }
+    }
+    if (migration.isEmpty() && !rebuildRollups) {
+      return;
+    }
+    Receiver<CatsSnapshot> inserts = new Receiver<CatsSnapshot>() {
+        public void receive(CatsSnapshot created) {
+          try {
+            sqProto.insertSnapshot(created);
+          } catch (SQLException e) {
+            throw new UncheckedExecutionException(e);
+          }
+        }
+      };
+    if (options.getFillRollups() && !rebuildRollups) {
+      inserts = new SqRollups<CatsSnapshot>(sqProto, ROLLUPS, inserts);
+    }
+    final Receiver<CatsSnapshot> createdInserts = inserts;
+    final AtomicInteger keyIssueCount = new AtomicInteger();
+    final Receiver<ParseIssue> keyIssues = new Receiver<ParseIssue>() {
+        public void receive(ParseIssue issue) {
+          keyIssueCount.incrementAndGet();
+          issues.receive(issue);
+        }
+      };
+    Map<String, ImmutableList<String>> migratedKeys = Maps.newHashMap();
+    final Map<FieldDescriptor, List<FieldDescriptor>> keyFields = Maps.newHashMap();
+    for (FieldDescriptor table : migration.addedFields.keySet()) {
+      checkArgument(TABLE_KEYS.containsKey(table.getName()),
+          "No key for filling in the columns of %s", table.getName());
+      migratedKeys.put(table.getName(), TABLE_KEYS.get(table.getName()));
+      List<FieldDescriptor> fields = Lists.newArrayList();
+      for (String fieldName : TABLE_KEYS.get(table.getName())) {
+        fields.add(table.getMessageType().findFieldByName(fieldName));
+      }
+      keyFields.put(table, fields);
+      // Each update looks up the records by key.
+      sqProto.createIndex(table, TABLE_KEYS.get(table.getName()).get(0));
+      for (List<String> key
+          : sqProto.findAmbiguousKeys(table, fields, MAX_AMBIGUOUS_KEYS)) {
+        keyIssues.receive(newKeyIssue(table, fields, key));
+      }
+    }
+    if (keyIssueCount.get() > 0) {
+      refuseMigration(sqProto, keyIssueCount.get());
+    }
+    Receiver<CatsSnapshot> backfill = new Receiver<CatsSnapshot>() {
+        public void receive(CatsSnapshot converted) {
+          try {
+            CatsSnapshot.Builder created = CatsSnapshot.newBuilder();
+            for (FieldDescriptor table : migration.createdTables) {
+              created.setField(table, converted.getField(table));
+            }
+            createdInserts.receive(created.build());
+            for (FieldDescriptor table : migration.addedFields.keySet()) {
+              List<? extends MessageOrBuilder> records =
+                  (List<? extends MessageOrBuilder>) converted.getField(table);
+              for (MessageOrBuilder record : records) {
+                for (FieldDescriptor field : keyFields.get(table)) {
+                  if (!record.hasField(field)) {
+                    keyIssues.receive(ParseIssue.newBuilder()
+                        .setType(ParseIssue.Type.MISSING_KEY)
+                        .setTableId(table.getNumber())
+                        .setFieldId(field.getNumber()).build());
+                    break;
+                  }
+                }
+              }
+              sqProto.updateFields(table, keyFields.get(table),
+                  migration.addedFields.get(table), records);
+            }
+          } catch (SQLException e) {
+            throw new UncheckedExecutionException(e);
+          }
+        }
+      };
+    if (!migration.isEmpty()) {
+      try {
+        CsvToPb.parseTablesFromZip(
+            zipInputStream,
+            CSVFormat.EXCEL,
+            CatsRawSnapshot.getDefaultInstance(),
+            newBatchSizer(options),
+            receiveTableRecords(issues),
+            receiveConverted(new IntegrityChecker<CatsSnapshot>(
+                CatsSnapshot.getDescriptor(), migratedKeys, ImmutableMap.<String, String>of(),
+                backfill, keyIssues), options, lookups, filter, issues));
+      } catch (UncheckedExecutionException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), SQLException.class);
+        Throwables.propagate(e.getCause());
+      }
+      if (keyIssueCount.get() > 0) {
+        refuseMigration(sqProto, keyIssueCount.get());
+      }
+    }
+    if (options.getTypedDates()) {
+      for (Map.Entry<String, ImmutableList<String>> e : YEAR_INDEXES.entrySet()) {
+        FieldDescriptor table = CatsSnapshot.getDescriptor().findFieldByName(e.getKey());
+        for (String fieldName : e.getValue()) {
+          sqProto.createIndex(table, fieldName);
+        }
+      }
+    }
+    if (rebuildRollups) {
+      new SqRollups<CatsSnapshot>(sqProto, ROLLUPS, null).rebuild();
+    }
+    sqProto.sqLite.bumpGeneration();
+    sqProto.sqLite.commit();
+  }
+
+  /**
+   * Returns the issue for a key that doesn't identify a single stored record: a missing
+   * key if a key value is null, or else a duplicate key.
+   */
+  private static ParseIssue newKeyIssue(FieldDescriptor table, List<FieldDescriptor> keyFields,
+      List<String> key) {
+    ParseIssue.Builder issue = ParseIssue.newBuilder()
+        .setType(ParseIssue.Type.DUPLICATE_KEY)
+        .setTableId(table.getNumber())
+        .setFieldValue(Joiner.on(",").useForNull("").join(key));
+    int nullIndex = key.indexOf(null);
+    if (nullIndex >= 0) {
+      issue.setType(ParseIssue.Type.MISSING_KEY).setFieldId(keyFields.get(nullIndex).getNumber());
+    }
+    return issue.build();
+  }
+
+  /**
+   * Rolls back a migration whose keys don't identify the records.
+   */
+  private static void refuseMigration(SqProto<CatsSnapshot> sqProto, int keyIssueCount)
+      throws SQLException {
+    sqProto.sqLite.connection.rollback();
+    throw new IllegalStateException(String.format(
+        "Not migrating, since %d keys don't identify single records; see the parse issues.",
+        keyIssueCount));
+  }
+
+  /**
+   * Converts data from the Zip and writes the typed records to sharded files of
+   * length-delimited protos, which can be reloaded without parsing the CSV data. The
+   * writer is closed, and the index is only written if the whole Zip is converted.
+   */
+  public static void exportToFiles(
+      ZipInputStream zipInputStream, PbShards.Writer<CatsSnapshot> writer,
+      Receiver<ParseIssue> issues) throws IOException {
+    boolean complete = false;
     try {
       CsvToPb.parseTablesFromZip(
           zipInputStream,
@@ -64,12 +455,51 @@ public class CatsParser {
           CatsRawSnapshot.getDefaultInstance(),
           SqProto.BATCH_SIZE,
           receiveTableRecords(issues),
-          receiveIntoDatabase(sqProto, issues));
+          receiveConverted(writer, ImportOptions.getDefaultInstance(), null, null, issues));
+      complete = true;
+    } finally {
+      if (complete) {
+        writer.close();
+      } else {
+        writer.abort();
+      }
+    }
+  }
+
+  /**
+   * Converts data from the Zip straight into in-memory columnar tables, for running
+   * reports without a database.
+   */
+  public static ColumnStore importIntoColumnStore(
+      ZipInputStream zipInputStream, Receiver<ParseIssue> issues) throws IOException {
+    ColumnStore.Builder<CatsSnapshot> store =
+        new ColumnStore.Builder<CatsSnapshot>(CatsSnapshot.getDefaultInstance());
+    CsvToPb.parseTablesFromZip(
+        zipInputStream,
+        CSVFormat.EXCEL,
+        CatsRawSnapshot.getDefaultInstance(),
+        SqProto.BATCH_SIZE,
+        receiveTableRecords(issues),
+        receiveConverted(store, ImportOptions.getDefaultInstance(), null, null, issues));
+    return store.build();
+  }
+
+  /**
+   * Loads typed records from sharded files into a new SQLite database. Existing
+   * tables are dropped and recreated before importing the data.
+   */
+  public static void importFromFiles(File directory, SqProto<CatsSnapshot> sqProto)
+      throws IOException, SQLException {
+    sqProto.dropAndCreateTables();
+    try {
+      PbShards.read(
+          directory, CatsSnapshot.getDefaultInstance(), receiveInserts(sqProto, false));
     } catch (UncheckedExecutionException e) {
       Throwables.propagateIfInstanceOf(e.getCause(), SQLException.class);
       Throwables.propagate(e.getCause());
     }
-    sqProto.sqLite.connection.commit();
+    sqProto.sqLite.bumpGeneration();
+    sqProto.sqLite.commit();
   }
 
   /**
@@ -89,14 +519,151 @@ public class CatsParser {
   }
 
   /**
-   * Converts records from text format and inserts into SQLite.
+   * Infers a schema for every table in the Zip, from the headers and first records of
+   * the files, for importAllTables().
+   */
+  public static InferredSchema inferAllTables(ZipInputStream zipInputStream)
+      throws IOException {
+    return InferredSchema.infer(zipInputStream, CSVFormat.EXCEL, "CatsArchive",
+        InferredSchema.DEFAULT_SAMPLE_SIZE);
+  }
+
+  /**
+   * Imports every table in the Zip into a new SQLite database, with the schema inferred
+   * by inferAllTables() from an earlier pass over the Zip. Existing tables are dropped
+   * and recreated. The table ids of the parse issues are the field numbers of the
+   * tables in the schema.
+   */
+  public static SqProto<DynamicMessage> importAllTables(
+      ZipInputStream zipInputStream, InferredSchema schema, SqLite sqLite,
+      final Receiver<ParseIssue> issues) throws IOException, SQLException {
+    final SqProto<DynamicMessage> sqProto = SqProto.create(sqLite, schema.getTemplate());
+    sqProto.dropAndCreateTables();
+    try {
+      schema.parseTablesFromZip(
+          zipInputStream,
+          CSVFormat.EXCEL,
+          SqProto.BATCH_SIZE,
+          receiveTableRecords(issues),
+          new Receiver<InferredSchema.InvalidValue>() {
+            public void receive(InferredSchema.InvalidValue invalid) {
+              issues.receive(ParseIssue.newBuilder()
+                  .setType(ParseIssue.Type.INVALID_FIELD_VALUE)
+                  .setTableId(invalid.table.getNumber())
+                  .setRecordId(invalid.recordNumber)
+                  .setFieldId(invalid.field.getNumber())
+                  .setFieldValue(invalid.value).build());
+            }
+          },
+          new BatchReceiver<Message>() {
+            public void receive(FieldDescriptor table, List<Message> records) {
+              issues.receive(ParseIssue.newBuilder()
+                  .setType(ParseIssue.Type.BATCH_RECORDS)
+                  .setTableId(table.getNumber())
+                  .setRecordCount(records.size()).build());
+              try {
+                sqProto.insertRecords(table, records);
+              } catch (SQLException e) {
+                throw new UncheckedExecutionException(e);
+              }
+            }
+          });
+    } catch (UncheckedExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), SQLException.class);
+      Throwables.propagate(e.getCause());
+    }
+    sqLite.bumpGeneration();
+    sqLite.commit();
+    return sqProto;
+  }
+
+  /**
+   * Reads the *_L lookup tables from the Zip, for adding descriptions of codes.
+   */
+  public static LookupCache readLookupTables(ZipInputStream zipInputStream)
+      throws IOException {
+    return LookupCache.readFromZip(zipInputStream, CSVFormat.EXCEL, "_L");
+  }
+
+  /**
+   * Returns the batch sizer that the options ask for.
    */
-  private static Receiver<CatsRawSnapshot> receiveIntoDatabase(
-      final SqProto<CatsSnapshot> sqProto, final Receiver<ParseIssue> issues) {
+  private static BatchSizer newBatchSizer(ImportOptions options) {
+    return options.getAdaptiveBatches()
+        ? BatchSizer.adaptive(options.getMinBatchSize(), options.getMaxBatchSize())
+        : BatchSizer.fixed(SqProto.BATCH_SIZE);
+  }
+
+  /**
+   * Shares one instance of each value of the code fields across the records of an
+   * import, with a dictionary per field, so that the batches waiting to be encoded
+   * don't each hold copies. It's dropped with the import.
+   */
+  static class CodeInterner {
+    private final Map<FieldDescriptor, Map<String, String>> dictionaries = Maps.newHashMap();
+
+    String intern(FieldDescriptor field, String value) {
+      Map<String, String> dictionary = dictionaries.get(field);
+      if (dictionary == null) {
+        dictionary = Maps.newHashMap();
+        dictionaries.put(field, dictionary);
+      }
+      String interned = dictionary.get(value);
+      if (interned == null) {
+        dictionary.put(value, value);
+        interned = value;
+      }
+      return interned;
+    }
+  }
+
+  /**
+   * Converts records from text format and passes them on, dropping the records that
+   * don't pass the filter if it isn't null. With encode_codes, the code values are
+   * interned for the whole import.
+   */
+  private static Receiver<CatsRawSnapshot> receiveConverted(
+      final Receiver<CatsSnapshot> recv, final ImportOptions options,
+      final LookupCache lookups, final RawRecordFilter filter,
+      final Receiver<ParseIssue> issues) {
+    final CodeInterner interner = options.getEncodeCodes() ? new CodeInterner() : null;
     return new Receiver<CatsRawSnapshot>() {
       public void receive(CatsRawSnapshot parsed) {
+        String tableName = null;
+        int recordCount = 0;
+        for (Map.Entry<FieldDescriptor, Object> e : parsed.getAllFields().entrySet()) {
+          tableName = e.getKey().getName();
+          recordCount += ((List<?>) e.getValue()).size();
+        }
+        final AtomicInteger issueCount = new AtomicInteger();
+        Tracer.Span span = Tracer.begin(Tracer.Stage.BATCH_CONVERTED, tableName);
+        CatsSnapshot converted = convertFromText(parsed, options, lookups, filter, interner,
+            new Receiver<ParseIssue>() {
+              public void receive(ParseIssue issue) {
+                if (issue.getType() != ParseIssue.Type.BATCH_RECORDS) {
+                  issueCount.incrementAndGet();
+                }
+                issues.receive(issue);
+              }
+            });
+        span.end(recordCount, 0, issueCount.get());
+        recv.receive(converted);
+      }
+    };
+  }
+
+  /**
+   * Inserts typed records into SQLite, optionally committing each batch.
+   */
+  private static Receiver<CatsSnapshot> receiveInserts(
+      final SqProto<CatsSnapshot> sqProto, final boolean commitBatches) {
+    return new Receiver<CatsSnapshot>() {
+      public void receive(CatsSnapshot converted) {
         try {
-          sqProto.insertSnapshot(convertFromText(parsed, issues));
+          sqProto.insertSnapshot(converted);
+          if (commitBatches) {
+            sqProto.sqLite.commit();
+          }
         } catch (SQLException e) {
           throw new UncheckedExecutionException(e);
         }
@@ -108,23 +675,60 @@ public class CatsParser {
    * Converts a raw snapshot (all records in text format) to a typed snapshot.
    */
   public static CatsSnapshot convertFromText(CatsRawSnapshot snap, final Receiver<ParseIssue> recv) {
+    return convertFromText(snap, ImportOptions.getDefaultInstance(), null, recv);
+  }
+
+  /**
+   * Converts a raw snapshot to a typed snapshot. Drops the records that don't pass the
+   * filters of the options, and fills in the typed date fields if the options ask, and
+   * the description fields if the lookup tables aren't null.
+   */
+  public static CatsSnapshot convertFromText(CatsRawSnapshot snap, ImportOptions options,
+      LookupCache lookups, Receiver<ParseIssue> recv) {
+    RawRecordFilter filter = RawRecordFilter.isFiltering(options)
+        ? RawRecordFilter.create(options, CatsRawSnapshot.getDescriptor()) : null;
+    return convertFromText(snap, options, lookups, filter, null, recv);
+  }
+
+  /**
+   * Converts a raw snapshot to a typed snapshot, as above, with a filter built once for
+   * the import, or null, and interning the code values if the interner isn't null.
+   */
+  static CatsSnapshot convertFromText(CatsRawSnapshot snap, ImportOptions options,
+      LookupCache lookups, RawRecordFilter filter, CodeInterner interner,
+      final Receiver<ParseIssue> recv) {
     CatsSnapshot.Builder b = CatsSnapshot.newBuilder();
     Descriptor outputSchema = CatsSnapshot.getDescriptor();
     for (Map.Entry<FieldDescriptor, Object> e : snap.getAllFields().entrySet()) {
       final FieldDescriptor outputField = outputSchema.findFieldByNumber(e.getKey().getNumber());
       List<Message> inputRecords = (List<Message>) e.getValue();
-      recv.receive(ParseIssue.newBuilder()
+      ParseIssue.Builder batch = ParseIssue.newBuilder()
           .setType(ParseIssue.Type.BATCH_RECORDS)
           .setTableId(outputField.getNumber())
-          .setRecordCount(inputRecords.size()).build());
+          .setRecordCount(inputRecords.size());
+      if (filter != null) {
+        inputRecords = ImmutableList.copyOf(Iterables.filter(inputRecords, filter));
+        batch.setFilteredCount(batch.getRecordCount() - inputRecords.size());
+      }
+      recv.receive(batch.build());
+      Receiver<ParseIssue> tableIssues = new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+            recv.receive(issue.toBuilder()
+                .setTableId(outputField.getNumber()).build());
+          }
+        };
       for (Message inputRecord : inputRecords) {
         Message.Builder outputRecord = b.newBuilderForField(outputField);
-        convertFromText(inputRecord, outputRecord, new Receiver<ParseIssue>() {
-            public void receive(ParseIssue issue) {
-              recv.receive(issue.toBuilder()
-                  .setTableId(outputField.getNumber()).build());
-            }
-          });
+        convertFromText(inputRecord, outputRecord, interner, tableIssues);
+        if (options.getTypedDates()) {
+          addTypedDates(outputRecord, tableIssues);
+        }
+        if (options.getFixedPointAmounts()) {
+          addFixedPointAmounts(inputRecord, outputRecord, tableIssues);
+        }
+        if (lookups != null) {
+          addDescriptions(outputRecord, lookups);
+        }
         b.addRepeatedField(outputField, outputRecord.build());
       }
     }
@@ -135,28 +739,44 @@ public class CatsParser {
    * Maps a raw proto (all fields in string format) to a typed proto by field no.
    */
   public static void convertFromText(Message inputRecord, Message.Builder outputRecord, Receiver<ParseIssue> recv) {
+    convertFromText(inputRecord, outputRecord, null, recv);
+  }
+
+  private static void convertFromText(Message inputRecord, Message.Builder outputRecord,
+      CodeInterner interner, Receiver<ParseIssue> recv) {
     Descriptor outputSchema = outputRecord.getDescriptorForType();
     for (Map.Entry<FieldDescriptor, Object> e : inputRecord.getAllFields().entrySet()) {
       FieldDescriptor outputField = outputSchema.findFieldByNumber(e.getKey().getNumber());
       switch (outputField.getJavaType()) {
         case STRING:
-          outputRecord.setField(outputField, e.getValue());
+          if (interner != null && CODE_FIELD_DESCRIPTORS.contains(outputField)) {
+            outputRecord.setField(outputField,
+                interner.intern(outputField, (String) e.getValue()));
+          } else {
+            outputRecord.setField(outputField, e.getValue());
+          }
           break;
         case BOOLEAN:
           if (!BOOL_VALUES.contains((String) e.getValue())) {
-            recv.receive(ParseIssue.newBuilder()
-                .setType(ParseIssue.Type.INVALID_FIELD_VALUE)
-                .setFieldId(e.getKey().getNumber())
-                .setFieldValue((String) e.getValue()).build());
+            reportInvalidValue(e.getKey(), (String) e.getValue(), recv);
           } else {
             outputRecord.setField(outputField, e.getValue().equals("Y"));
           }
           break;
         case INT:
-          outputRecord.setField(outputField, Integer.valueOf((String) e.getValue()));
+          long intValue = TextParsers.parseLong((String) e.getValue());
+          if (!isInRange(outputField, intValue)) {
+            reportInvalidValue(e.getKey(), (String) e.getValue(), recv);
+          } else {
+            outputRecord.setField(outputField, (int) intValue);
+          }
           break;
         case DOUBLE:
-          outputRecord.setField(outputField, Double.valueOf((String) e.getValue()));
+          try {
+            outputRecord.setField(outputField, Double.valueOf((String) e.getValue()));
+          } catch (NumberFormatException ex) {
+            reportInvalidValue(e.getKey(), (String) e.getValue(), recv);
+          }
           break;
         default:
           throw new RuntimeException("Unhandled data type: " +
@@ -165,18 +785,246 @@ public class CatsParser {
     }
   }
 
+  /**
+   * Returns true if the value fits in the 32-bit field, which may be unsigned.
+   */
+  private static boolean isInRange(FieldDescriptor field, long value) {
+    switch (field.getType()) {
+      case UINT32:
+      case FIXED32:
+        return value >= 0 && value <= 0xFFFFFFFFL;
+      default:
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+  }
+
+  private static void reportInvalidValue(FieldDescriptor field, String value,
+      Receiver<ParseIssue> recv) {
+    recv.receive(ParseIssue.newBuilder()
+        .setType(ParseIssue.Type.INVALID_FIELD_VALUE)
+        .setFieldId(field.getNumber())
+        .setFieldValue(value).build());
+  }
+
+  /**
+   * An amount field, with the raw text field that it's parsed from and the companion
+   * field for the amount in cents.
+   */
+  private static class FixedPointAmount {
+    final FieldDescriptor rawField;
+    final FieldDescriptor amountField;
+    final FieldDescriptor centsField;
+
+    FixedPointAmount(FieldDescriptor rawField, FieldDescriptor amountField,
+        FieldDescriptor centsField) {
+      this.rawField = rawField;
+      this.amountField = amountField;
+      this.centsField = centsField;
+    }
+  }
+
+  /**
+   * Finds the amount fields in each table that have a field_cents companion, keyed by
+   * the raw table schema.
+   */
+  private static ImmutableListMultimap<Descriptor, FixedPointAmount> getFixedPointAmounts(
+      Descriptor databaseSchema, Descriptor rawDatabaseSchema) {
+    ImmutableListMultimap.Builder<Descriptor, FixedPointAmount> amounts =
+        ImmutableListMultimap.builder();
+    for (FieldDescriptor table : databaseSchema.getFields()) {
+      Descriptor tableSchema = table.getMessageType();
+      Descriptor rawTableSchema =
+          rawDatabaseSchema.findFieldByNumber(table.getNumber()).getMessageType();
+      for (FieldDescriptor field : tableSchema.getFields()) {
+        FieldDescriptor centsField = tableSchema.findFieldByName(field.getName() + CENTS_SUFFIX);
+        if (centsField != null) {
+          amounts.put(rawTableSchema, new FixedPointAmount(
+              rawTableSchema.findFieldByNumber(field.getNumber()), field, centsField));
+        }
+      }
+    }
+    return amounts.build();
+  }
+
+  /**
+   * Parses the amount fields of a raw record into the cents fields of the converted
+   * record. Amounts that aren't already reported as invalid, but have fractions of a
+   * cent, are reported.
+   */
+  private static void addFixedPointAmounts(Message inputRecord, Message.Builder outputRecord,
+      Receiver<ParseIssue> recv) {
+    for (FixedPointAmount amount : FIXED_POINT_AMOUNTS.get(inputRecord.getDescriptorForType())) {
+      if (!inputRecord.hasField(amount.rawField)) {
+        continue;
+      }
+      String text = (String) inputRecord.getField(amount.rawField);
+      long cents = TextParsers.parseCents(text);
+      if (cents != TextParsers.INVALID) {
+        outputRecord.setField(amount.centsField, cents);
+      } else if (outputRecord.hasField(amount.amountField)) {
+        reportInvalidValue(amount.rawField, text, recv);
+      }
+    }
+  }
+
+  /**
+   * A description field, with the code field that it describes and the lookup table
+   * that maps codes to descriptions.
+   */
+  private static class Decoding {
+    final FieldDescriptor codeField;
+    final FieldDescriptor descriptionField;
+    final String lookupTableName;
+
+    Decoding(FieldDescriptor codeField, FieldDescriptor descriptionField,
+        String lookupTableName) {
+      this.codeField = codeField;
+      this.descriptionField = descriptionField;
+      this.lookupTableName = lookupTableName;
+    }
+  }
+
+  /**
+   * Finds the description fields in each table: a field named like code_field_desc
+   * describes code_field, using the lookup table named after the raw CSV column of the
+   * code field with an _L suffix (such as ASSET_TYP_L for asset_type).
+   */
+  private static ImmutableListMultimap<Descriptor, Decoding> getDecodings(
+      Descriptor databaseSchema, Descriptor rawDatabaseSchema) {
+    ImmutableListMultimap.Builder<Descriptor, Decoding> decodings =
+        ImmutableListMultimap.builder();
+    for (FieldDescriptor table : databaseSchema.getFields()) {
+      Descriptor tableSchema = table.getMessageType();
+      Descriptor rawTableSchema =
+          rawDatabaseSchema.findFieldByNumber(table.getNumber()).getMessageType();
+      for (FieldDescriptor field : tableSchema.getFields()) {
+        if (!field.getName().endsWith(DESCRIPTION_SUFFIX)) {
+          continue;
+        }
+        FieldDescriptor codeField = tableSchema.findFieldByName(
+            field.getName().substring(0, field.getName().length() - DESCRIPTION_SUFFIX.length()));
+        assertThat(codeField).isNotNull();
+        String rawName = rawTableSchema.findFieldByNumber(codeField.getNumber()).getName();
+        decodings.put(tableSchema, new Decoding(codeField, field, rawName + "_L"));
+      }
+    }
+    return decodings.build();
+  }
+
+  /**
+   * Sets the description fields of a converted record from the lookup tables.
+   */
+  private static void addDescriptions(Message.Builder record, LookupCache lookups) {
+    for (Decoding decoding : DECODINGS.get(record.getDescriptorForType())) {
+      if (record.hasField(decoding.codeField)) {
+        String description = lookups.getDescription(
+            decoding.lookupTableName, (String) record.getField(decoding.codeField));
+        if (description != null) {
+          record.setField(decoding.descriptionField, description);
+        }
+      }
+    }
+  }
+
+  /**
+   * A date or timestamp text field, with its typed companion fields.
+   */
+  private static class TypedDate {
+    final FieldDescriptor textField;
+    final FieldDescriptor daysField;
+    final FieldDescriptor millisField;
+    final FieldDescriptor yearField;
+
+    TypedDate(FieldDescriptor textField, FieldDescriptor daysField,
+        FieldDescriptor millisField, FieldDescriptor yearField) {
+      this.textField = textField;
+      this.daysField = daysField;
+      this.millisField = millisField;
+      this.yearField = yearField;
+    }
+  }
+
+  /**
+   * Finds the typed date fields in each table: a text field named field has a
+   * field_days companion if it holds dates (YYYYMMDD), or field_millis if it holds
+   * timestamps (YYYY-MM-DD-HH.MM.SS.ffffff), and optionally a field_year companion.
+   */
+  private static ImmutableListMultimap<Descriptor, TypedDate> getTypedDates(
+      Descriptor databaseSchema) {
+    ImmutableListMultimap.Builder<Descriptor, TypedDate> typedDates =
+        ImmutableListMultimap.builder();
+    for (FieldDescriptor table : databaseSchema.getFields()) {
+      Descriptor tableSchema = table.getMessageType();
+      for (FieldDescriptor field : tableSchema.getFields()) {
+        FieldDescriptor daysField = tableSchema.findFieldByName(field.getName() + "_days");
+        FieldDescriptor millisField = tableSchema.findFieldByName(field.getName() + "_millis");
+        if (daysField != null || millisField != null) {
+          typedDates.put(tableSchema, new TypedDate(field, daysField, millisField,
+              tableSchema.findFieldByName(field.getName() + "_year")));
+        }
+      }
+    }
+    return typedDates.build();
+  }
+
+  /**
+   * Parses the date and timestamp fields of a converted record into the typed
+   * fields. Values that don't parse are reported, and their typed fields left unset.
+   */
+  private static void addTypedDates(Message.Builder record, Receiver<ParseIssue> recv) {
+    for (TypedDate typedDate : TYPED_DATES.get(record.getDescriptorForType())) {
+      if (!record.hasField(typedDate.textField)) {
+        continue;
+      }
+      String text = (String) record.getField(typedDate.textField);
+      long value = typedDate.daysField != null
+          ? TextParsers.parseEpochDay(text) : TextParsers.parseEpochMillis(text);
+      if (value == TextParsers.INVALID) {
+        reportInvalidValue(typedDate.textField, text, recv);
+        continue;
+      }
+      if (typedDate.daysField != null) {
+        record.setField(typedDate.daysField, (int) value);
+      } else {
+        record.setField(typedDate.millisField, value);
+      }
+      if (typedDate.yearField != null) {
+        record.setField(typedDate.yearField, TextParsers.parseYear(text));
+      }
+    }
+  }
+
+  /**
+   * Looks up the named fields of each table in a database schema.
+   */
+  private static ImmutableSet<FieldDescriptor> getFields(
+      Descriptor databaseSchema, Map<String, ? extends List<String>> fieldNames) {
+    ImmutableSet.Builder<FieldDescriptor> fields = ImmutableSet.builder();
+    for (Map.Entry<String, ? extends List<String>> e : fieldNames.entrySet()) {
+      Descriptor tableSchema = databaseSchema.findFieldByName(e.getKey()).getMessageType();
+      for (String fieldName : e.getValue()) {
+        FieldDescriptor field = tableSchema.findFieldByName(fieldName);
+        assertThat(field).isNotNull();
+        fields.add(field);
+      }
+    }
+    return fields.build();
+  }
+
+  /**
+   * Imports the Zip into a database file, or with a third argument, into the partition
+   * for a snapshot id (such as 201406) within a catalog directory. If the output path
+   * ends with .pb, the converted records are instead exported to sharded files in that
+   * directory; and if the input path ends with .pb, the records are reloaded from the
+   * files into the database. Import options can be given in text format with the
+   * import_options system property, such as -Dimport_options="encode_codes: true".
+   */
   public static void main(String[] args) throws Exception {
-    assertThat(args.length).isEqualTo(2);
-    File zipFile = new File(args[0]);
-    File databaseFile = new File(args[1]);
-    assertThat(zipFile.getPath().endsWith(".zip")).isTrue();
-    assertThat(databaseFile.getPath().endsWith(".db")).isTrue();
-    ZipInputStream in = new ZipInputStream(new FileInputStream(zipFile.getPath()));
-    SqProto<CatsSnapshot> sqProto = SqProto.create(
-        SqLite.connect(databaseFile.getPath()),
-        CatsSnapshot.getDefaultInstance());
+    assertThat(args.length).isAtLeast(2);
+    assertThat(args.length).isAtMost(3);
+    File inputFile = new File(args[0]);
     final Map<ParseIssue, AtomicInteger> parseIssues = Maps.newHashMap();
-    importIntoDatabase(in, sqProto, new Receiver<ParseIssue>() {
+    Receiver<ParseIssue> issues = new Receiver<ParseIssue>() {
         public void receive(ParseIssue issue) {
           AtomicInteger issueCount = parseIssues.get(issue);
           if (issueCount == null) {
@@ -188,8 +1036,46 @@ public class CatsParser {
             System.err.println(issue.toString());
           }
         }
-      });
-    sqProto.sqLite.connection.close();
+      };
+    if (inputFile.getPath().endsWith(".pb")) {
+      SqProto<CatsSnapshot> sqProto = openDatabase(args);
+      importFromFiles(inputFile, sqProto);
+      sqProto.sqLite.connection.close();
+    } else {
+      assertThat(inputFile.getPath().endsWith(".zip")).isTrue();
+      ZipInputStream in = new ZipInputStream(new FileInputStream(inputFile.getPath()));
+      if (args[1].endsWith(".pb")) {
+        exportToFiles(in, PbShards.newWriter(
+            new File(args[1]), SHARD_COUNT, true, CatsSnapshot.getDefaultInstance()), issues);
+      } else {
+        ImportOptions.Builder options = ImportOptions.newBuilder();
+        TextFormat.merge(System.getProperty("import_options", ""), options);
+        LookupCache lookups = null;
+        if (options.getAddDescriptions()) {
+          ZipInputStream lookupIn = new ZipInputStream(new FileInputStream(inputFile.getPath()));
+          lookups = readLookupTables(lookupIn);
+          lookupIn.close();
+          System.err.println(String.format("Read %d codes from %d lookup tables.",
+              lookups.size(), lookups.getTableNames().size()));
+        }
+        SqProto<CatsSnapshot> sqProto = openDatabase(args);
+        if (options.getAllTables()) {
+          checkArgument(options.build().equals(
+              ImportOptions.newBuilder().setAllTables(true).build()),
+              "Importing all tables doesn't take other options.");
+          ZipInputStream sampleIn = new ZipInputStream(new FileInputStream(inputFile.getPath()));
+          InferredSchema schema = inferAllTables(sampleIn);
+          sampleIn.close();
+          System.err.println(String.format("Inferred the schemas of %d tables.",
+              schema.getDescriptor().getFields().size()));
+          importAllTables(in, schema, sqProto.sqLite, issues);
+        } else {
+          importIntoDatabase(in, sqProto, options.build(), lookups, issues);
+        }
+        sqProto.sqLite.connection.close();
+      }
+      in.close();
+    }
     System.err.println("Import complete.");
     if (!parseIssues.isEmpty()) {
       System.err.println("Parse issues encountered:");
@@ -199,4 +1085,21 @@ public class CatsParser {
       }
     }
   }
+
+  /**
+   * Opens the output database named by the command line arguments, either a database
+   * file or a snapshot partition within a catalog directory.
+   */
+  private static SqProto<CatsSnapshot> openDatabase(String[] args) throws SQLException {
+    if (args.length == 3) {
+      SqCatalog<CatsSnapshot> catalog = SqCatalog.create(
+          new File(args[1]), CatsSnapshot.getDefaultInstance());
+      return catalog.openPartition(args[2]);
+    }
+    File databaseFile = new File(args[1]);
+    assertThat(databaseFile.getPath().endsWith(".db")).isTrue();
+    return SqProto.create(
+        SqLite.connect(databaseFile.getPath()),
+        CatsSnapshot.getDefaultInstance());
+  }
 }
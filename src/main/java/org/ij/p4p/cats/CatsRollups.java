@@ -0,0 +1,87 @@
+package org.ij.p4p.cats;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.ij.p4p.util.ColumnQuery.column;
+import static org.ij.p4p.util.ColumnQuery.joined;
+
+import org.ij.p4p.util.ColumnQuery;
+import org.ij.p4p.util.ColumnStore;
+import org.ij.p4p.util.SqLite;
+import org.ij.p4p.util.SqProto;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Runs the equitable sharing rollups from the README on in-memory columnar tables,
+ * joining equitable sharing records to assets on asset_id.
+ */
+public class CatsRollups {
+  /**
+   * The states in Figure 3 of Policing for Profit 2e.
+   */
+  public static final ImmutableList<String> FIG3_STATES = ImmutableList.of(
+      "AZ", "CA", "HI", "LA", "MA", "MI", "MN",
+      "MO", "NY", "OK", "PA", "TX", "VA", "WA");
+
+  /**
+   * Sums the asset values and sharing amounts by year of the sharing execution date:
+   * asset value at seizure, asset value, income available for sharing, the estimated
+   * sharing amount, and the sharing execution amount.
+   */
+  public static List<ColumnQuery.Group> sharingByYear(ColumnStore store) {
+    return new ColumnQuery(store.getTable("equitable_sharing"))
+        .join("asset_id", store.getTable("asset"), "asset_id")
+        .whereGreaterThan(column("sharing_execution_amount"), 0)
+        .groupByPrefix(column("sharing_execution_date"), 4)
+        .sum(joined("asset_value_at_seizure"))
+        .sum(joined("asset_value"))
+        .sum(column("income_available_for_sharing"))
+        .sumProduct(column("income_available_for_sharing"), column("percent_to_share"), 0.01)
+        .sum(column("sharing_execution_amount"))
+        .execute();
+  }
+
+  /**
+   * Sums the sharing execution amounts by year and seizure state, for the given
+   * states and range of years.
+   */
+  public static List<ColumnQuery.Group> sharingByYearAndState(
+      ColumnStore store, List<String> states, String fromYear, String toYear) {
+    return new ColumnQuery(store.getTable("equitable_sharing"))
+        .join("asset_id", store.getTable("asset"), "asset_id")
+        .whereGreaterThan(column("sharing_execution_amount"), 0)
+        .whereIn(joined("seizure_state"), states)
+        .wherePrefixBetween(column("sharing_execution_date"), 4, fromYear, toYear)
+        .groupByPrefix(column("sharing_execution_date"), 4)
+        .groupBy(joined("seizure_state"))
+        .sum(column("sharing_execution_amount"))
+        .execute();
+  }
+
+  public static void main(String[] args) throws Exception {
+    assertThat(args.length).isEqualTo(1);
+    File databaseFile = new File(args[0]);
+    assertThat(databaseFile.isFile()).isTrue();
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connect(databaseFile.getPath()),
+        CatsSnapshot.getDefaultInstance());
+    ColumnStore store = ColumnStore.load(sqProto);
+    sqProto.sqLite.connection.close();
+
+    Joiner joiner = Joiner.on('\t').useForNull("NULL");
+    System.out.println("YR\tAVAS\tAV\tIAFS\tPTSA\tSEA");
+    for (ColumnQuery.Group g : sharingByYear(store)) {
+      System.out.println(joiner.join(g.getKeys().get(0),
+          g.getSum(0), g.getSum(1), g.getSum(2), g.getSum(3), g.getSum(4)));
+    }
+    System.out.println();
+    System.out.println("YR\tST\tSEA");
+    for (ColumnQuery.Group g : sharingByYearAndState(store, FIG3_STATES, "2002", "2013")) {
+      System.out.println(joiner.join(g.getKeys().get(0), g.getKeys().get(1), g.getSum(0)));
+    }
+  }
+}
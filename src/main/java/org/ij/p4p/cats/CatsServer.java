@@ -0,0 +1,89 @@
+package org.ij.p4p.cats;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.ij.p4p.util.QueryCache;
+import org.ij.p4p.util.SqServer;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Serves queries of a CATS database on a loopback port, for analyses that run many
+ * short queries. The named queries are the rollups from the README, and lookups of
+ * the records of an asset. Their results are cached until the next import. Ad hoc
+ * SQL is only served with the --allow_sql flag, since any local process can send it.
+ */
+public class CatsServer {
+  public static final int DEFAULT_PORT = 8041;
+  public static final int POOL_SIZE = 4;
+  public static final long CACHE_BYTES = 64L << 20;
+  public static final String ALLOW_SQL_FLAG = "--allow_sql";
+
+  /**
+   * Sums the asset values and sharing amounts by year of the sharing execution date.
+   */
+  public static final String SHARING_BY_YEAR = "select\n"
+      + "  substr(a.sharing_execution_date, 1, 4) as YR,\n"
+      + "  sum(b.asset_value_at_seizure) as AVAS,\n"
+      + "  sum(b.asset_value) as AV,\n"
+      + "  sum(a.income_available_for_sharing) as IAFS,\n"
+      + "  sum(a.income_available_for_sharing * a.percent_to_share / 100.0) as PTSA,\n"
+      + "  sum(a.sharing_execution_amount) as SEA\n"
+      + "from equitable_sharing a\n"
+      + "join asset b on a.asset_id = b.asset_id\n"
+      + "where a.sharing_execution_amount > 0\n"
+      + "group by YR";
+
+  /**
+   * Sums the sharing execution amounts by year and seizure state, between two years.
+   */
+  public static final String SHARING_BY_YEAR_AND_STATE = "select\n"
+      + "  substr(a.sharing_execution_date, 1, 4) as YR,\n"
+      + "  b.seizure_state as ST,\n"
+      + "  sum(a.sharing_execution_amount) as SEA\n"
+      + "from equitable_sharing a\n"
+      + "join asset b on a.asset_id = b.asset_id\n"
+      + "where a.sharing_execution_amount > 0 and YR >= ? and YR <= ?\n"
+      + "group by YR, ST";
+
+  /**
+   * Creates a server with the CATS queries, and ad hoc queries if allowed, which is
+   * started by the caller.
+   */
+  public static SqServer create(File databaseFile, int poolSize, boolean allowSql)
+      throws Exception {
+    SqServer server = SqServer.create(databaseFile, poolSize)
+        .addQuery("sharing_by_year", SHARING_BY_YEAR)
+        .addQuery("sharing_by_year_and_state", SHARING_BY_YEAR_AND_STATE)
+        .addQuery("asset", "select * from asset where asset_id = ?",
+            AssetRecord.getDefaultInstance())
+        .addQuery("equitable_sharing", "select * from equitable_sharing where asset_id = ?",
+            EquitableSharingRecord.getDefaultInstance())
+        .setCache(QueryCache.create(CACHE_BYTES));
+    return allowSql ? server.allowSql() : server;
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<String> positional = Lists.newArrayList(args);
+    boolean allowSql = positional.remove(ALLOW_SQL_FLAG);
+    assertThat(positional.size()).isAtLeast(1);
+    File databaseFile = new File(positional.get(0));
+    int port = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : DEFAULT_PORT;
+    final SqServer server = create(databaseFile, POOL_SIZE, allowSql);
+    server.start(port);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+        public void run() {
+          try {
+            server.stop();
+          } catch (Exception e) {
+            // Exiting anyway.
+          }
+        }
+      });
+    System.err.println(String.format("Serving %s at http://localhost:%d/",
+        databaseFile, server.getPort()));
+  }
+}
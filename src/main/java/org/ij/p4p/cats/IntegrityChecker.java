@@ -0,0 +1,177 @@
+package org.ij.p4p.cats;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import org.ij.p4p.util.LongSet;
+import org.ij.p4p.util.Numbers;
+import org.ij.p4p.util.Receiver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
+import com.google.protobuf.Message;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks the keys of records as they're imported, and passes the records on. Reports
+ * records with the same key as an earlier record in the table, and records whose
+ * parent key (such as the asset_id of an equitable sharing record) isn't in the
+ * parent table. The keys seen are held in LongSets: a single integer key as is, which
+ * costs about a bit per record, and other keys as 64-bit fingerprints, which makes a
+ * false duplicate very unlikely but possible.
+ *
+ * A child table may be read before its parent, so parent keys that haven't been seen
+ * yet are held until finish(), which reports those that are still missing.
+ */
+class IntegrityChecker<T extends Message> implements Receiver<T> {
+  private final Map<FieldDescriptor, TableKeys> tables = Maps.newLinkedHashMap();
+  private final Receiver<T> recv;
+  private final Receiver<ParseIssue> issues;
+
+  /**
+   * The keys of a table, and the keys seen so far.
+   */
+  private static class TableKeys {
+    final FieldDescriptor table;
+    final ImmutableList<FieldDescriptor> keyFields;
+    final LongSet seen = new LongSet();
+    // The field that refers to the parent table, and the parent keys not seen yet.
+    FieldDescriptor parentKeyField;
+    TableKeys parent;
+    long[] pending = new long[0];
+    int pendingCount = 0;
+
+    TableKeys(FieldDescriptor table, ImmutableList<FieldDescriptor> keyFields) {
+      this.table = table;
+      this.keyFields = keyFields;
+    }
+
+    boolean hasIntegerKey() {
+      return keyFields.size() == 1 && isInteger(keyFields.get(0));
+    }
+  }
+
+  /**
+   * Checks the tables of the database schema that have key fields. Each child table
+   * refers to its parent table by a field with the same name as the parent's key,
+   * which must be a single integer field.
+   */
+  IntegrityChecker(Descriptor databaseSchema,
+      Map<String, ? extends List<String>> tableKeys, Map<String, String> parentTables,
+      Receiver<T> recv, Receiver<ParseIssue> issues) {
+    this.recv = recv;
+    this.issues = issues;
+    for (Map.Entry<String, ? extends List<String>> e : tableKeys.entrySet()) {
+      FieldDescriptor table = databaseSchema.findFieldByName(e.getKey());
+      checkArgument(table != null, "No such table: %s", e.getKey());
+      ImmutableList.Builder<FieldDescriptor> keyFields = ImmutableList.builder();
+      for (String fieldName : e.getValue()) {
+        FieldDescriptor field = table.getMessageType().findFieldByName(fieldName);
+        checkArgument(field != null, "No such field: %s.%s", e.getKey(), fieldName);
+        keyFields.add(field);
+      }
+      tables.put(table, new TableKeys(table, keyFields.build()));
+    }
+    for (Map.Entry<String, String> e : parentTables.entrySet()) {
+      TableKeys child = tables.get(databaseSchema.findFieldByName(e.getKey()));
+      TableKeys parent = tables.get(databaseSchema.findFieldByName(e.getValue()));
+      checkArgument(child != null && parent != null && parent.hasIntegerKey(),
+          "Can't check %s against %s", e.getKey(), e.getValue());
+      child.parent = parent;
+      child.parentKeyField = child.table.getMessageType()
+          .findFieldByName(parent.keyFields.get(0).getName());
+      checkArgument(child.parentKeyField != null && isInteger(child.parentKeyField),
+          "No integer parent key in %s", e.getKey());
+    }
+  }
+
+  public void receive(T batch) {
+    for (TableKeys keys : tables.values()) {
+      for (Message record : (List<Message>) batch.getField(keys.table)) {
+        check(keys, record);
+      }
+    }
+    recv.receive(batch);
+  }
+
+  /**
+   * Reports the records whose parents weren't found in the parent table.
+   */
+  void finish() {
+    for (TableKeys keys : tables.values()) {
+      for (int i = 0; i < keys.pendingCount; ++i) {
+        if (!keys.parent.seen.contains(keys.pending[i])) {
+          issues.receive(ParseIssue.newBuilder()
+              .setType(ParseIssue.Type.ORPHANED_RECORD)
+              .setTableId(keys.table.getNumber())
+              .setFieldId(keys.parentKeyField.getNumber())
+              .setFieldValue(Long.toString(keys.pending[i])).build());
+        }
+      }
+      keys.pending = new long[0];
+      keys.pendingCount = 0;
+    }
+  }
+
+  private void check(TableKeys keys, Message record) {
+    boolean hasKey = !keys.hasIntegerKey() || record.hasField(keys.keyFields.get(0));
+    if (hasKey && !keys.seen.add(getKey(keys, record))) {
+      List<String> keyValues = Lists.newArrayListWithCapacity(keys.keyFields.size());
+      for (FieldDescriptor field : keys.keyFields) {
+        keyValues.add(!record.hasField(field) ? ""
+            : isInteger(field) ? Long.toString(getValue(field, record))
+            : String.valueOf(record.getField(field)));
+      }
+      issues.receive(ParseIssue.newBuilder()
+          .setType(ParseIssue.Type.DUPLICATE_KEY)
+          .setTableId(keys.table.getNumber())
+          .setFieldValue(Joiner.on(",").join(keyValues)).build());
+    }
+    if (keys.parent != null && record.hasField(keys.parentKeyField)) {
+      long parentKey = getValue(keys.parentKeyField, record);
+      if (!keys.parent.seen.contains(parentKey)) {
+        if (keys.pendingCount == keys.pending.length) {
+          keys.pending = Arrays.copyOf(keys.pending, Math.max(16, keys.pending.length * 2));
+        }
+        keys.pending[keys.pendingCount++] = parentKey;
+      }
+    }
+  }
+
+  /**
+   * Returns the key of a record: the value of a single integer key field, or else a
+   * fingerprint of the key fields.
+   */
+  private static long getKey(TableKeys keys, Message record) {
+    if (keys.hasIntegerKey()) {
+      return getValue(keys.keyFields.get(0), record);
+    }
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (FieldDescriptor field : keys.keyFields) {
+      hasher.putBoolean(record.hasField(field));
+      hasher.putString(String.valueOf(record.getField(field)), Charsets.UTF_8);
+    }
+    return hasher.hash().asLong();
+  }
+
+  /**
+   * Returns the value of an integer field.
+   */
+  private static long getValue(FieldDescriptor field, Message record) {
+    return Numbers.toLong(field, record.getField(field));
+  }
+
+  private static boolean isInteger(FieldDescriptor field) {
+    return field.getJavaType() == JavaType.INT || field.getJavaType() == JavaType.LONG;
+  }
+}
@@ -0,0 +1,127 @@
+package org.ij.p4p.cats;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import org.ij.p4p.util.Numbers;
+import org.ij.p4p.util.TextParsers;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+/**
+ * Selects raw records for import, with the record filters and the sample fraction of
+ * the import options. Records are checked before they're converted, so that dropped
+ * records cost no more than parsing the CSV data.
+ *
+ * Sampling keeps a record if a hash of its ASSET_ID falls below the sample fraction.
+ * The hash is of the numeric value, so it doesn't depend on leading zeros, and it's
+ * the same in every table, so the sampled tables can still be joined.
+ */
+class RawRecordFilter implements Predicate<Message> {
+  static final String SAMPLE_KEY = "ASSET_ID";
+
+  private final ImmutableListMultimap<Descriptor, FieldMatcher> matchers;
+  // Tables that are sampled, with their key fields.
+  private final ImmutableMap<Descriptor, FieldDescriptor> sampleKeys;
+  private final long sampleThreshold;
+
+  private RawRecordFilter(ImmutableListMultimap<Descriptor, FieldMatcher> matchers,
+      ImmutableMap<Descriptor, FieldDescriptor> sampleKeys, long sampleThreshold) {
+    this.matchers = matchers;
+    this.sampleKeys = sampleKeys;
+    this.sampleThreshold = sampleThreshold;
+  }
+
+  /**
+   * Returns true if the options drop any records.
+   */
+  static boolean isFiltering(ImportOptions options) {
+    return options.getFilterCount() > 0 || options.hasSampleFraction();
+  }
+
+  /**
+   * Creates a filter from the options, for records of the tables in the raw database
+   * schema. Throws IllegalArgumentException for unknown table or field names.
+   */
+  static RawRecordFilter create(ImportOptions options, Descriptor rawDatabaseSchema) {
+    ImmutableListMultimap.Builder<Descriptor, FieldMatcher> matchers =
+        ImmutableListMultimap.builder();
+    for (RecordFilter filter : options.getFilterList()) {
+      FieldDescriptor table = rawDatabaseSchema.findFieldByName(filter.getTable());
+      checkArgument(table != null, "No such table: %s", filter.getTable());
+      FieldDescriptor field = table.getMessageType().findFieldByName(filter.getField());
+      checkArgument(field != null, "No such field: %s.%s", filter.getTable(), filter.getField());
+      checkArgument(filter.getValueCount() > 0 || filter.hasMinValue() || filter.hasMaxValue(),
+          "Filter on %s.%s has no values", filter.getTable(), filter.getField());
+      matchers.put(table.getMessageType(), new FieldMatcher(field, filter));
+    }
+    ImmutableMap.Builder<Descriptor, FieldDescriptor> sampleKeys = ImmutableMap.builder();
+    long sampleThreshold = 0;
+    if (options.hasSampleFraction()) {
+      double fraction = options.getSampleFraction();
+      checkArgument(fraction > 0 && fraction <= 1, "Sample fraction out of range: %s", fraction);
+      for (FieldDescriptor table : rawDatabaseSchema.getFields()) {
+        FieldDescriptor key = table.getMessageType().findFieldByName(SAMPLE_KEY);
+        if (key != null) {
+          sampleKeys.put(table.getMessageType(), key);
+        }
+      }
+      sampleThreshold = (long) (fraction * (1L << 53));
+    }
+    return new RawRecordFilter(matchers.build(), sampleKeys.build(), sampleThreshold);
+  }
+
+  public boolean apply(Message record) {
+    Descriptor tableSchema = record.getDescriptorForType();
+    for (FieldMatcher matcher : matchers.get(tableSchema)) {
+      if (!matcher.matches(record)) {
+        return false;
+      }
+    }
+    FieldDescriptor key = sampleKeys.get(tableSchema);
+    if (key == null) {
+      return true;
+    }
+    if (!record.hasField(key)) {
+      // A record without a key can't be matched across tables.
+      return false;
+    }
+    long id = TextParsers.parseLong((String) record.getField(key));
+    if (id == TextParsers.INVALID) {
+      id = record.getField(key).hashCode();
+    }
+    return (Numbers.mix(id) >>> 11) < sampleThreshold;
+  }
+
+  /**
+   * Matches the text value of a field against a set of values and a range.
+   */
+  private static class FieldMatcher {
+    final FieldDescriptor field;
+    final ImmutableSet<String> values;
+    final String minValue;
+    final String maxValue;
+
+    FieldMatcher(FieldDescriptor field, RecordFilter filter) {
+      this.field = field;
+      this.values = ImmutableSet.copyOf(filter.getValueList());
+      this.minValue = filter.hasMinValue() ? filter.getMinValue() : null;
+      this.maxValue = filter.hasMaxValue() ? filter.getMaxValue() : null;
+    }
+
+    boolean matches(Message record) {
+      if (!record.hasField(field)) {
+        return false;
+      }
+      String value = (String) record.getField(field);
+      return (values.isEmpty() || values.contains(value))
+          && (minValue == null || value.compareTo(minValue) >= 0)
+          && (maxValue == null || value.compareTo(maxValue) < 0);
+    }
+  }
+}
@@ -0,0 +1,678 @@
+package org.ij.p4p.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.CountingOutputStream;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Exports SqProto tables to Arrow IPC files, which R and Python can memory map without
+ * parsing. The Arrow schema is derived from the table proto: booleans are bit-packed,
+ * numbers are stored with their native widths (uint32 as int64, since Arrow readers
+ * don't all support unsigned types), and strings are utf8. The encoded string fields,
+ * which should be those with few distinct values, such as the code columns in the
+ * CATS data, are dictionary encoded with int32 indices.
+ *
+ * Records are streamed from SQLite and written in record batches, so memory use is
+ * bounded by the batch size plus the dictionaries of the encoded fields. The
+ * dictionary batches are written after the record batches, which the file format
+ * allows since readers locate the dictionaries via the footer.
+ */
+public class ArrowExporter {
+  public static final String FILE_EXTENSION = ".arrow";
+  public static final int BATCH_SIZE = 65536;
+
+  private static final byte[] MAGIC = {'A', 'R', 'R', 'O', 'W', '1'};
+  private static final short METADATA_VERSION_V5 = 4;
+  // MessageHeader union types.
+  private static final byte HEADER_SCHEMA = 1;
+  private static final byte HEADER_DICTIONARY_BATCH = 2;
+  private static final byte HEADER_RECORD_BATCH = 3;
+  // Type union types.
+  private static final byte TYPE_INT = 2;
+  private static final byte TYPE_FLOATING_POINT = 3;
+  private static final byte TYPE_BINARY = 4;
+  private static final byte TYPE_UTF8 = 5;
+  private static final byte TYPE_BOOL = 6;
+  // FloatingPoint precisions.
+  private static final short PRECISION_SINGLE = 1;
+  private static final short PRECISION_DOUBLE = 2;
+
+  private final CountingOutputStream out;
+  private final List<Column> columns;
+  private final List<long[]> dictionaryBlocks = Lists.newArrayList();
+  private final List<long[]> recordBatchBlocks = Lists.newArrayList();
+  private int rowCount = 0;
+
+  /**
+   * Exports each table in the database to a file named after the table, with the
+   * encoded string fields dictionary encoded.
+   */
+  public static void exportTables(SqProto<?> sqProto, File directory,
+      Set<FieldDescriptor> encodedFields) throws SQLException, IOException {
+    directory.mkdirs();
+    for (FieldDescriptor table : sqProto.getDatabaseSchema().getFields()) {
+      exportTable(sqProto, table, new File(directory, table.getName() + FILE_EXTENSION),
+          encodedFields);
+    }
+  }
+
+  /**
+   * Exports a table in the database to an Arrow IPC file.
+   */
+  public static void exportTable(SqProto<?> sqProto, FieldDescriptor table, File file,
+      Set<FieldDescriptor> encodedFields) throws SQLException, IOException {
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    try {
+      final ArrowExporter exporter =
+          new ArrowExporter(out, table.getMessageType(), encodedFields);
+      try {
+        sqProto.readTable(table, new Receiver<Message>() {
+            public void receive(Message record) {
+              exporter.append(record);
+            }
+          });
+      } catch (RuntimeException e) {
+        Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+        throw e;
+      }
+      exporter.finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the file header and schema. Records are appended, and then the file is
+   * completed by calling finish(). String fields in the encoded set are dictionary
+   * encoded, and other fields in the set are ignored.
+   */
+  public ArrowExporter(OutputStream out, Descriptor tableSchema,
+      Set<FieldDescriptor> encodedFields) throws IOException {
+    this.out = new CountingOutputStream(out);
+    this.columns = Lists.newArrayList();
+    int dictionaryId = 0;
+    for (FieldDescriptor field : tableSchema.getFields()) {
+      if (field.getJavaType() == FieldDescriptor.JavaType.STRING
+          && encodedFields.contains(field)) {
+        columns.add(new DictionaryColumn(field, dictionaryId++));
+      } else {
+        columns.add(newColumn(field));
+      }
+    }
+    this.out.write(MAGIC);
+    this.out.write(new byte[2]);
+    FlatBuilder fb = new FlatBuilder(1024);
+    int schema = buildSchema(fb);
+    writeMessage(fb, HEADER_SCHEMA, schema, 0);
+  }
+
+  /**
+   * Adds a record to the current batch, and writes the batch when it is full.
+   */
+  public void append(Message record) {
+    for (Column column : columns) {
+      if (record.hasField(column.field)) {
+        column.append(record.getField(column.field));
+      } else {
+        column.appendNull();
+      }
+    }
+    if (++rowCount == BATCH_SIZE) {
+      try {
+        writeRecordBatch();
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+  }
+
+  /**
+   * Writes the last batch, the dictionaries and the footer.
+   */
+  public void finish() throws IOException {
+    if (rowCount > 0) {
+      writeRecordBatch();
+    }
+    for (Column column : columns) {
+      if (column instanceof DictionaryColumn) {
+        writeDictionaryBatch((DictionaryColumn) column);
+      }
+    }
+    // End of stream marker.
+    writeInt(0xFFFFFFFF);
+    writeInt(0);
+    FlatBuilder fb = new FlatBuilder(1024);
+    int schema = buildSchema(fb);
+    int dictionaries = buildBlocks(fb, dictionaryBlocks);
+    int recordBatches = buildBlocks(fb, recordBatchBlocks);
+    fb.startTable(5);
+    fb.addFieldOffset(3, recordBatches);
+    fb.addFieldOffset(2, dictionaries);
+    fb.addFieldOffset(1, schema);
+    fb.addFieldShort(0, METADATA_VERSION_V5, (short) 0);
+    byte[] footer = fb.finish(fb.endTable());
+    out.write(footer);
+    writeInt(footer.length);
+    out.write(MAGIC);
+    out.flush();
+  }
+
+  /**
+   * Writes the buffers of each column as a record batch, and resets the columns.
+   */
+  private void writeRecordBatch() throws IOException {
+    List<long[]> nodes = Lists.newArrayList();
+    List<ByteBuffer> buffers = Lists.newArrayList();
+    for (Column column : columns) {
+      nodes.add(new long[] {rowCount, column.nullCount});
+      column.addBuffers(buffers);
+    }
+    recordBatchBlocks.add(writeBatch(HEADER_RECORD_BATCH, -1, rowCount, nodes, buffers));
+    for (Column column : columns) {
+      column.reset();
+    }
+    rowCount = 0;
+  }
+
+  /**
+   * Writes the values of a dictionary as a single-column batch of strings.
+   */
+  private void writeDictionaryBatch(DictionaryColumn column) throws IOException {
+    int size = column.dictionary.size();
+    List<long[]> nodes = Lists.newArrayList();
+    nodes.add(new long[] {size, 0});
+    List<ByteBuffer> buffers = Lists.newArrayList();
+    buffers.add(ByteBuffer.allocate(0));
+    column.addDictionaryBuffers(buffers);
+    dictionaryBlocks.add(writeBatch(HEADER_DICTIONARY_BATCH, column.dictionaryId, size,
+        nodes, buffers));
+  }
+
+  /**
+   * Writes a record batch message and its body, and returns the block location.
+   * The batch is wrapped in a dictionary batch if the dictionary id is non-negative.
+   */
+  private long[] writeBatch(byte headerType, int dictionaryId, int length, List<long[]> nodes,
+      List<ByteBuffer> buffers) throws IOException {
+    long bodyLength = 0;
+    long[] bufferOffsets = new long[buffers.size()];
+    for (int i = 0; i < buffers.size(); ++i) {
+      bufferOffsets[i] = bodyLength;
+      bodyLength += align8(buffers.get(i).limit());
+    }
+    FlatBuilder fb = new FlatBuilder(1024);
+    fb.startVector(16, buffers.size(), 8);
+    for (int i = buffers.size() - 1; i >= 0; --i) {
+      fb.prep(8, 16);
+      fb.putLong(buffers.get(i).limit());
+      fb.putLong(bufferOffsets[i]);
+    }
+    int bufferVector = fb.endVector();
+    fb.startVector(16, nodes.size(), 8);
+    for (int i = nodes.size() - 1; i >= 0; --i) {
+      fb.prep(8, 16);
+      fb.putLong(nodes.get(i)[1]);
+      fb.putLong(nodes.get(i)[0]);
+    }
+    int nodeVector = fb.endVector();
+    fb.startTable(4);
+    fb.addFieldLong(0, length, 0);
+    fb.addFieldOffset(2, bufferVector);
+    fb.addFieldOffset(1, nodeVector);
+    int header = fb.endTable();
+    if (dictionaryId >= 0) {
+      fb.startTable(3);
+      fb.addFieldLong(0, dictionaryId, 0);
+      fb.addFieldOffset(1, header);
+      header = fb.endTable();
+    }
+    long offset = out.getCount();
+    long metadataLength = writeMessage(fb, headerType, header, bodyLength);
+    for (ByteBuffer buffer : buffers) {
+      out.write(buffer.array(), 0, buffer.limit());
+      out.write(new byte[align8(buffer.limit()) - buffer.limit()]);
+    }
+    return new long[] {offset, metadataLength, bodyLength};
+  }
+
+  /**
+   * Writes an encapsulated message: a continuation marker, the metadata length,
+   * and the Message flatbuffer padded to 8 bytes. Returns the length of the prefix
+   * and metadata.
+   */
+  private long writeMessage(FlatBuilder fb, byte headerType, int header, long bodyLength)
+      throws IOException {
+    fb.startTable(5);
+    fb.addFieldLong(3, bodyLength, 0);
+    fb.addFieldOffset(2, header);
+    fb.addFieldShort(0, METADATA_VERSION_V5, (short) 0);
+    fb.addFieldByte(1, headerType, (byte) 0);
+    byte[] message = fb.finish(fb.endTable());
+    int paddedLength = align8(message.length);
+    writeInt(0xFFFFFFFF);
+    writeInt(paddedLength);
+    out.write(message);
+    out.write(new byte[paddedLength - message.length]);
+    return 8 + paddedLength;
+  }
+
+  /**
+   * Builds the Schema table, with a Field for each column.
+   */
+  private int buildSchema(FlatBuilder fb) {
+    int[] fields = new int[columns.size()];
+    for (int i = 0; i < columns.size(); ++i) {
+      fields[i] = columns.get(i).buildField(fb);
+    }
+    int fieldVector = fb.createOffsetVector(fields);
+    fb.startTable(4);
+    fb.addFieldOffset(1, fieldVector);
+    return fb.endTable();
+  }
+
+  /**
+   * Builds a vector of Block structs, each of which is {offset, metadata length, body length}.
+   */
+  private static int buildBlocks(FlatBuilder fb, List<long[]> blocks) {
+    fb.startVector(24, blocks.size(), 8);
+    for (int i = blocks.size() - 1; i >= 0; --i) {
+      long[] block = blocks.get(i);
+      fb.prep(8, 24);
+      fb.putLong(block[2]);
+      fb.pad(4);
+      fb.putInt((int) block[1]);
+      fb.putLong(block[0]);
+    }
+    return fb.endVector();
+  }
+
+  /**
+   * Builds an Int type table.
+   */
+  private static int buildIntType(FlatBuilder fb, int bitWidth) {
+    fb.startTable(2);
+    fb.addFieldInt(0, bitWidth, 0);
+    fb.addFieldBoolean(1, true, false);
+    return fb.endTable();
+  }
+
+  private void writeInt(int x) throws IOException {
+    out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(x).array());
+  }
+
+  private static int align8(int length) {
+    return (length + 7) & ~7;
+  }
+
+  /**
+   * Returns a column for the field, based on the proto type.
+   */
+  private static Column newColumn(FieldDescriptor field) {
+    switch (field.getJavaType()) {
+      case BOOLEAN:
+        return new BooleanColumn(field);
+      case INT:
+        if (field.getType() == FieldDescriptor.Type.UINT32
+            || field.getType() == FieldDescriptor.Type.FIXED32) {
+          return new FixedWidthColumn(field, 8);
+        }
+        return new FixedWidthColumn(field, 4);
+      case ENUM:
+        return new FixedWidthColumn(field, 4);
+      case LONG:
+      case DOUBLE:
+        return new FixedWidthColumn(field, 8);
+      case FLOAT:
+        return new FixedWidthColumn(field, 4);
+      case STRING:
+        return new Utf8Column(field);
+      case BYTE_STRING:
+        return new BinaryColumn(field);
+      default:
+        throw new RuntimeException("javaType=" + field.getJavaType());
+    }
+  }
+
+  /**
+   * Accumulates the values of a field for the current batch.
+   */
+  private abstract static class Column {
+    final FieldDescriptor field;
+    byte[] validity = new byte[64];
+    int length = 0;
+    int nullCount = 0;
+
+    Column(FieldDescriptor field) {
+      this.field = field;
+    }
+
+    void append(Object value) {
+      validity = ensureCapacity(validity, (length >> 3) + 1);
+      setBit(validity, length);
+      appendValue(value);
+      ++length;
+    }
+
+    void appendNull() {
+      validity = ensureCapacity(validity, (length >> 3) + 1);
+      ++nullCount;
+      appendValue(null);
+      ++length;
+    }
+
+    void reset() {
+      Arrays.fill(validity, (byte) 0);
+      length = 0;
+      nullCount = 0;
+    }
+
+    /**
+     * Adds the validity buffer, which may be empty if there are no nulls.
+     */
+    void addBuffers(List<ByteBuffer> buffers) {
+      if (nullCount == 0) {
+        buffers.add(ByteBuffer.allocate(0));
+      } else {
+        buffers.add(ByteBuffer.wrap(validity, 0, (length + 7) >> 3));
+      }
+    }
+
+    int buildField(FlatBuilder fb) {
+      int name = fb.createString(field.getName());
+      int type = buildType(fb);
+      int dictionary = buildDictionary(fb);
+      int children = fb.createOffsetVector(new int[0]);
+      fb.startTable(7);
+      fb.addFieldOffset(5, children);
+      fb.addFieldOffset(4, dictionary);
+      fb.addFieldOffset(3, type);
+      fb.addFieldOffset(0, name);
+      fb.addFieldBoolean(1, true, false);
+      fb.addFieldByte(2, getTypeType(), (byte) 0);
+      return fb.endTable();
+    }
+
+    int buildDictionary(FlatBuilder fb) {
+      return 0;
+    }
+
+    /**
+     * Appends a value, or a placeholder if the value is null.
+     */
+    abstract void appendValue(Object value);
+
+    abstract byte getTypeType();
+
+    abstract int buildType(FlatBuilder fb);
+  }
+
+  private static class BooleanColumn extends Column {
+    byte[] values = new byte[64];
+
+    BooleanColumn(FieldDescriptor field) {
+      super(field);
+    }
+
+    void appendValue(Object value) {
+      values = ensureCapacity(values, (length >> 3) + 1);
+      if (value != null && (Boolean) value) {
+        setBit(values, length);
+      }
+    }
+
+    void reset() {
+      super.reset();
+      Arrays.fill(values, (byte) 0);
+    }
+
+    void addBuffers(List<ByteBuffer> buffers) {
+      super.addBuffers(buffers);
+      buffers.add(ByteBuffer.wrap(values, 0, (length + 7) >> 3));
+    }
+
+    byte getTypeType() {
+      return TYPE_BOOL;
+    }
+
+    int buildType(FlatBuilder fb) {
+      fb.startTable(0);
+      return fb.endTable();
+    }
+  }
+
+  private static class FixedWidthColumn extends Column {
+    final int width;
+    ByteBuffer values;
+
+    FixedWidthColumn(FieldDescriptor field, int width) {
+      super(field);
+      this.width = width;
+      this.values = ByteBuffer.allocate(64 * width).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void appendValue(Object value) {
+      if (values.remaining() < width) {
+        ByteBuffer grown = ByteBuffer.allocate(values.capacity() * 2)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        values.flip();
+        values = grown.put(values);
+      }
+      if (value == null) {
+        values.position(values.position() + width);
+      } else {
+        putValue(value);
+      }
+    }
+
+    void putValue(Object value) {
+      switch (field.getJavaType()) {
+        case DOUBLE:
+          values.putDouble((Double) value);
+          break;
+        case FLOAT:
+          values.putFloat((Float) value);
+          break;
+        case ENUM:
+          values.putInt(((EnumValueDescriptor) value).getNumber());
+          break;
+        case INT:
+          if (width == 8) {
+            values.putLong(((Integer) value) & 0xFFFFFFFFL);
+          } else {
+            values.putInt((Integer) value);
+          }
+          break;
+        default:
+          values.putLong((Long) value);
+      }
+    }
+
+    void reset() {
+      super.reset();
+      values.clear();
+      Arrays.fill(values.array(), (byte) 0);
+    }
+
+    void addBuffers(List<ByteBuffer> buffers) {
+      super.addBuffers(buffers);
+      buffers.add(ByteBuffer.wrap(values.array(), 0, values.position()));
+    }
+
+    byte getTypeType() {
+      return field.getJavaType() == FieldDescriptor.JavaType.DOUBLE
+          || field.getJavaType() == FieldDescriptor.JavaType.FLOAT
+          ? TYPE_FLOATING_POINT : TYPE_INT;
+    }
+
+    int buildType(FlatBuilder fb) {
+      if (getTypeType() == TYPE_INT) {
+        return buildIntType(fb, width * 8);
+      }
+      fb.startTable(1);
+      fb.addFieldShort(0, width == 8 ? PRECISION_DOUBLE : PRECISION_SINGLE, (short) 0);
+      return fb.endTable();
+    }
+  }
+
+  /**
+   * Stores variable length values as int32 offsets into a data buffer.
+   */
+  private static class BinaryColumn extends Column {
+    ByteBuffer offsets = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer data = ByteBuffer.allocate(1024);
+
+    BinaryColumn(FieldDescriptor field) {
+      super(field);
+      offsets.putInt(0);
+    }
+
+    void appendValue(Object value) {
+      if (value != null) {
+        appendBytes(((ByteString) value).toByteArray());
+      }
+      appendOffset();
+    }
+
+    void appendBytes(byte[] bytes) {
+      if (data.remaining() < bytes.length) {
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(data.capacity() * 2,
+            data.position() + bytes.length));
+        data.flip();
+        data = grown.put(data);
+      }
+      data.put(bytes);
+    }
+
+    void appendOffset() {
+      if (offsets.remaining() < 4) {
+        ByteBuffer grown = ByteBuffer.allocate(offsets.capacity() * 2)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        offsets.flip();
+        offsets = grown.put(offsets);
+      }
+      offsets.putInt(data.position());
+    }
+
+    void reset() {
+      super.reset();
+      offsets.clear();
+      offsets.putInt(0);
+      data.clear();
+    }
+
+    void addBuffers(List<ByteBuffer> buffers) {
+      super.addBuffers(buffers);
+      buffers.add(ByteBuffer.wrap(offsets.array(), 0, offsets.position()));
+      buffers.add(ByteBuffer.wrap(data.array(), 0, data.position()));
+    }
+
+    byte getTypeType() {
+      return TYPE_BINARY;
+    }
+
+    int buildType(FlatBuilder fb) {
+      fb.startTable(0);
+      return fb.endTable();
+    }
+  }
+
+  /**
+   * Stores strings as UTF-8 bytes, with offsets like binary values.
+   */
+  private static class Utf8Column extends BinaryColumn {
+    Utf8Column(FieldDescriptor field) {
+      super(field);
+    }
+
+    void appendValue(Object value) {
+      if (value != null) {
+        appendBytes(((String) value).getBytes(Charsets.UTF_8));
+      }
+      appendOffset();
+    }
+
+    byte getTypeType() {
+      return TYPE_UTF8;
+    }
+  }
+
+  /**
+   * Stores strings as int32 indices into a dictionary, which accumulates over all
+   * of the batches in the file.
+   */
+  private static class DictionaryColumn extends FixedWidthColumn {
+    final int dictionaryId;
+    final Map<String, Integer> dictionary = Maps.newHashMap();
+    final BinaryColumn dictionaryValues;
+
+    DictionaryColumn(FieldDescriptor field, int dictionaryId) {
+      super(field, 4);
+      this.dictionaryId = dictionaryId;
+      this.dictionaryValues = new BinaryColumn(field);
+    }
+
+    void putValue(Object value) {
+      Integer index = dictionary.get(value);
+      if (index == null) {
+        index = dictionary.size();
+        dictionary.put((String) value, index);
+        dictionaryValues.appendBytes(((String) value).getBytes(Charsets.UTF_8));
+        dictionaryValues.appendOffset();
+      }
+      values.putInt(index);
+    }
+
+    void addDictionaryBuffers(List<ByteBuffer> buffers) {
+      buffers.add(ByteBuffer.wrap(
+          dictionaryValues.offsets.array(), 0, dictionaryValues.offsets.position()));
+      buffers.add(ByteBuffer.wrap(
+          dictionaryValues.data.array(), 0, dictionaryValues.data.position()));
+    }
+
+    byte getTypeType() {
+      return TYPE_UTF8;
+    }
+
+    int buildType(FlatBuilder fb) {
+      fb.startTable(0);
+      return fb.endTable();
+    }
+
+    int buildDictionary(FlatBuilder fb) {
+      int indexType = buildIntType(fb, 32);
+      fb.startTable(4);
+      fb.addFieldLong(0, dictionaryId, 0);
+      fb.addFieldOffset(1, indexType);
+      return fb.endTable();
+    }
+  }
+
+  private static void setBit(byte[] bits, int i) {
+    bits[i >> 3] |= 1 << (i & 7);
+  }
+
+  private static byte[] ensureCapacity(byte[] bytes, int minLength) {
+    return bytes.length >= minLength
+        ? bytes : Arrays.copyOf(bytes, Math.max(minLength, 2 * bytes.length));
+  }
+}
@@ -0,0 +1,14 @@
+package org.ij.p4p.util;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.util.List;
+
+/**
+ * Receives records a batch at a time, along with the field descriptor of their table
+ * in the database schema. The list is reused for the next batch once receive()
+ * returns, so receivers copy what they keep.
+ */
+public interface BatchReceiver<T> {
+  public void receive(FieldDescriptor table, List<T> records);
+}
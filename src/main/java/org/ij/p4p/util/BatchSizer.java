@@ -0,0 +1,131 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Maps;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the number of records in each batch of a table. A fixed sizer always
+ * returns the same size. An adaptive sizer measures, per table, the CSV bytes per
+ * record and the time the receiver takes per record, and sizes the next batch so
+ * that it takes a small fraction of the available heap and about a target time to
+ * receive, within bounds. Wide tables get smaller batches than narrow ones, and
+ * batches shrink when the heap is short or the inserts slow down.
+ */
+public class BatchSizer {
+  public static final int DEFAULT_MIN_SIZE = 1000;
+  public static final int DEFAULT_MAX_SIZE = 50000;
+  public static final long DEFAULT_TARGET_MILLIS = 500;
+  // Parsed records take several times their text on the heap, and a batch may be
+  // held in both text and typed form.
+  static final int HEAP_BYTES_PER_TEXT_BYTE = 8;
+  // The fraction of the available heap that a batch may take.
+  static final int HEAP_FRACTION = 16;
+
+  private final int minSize;
+  private final int maxSize;
+  private final long targetNanos;
+  private final Supplier<Long> availableHeap;
+  private final Map<FieldDescriptor, TableStats> tableStats = Maps.newHashMap();
+
+  /**
+   * Measurements of one table, as moving averages.
+   */
+  private static class TableStats {
+    double bytesPerRecord = -1;
+    double nanosPerRecord = -1;
+    int lastSize;
+  }
+
+  BatchSizer(int minSize, int maxSize, long targetMillis, Supplier<Long> availableHeap) {
+    checkArgument(0 < minSize && minSize <= maxSize,
+        "Invalid batch size bounds: [%s, %s]", minSize, maxSize);
+    this.minSize = minSize;
+    this.maxSize = maxSize;
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+    this.availableHeap = availableHeap;
+  }
+
+  /**
+   * Returns a sizer that always returns the batch size.
+   */
+  public static BatchSizer fixed(int batchSize) {
+    return new BatchSizer(batchSize, batchSize, DEFAULT_TARGET_MILLIS, null);
+  }
+
+  /**
+   * Returns a sizer that adapts to the tables, the heap and the receiver, with batch
+   * sizes between the bounds.
+   */
+  public static BatchSizer adaptive(int minSize, int maxSize) {
+    return new BatchSizer(minSize, maxSize, DEFAULT_TARGET_MILLIS, new Supplier<Long>() {
+        public Long get() {
+          Runtime runtime = Runtime.getRuntime();
+          return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        }
+      });
+  }
+
+  /**
+   * Returns the size of the next batch of the table. The first batch of a table is
+   * the minimum size, and each batch is at most twice the size of the last.
+   */
+  public int getBatchSize(FieldDescriptor table) {
+    if (minSize == maxSize) {
+      return minSize;
+    }
+    TableStats stats = getStats(table);
+    double size = Math.min(maxSize, 2.0 * stats.lastSize);
+    if (stats.bytesPerRecord > 0) {
+      size = Math.min(size, availableHeap.get()
+          / (HEAP_FRACTION * HEAP_BYTES_PER_TEXT_BYTE * stats.bytesPerRecord));
+    }
+    if (stats.nanosPerRecord > 0) {
+      size = Math.min(size, targetNanos / stats.nanosPerRecord);
+    }
+    stats.lastSize = Math.max(minSize, (int) size);
+    return stats.lastSize;
+  }
+
+  /**
+   * Records the number of CSV bytes that a batch of records was parsed from.
+   */
+  public void recordParsed(FieldDescriptor table, int recordCount, long byteCount) {
+    if (recordCount > 0 && byteCount > 0) {
+      TableStats stats = getStats(table);
+      stats.bytesPerRecord = average(stats.bytesPerRecord, (double) byteCount / recordCount);
+    }
+  }
+
+  /**
+   * Records the time the receiver took for a batch of records.
+   */
+  public void recordReceived(FieldDescriptor table, int recordCount, long nanos) {
+    if (recordCount > 0 && nanos > 0) {
+      TableStats stats = getStats(table);
+      stats.nanosPerRecord = average(stats.nanosPerRecord, (double) nanos / recordCount);
+    }
+  }
+
+  private TableStats getStats(FieldDescriptor table) {
+    TableStats stats = tableStats.get(table);
+    if (stats == null) {
+      stats = new TableStats();
+      stats.lastSize = minSize / 2;
+      tableStats.put(table, stats);
+    }
+    return stats;
+  }
+
+  /**
+   * Moves the average halfway to the new value, or starts it at the value.
+   */
+  private static double average(double average, double value) {
+    return average < 0 ? value : (average + value) / 2;
+  }
+}
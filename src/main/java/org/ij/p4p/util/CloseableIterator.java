@@ -0,0 +1,11 @@
+package org.ij.p4p.util;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator that holds resources, such as a result set or temporary files, which
+ * are released by closing it. Closing before the end terminates the iteration early.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+}
@@ -0,0 +1,244 @@
+package org.ij.p4p.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects statistics of each column of a database as batches of records pass
+ * through, and passes the batches on. Each column keeps a null count, the smallest and
+ * largest values, a HyperLogLog sketch for estimating the number of distinct values,
+ * and Misra-Gries counters for the most frequent values, so memory use doesn't grow
+ * with the number of records.
+ */
+public class ColumnProfiler<T extends Message> implements Receiver<T> {
+  // Number of most frequent values reported per column.
+  public static final int TOP_VALUE_COUNT = 10;
+  // Number of frequent value counters kept per column. Counts are undercounted by at
+  // most the record count divided by this.
+  private static final int COUNTER_COUNT = 100;
+  // HyperLogLog registers, as a power of two. 4096 registers give about 1.6% error.
+  private static final int REGISTER_BITS = 12;
+
+  private final Map<FieldDescriptor, TableProfile> tables = Maps.newLinkedHashMap();
+  private final Receiver<T> recv;
+
+  /**
+   * Statistics of the columns of a table.
+   */
+  private static class TableProfile {
+    final Map<FieldDescriptor, ColumnProfile> columns = Maps.newLinkedHashMap();
+    long recordCount = 0;
+  }
+
+  public ColumnProfiler(Descriptor databaseSchema, Receiver<T> recv) {
+    this.recv = recv;
+    for (FieldDescriptor table : databaseSchema.getFields()) {
+      TableProfile profile = new TableProfile();
+      for (FieldDescriptor field : table.getMessageType().getFields()) {
+        profile.columns.put(field, new ColumnProfile(field));
+      }
+      tables.put(table, profile);
+    }
+  }
+
+  public void receive(T batch) {
+    for (Map.Entry<FieldDescriptor, TableProfile> e : tables.entrySet()) {
+      TableProfile profile = e.getValue();
+      for (Message record : (List<Message>) batch.getField(e.getKey())) {
+        ++profile.recordCount;
+        for (Map.Entry<FieldDescriptor, Object> value : record.getAllFields().entrySet()) {
+          profile.columns.get(value.getKey()).add(value.getValue());
+        }
+      }
+    }
+    recv.receive(batch);
+  }
+
+  /**
+   * Returns the statistics collected so far.
+   */
+  public SqMetadata getMetadata() {
+    SqMetadata.Builder b = SqMetadata.newBuilder();
+    for (Map.Entry<FieldDescriptor, TableProfile> e : tables.entrySet()) {
+      String tableName = e.getKey().getName();
+      TableProfile profile = e.getValue();
+      for (ColumnProfile column : profile.columns.values()) {
+        String columnName = column.field.getName();
+        SqColumnStats.Builder stats = b.addColumnStatsBuilder()
+            .setTableName(tableName)
+            .setColumnName(columnName)
+            .setRecordCount(profile.recordCount)
+            .setNullCount(profile.recordCount - column.count)
+            .setDistinctEstimate(column.estimateDistinct());
+        column.setMinMax(stats);
+        int rank = 0;
+        for (Map.Entry<Object, long[]> top : column.getTopValues()) {
+          b.addColumnTopValuesBuilder()
+              .setTableName(tableName)
+              .setColumnName(columnName)
+              .setRank(++rank)
+              .setValue(toText(top.getKey()))
+              .setValueCount(top.getValue()[0]);
+        }
+      }
+    }
+    return b.build();
+  }
+
+  /**
+   * The statistics of one column.
+   */
+  private static class ColumnProfile {
+    final FieldDescriptor field;
+    final byte[] registers = new byte[1 << REGISTER_BITS];
+    final Map<Object, long[]> counters = Maps.newHashMap();
+    long count = 0;
+    long minInteger = Long.MAX_VALUE;
+    long maxInteger = Long.MIN_VALUE;
+    double minReal = Double.POSITIVE_INFINITY;
+    double maxReal = Double.NEGATIVE_INFINITY;
+    String minText;
+    String maxText;
+
+    ColumnProfile(FieldDescriptor field) {
+      this.field = field;
+    }
+
+    void add(Object value) {
+      ++count;
+      long hash;
+      switch (field.getJavaType()) {
+        case INT:
+        case LONG:
+        case BOOLEAN:
+        case ENUM:
+          long integer = Numbers.toLong(field, value);
+          minInteger = Math.min(minInteger, integer);
+          maxInteger = Math.max(maxInteger, integer);
+          hash = Numbers.mix(integer);
+          break;
+        case FLOAT:
+        case DOUBLE:
+          double real = ((Number) value).doubleValue();
+          minReal = Math.min(minReal, real);
+          maxReal = Math.max(maxReal, real);
+          hash = Numbers.mix(Double.doubleToLongBits(real));
+          break;
+        case STRING:
+          String text = (String) value;
+          if (minText == null || text.compareTo(minText) < 0) {
+            minText = text;
+          }
+          if (maxText == null || text.compareTo(maxText) > 0) {
+            maxText = text;
+          }
+          hash = Hashing.murmur3_128().hashString(text, Charsets.UTF_8).asLong();
+          break;
+        default:
+          hash = Hashing.murmur3_128().hashBytes(((ByteString) value).toByteArray()).asLong();
+      }
+      // The top bits pick the register, and the rest count leading zeros.
+      int register = (int) (hash >>> (64 - REGISTER_BITS));
+      long rest = (hash << REGISTER_BITS) | (1L << (REGISTER_BITS - 1));
+      int rank = Long.numberOfLeadingZeros(rest) + 1;
+      if (rank > registers[register]) {
+        registers[register] = (byte) rank;
+      }
+      count(value);
+    }
+
+    /**
+     * Counts a value with the Misra-Gries algorithm: when all counters are taken by
+     * other values, every counter is decremented instead, and those at zero are freed.
+     */
+    private void count(Object value) {
+      long[] counter = counters.get(value);
+      if (counter != null) {
+        ++counter[0];
+      } else if (counters.size() < COUNTER_COUNT) {
+        counters.put(value, new long[] {1});
+      } else {
+        for (Iterator<long[]> it = counters.values().iterator(); it.hasNext();) {
+          if (--it.next()[0] == 0) {
+            it.remove();
+          }
+        }
+      }
+    }
+
+    long estimateDistinct() {
+      int m = registers.length;
+      double sum = 0;
+      int zeros = 0;
+      for (byte register : registers) {
+        sum += Math.scalb(1.0, -register);
+        if (register == 0) {
+          ++zeros;
+        }
+      }
+      double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+      if (estimate <= 2.5 * m && zeros > 0) {
+        // Linear counting is more accurate for small cardinalities.
+        estimate = m * Math.log((double) m / zeros);
+      }
+      return Math.min(Math.round(estimate), count);
+    }
+
+    void setMinMax(SqColumnStats.Builder stats) {
+      if (count == 0) {
+        return;
+      }
+      switch (field.getJavaType()) {
+        case INT:
+        case LONG:
+        case BOOLEAN:
+        case ENUM:
+          stats.setMinInteger(minInteger).setMaxInteger(maxInteger);
+          break;
+        case FLOAT:
+        case DOUBLE:
+          stats.setMinReal(minReal).setMaxReal(maxReal);
+          break;
+        case STRING:
+          stats.setMinText(minText).setMaxText(maxText);
+          break;
+        default:
+          break;
+      }
+    }
+
+    /**
+     * Returns the most frequent values, most frequent first.
+     */
+    List<Map.Entry<Object, long[]>> getTopValues() {
+      List<Map.Entry<Object, long[]>> top = Lists.newArrayList(counters.entrySet());
+      Collections.sort(top, new Comparator<Map.Entry<Object, long[]>>() {
+        public int compare(Map.Entry<Object, long[]> a, Map.Entry<Object, long[]> b) {
+          int c = Long.compare(b.getValue()[0], a.getValue()[0]);
+          return c != 0 ? c : toText(a.getKey()).compareTo(toText(b.getKey()));
+        }
+      });
+      return top.subList(0, Math.min(TOP_VALUE_COUNT, top.size()));
+    }
+  }
+
+  private static String toText(Object value) {
+    if (value instanceof EnumValueDescriptor) {
+      return ((EnumValueDescriptor) value).getName();
+    }
+    return value.toString();
+  }
+}
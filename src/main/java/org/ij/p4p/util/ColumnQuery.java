@@ -0,0 +1,491 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Ordering;
+import com.google.common.math.LongMath;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Computes filtered group-by sums over a ColumnTable, optionally joined to a second
+ * table on an integer key through a LongHashIndex. Row ranges are aggregated in
+ * parallel with fork-join, and the partial sums are merged.
+ *
+ * Groups are keyed on string columns, or on prefixes of string columns (such as the
+ * year of a YYYYMMDD date), which are mapped once per dictionary entry rather than
+ * once per row. As in SQL, rows without a joined record are dropped, and null values
+ * are left out of sums.
+ */
+public class ColumnQuery {
+  static final int SPLIT_ROW_COUNT = 1 << 14;
+  private static final ForkJoinPool POOL = new ForkJoinPool();
+
+  private final ColumnTable table;
+  private ColumnTable joinedTable;
+  private ColumnTable.LongColumn joinKey;
+  private LongHashIndex joinIndex;
+  private final List<RowFilter> filters = Lists.newArrayList();
+  private final List<GroupKey> groupKeys = Lists.newArrayList();
+  private final List<Measure> measures = Lists.newArrayList();
+  private long groupKeyRange = 1;
+
+  public ColumnQuery(ColumnTable table) {
+    this.table = table;
+  }
+
+  /**
+   * Refers to a column of the queried table, or of the joined table.
+   */
+  public static class Ref {
+    final String fieldName;
+    final boolean joined;
+
+    private Ref(String fieldName, boolean joined) {
+      this.fieldName = fieldName;
+      this.joined = joined;
+    }
+  }
+
+  public static Ref column(String fieldName) {
+    return new Ref(fieldName, false);
+  }
+
+  public static Ref joined(String fieldName) {
+    return new Ref(fieldName, true);
+  }
+
+  /**
+   * The result for a group: the key values, the number of rows, and the sums in the
+   * order they were added to the query.
+   */
+  public static class Group {
+    private final List<String> keys;
+    private final long rowCount;
+    private final double[] sums;
+
+    private Group(List<String> keys, long rowCount, double[] sums) {
+      this.keys = keys;
+      this.rowCount = rowCount;
+      this.sums = sums;
+    }
+
+    public List<String> getKeys() {
+      return keys;
+    }
+
+    public long getRowCount() {
+      return rowCount;
+    }
+
+    public double getSum(int index) {
+      return sums[index];
+    }
+
+    @Override
+    public String toString() {
+      return keys + " " + rowCount + " " + Arrays.toString(sums);
+    }
+  }
+
+  /**
+   * Inner joins each row to the rows of the other table with the same key.
+   */
+  public ColumnQuery join(String fieldName, ColumnTable joinedTable, String joinedFieldName) {
+    checkState(this.joinedTable == null, "Only one join is supported.");
+    this.joinKey = table.getLongColumn(fieldName);
+    this.joinIndex = joinedTable.getIndex(joinedFieldName);
+    this.joinedTable = joinedTable;
+    return this;
+  }
+
+  public ColumnQuery whereGreaterThan(Ref ref, final double value) {
+    final NumericColumn column = getNumericColumn(ref);
+    filters.add(new RowFilter() {
+        public boolean accept(int row, int joinedRow) {
+          int r = column.joined ? joinedRow : row;
+          return !column.isNull(r) && column.get(r) > value;
+        }
+      });
+    return this;
+  }
+
+  public ColumnQuery whereIn(Ref ref, Collection<String> values) {
+    ColumnTable.StringColumn column = getStringColumn(ref);
+    Set<String> valueSet = ImmutableSet.copyOf(values);
+    boolean[] accepted = new boolean[column.dictionary.size()];
+    for (int code = 0; code < accepted.length; ++code) {
+      accepted[code] = valueSet.contains(column.dictionary.get(code));
+    }
+    filters.add(new CodeFilter(column, ref.joined, accepted));
+    return this;
+  }
+
+  /**
+   * Keeps rows where the prefix of the column is between low and high, inclusive.
+   */
+  public ColumnQuery wherePrefixBetween(Ref ref, int length, String low, String high) {
+    ColumnTable.StringColumn column = getStringColumn(ref);
+    boolean[] accepted = new boolean[column.dictionary.size()];
+    for (int code = 0; code < accepted.length; ++code) {
+      String prefix = prefix(column.dictionary.get(code), length);
+      accepted[code] = prefix.compareTo(low) >= 0 && prefix.compareTo(high) <= 0;
+    }
+    filters.add(new CodeFilter(column, ref.joined, accepted));
+    return this;
+  }
+
+  public ColumnQuery groupBy(Ref ref) {
+    ColumnTable.StringColumn column = getStringColumn(ref);
+    int[] groupCodes = new int[column.dictionary.size()];
+    for (int code = 0; code < groupCodes.length; ++code) {
+      groupCodes[code] = code;
+    }
+    return addGroupKey(new GroupKey(column, ref.joined, groupCodes, column.dictionary));
+  }
+
+  /**
+   * Groups on the first characters of a column, like substr(column, 1, length).
+   */
+  public ColumnQuery groupByPrefix(Ref ref, int length) {
+    ColumnTable.StringColumn column = getStringColumn(ref);
+    Map<String, Integer> prefixCodes = Maps.newHashMap();
+    List<String> labels = Lists.newArrayList();
+    int[] groupCodes = new int[column.dictionary.size()];
+    for (int code = 0; code < groupCodes.length; ++code) {
+      String prefix = prefix(column.dictionary.get(code), length);
+      Integer groupCode = prefixCodes.get(prefix);
+      if (groupCode == null) {
+        groupCode = labels.size();
+        prefixCodes.put(prefix, groupCode);
+        labels.add(prefix);
+      }
+      groupCodes[code] = groupCode;
+    }
+    return addGroupKey(new GroupKey(column, ref.joined, groupCodes, labels));
+  }
+
+  public ColumnQuery sum(Ref ref) {
+    measures.add(new Measure(getNumericColumn(ref), null, 1));
+    return this;
+  }
+
+  /**
+   * Sums the product of two columns, multiplied by a constant scale.
+   */
+  public ColumnQuery sumProduct(Ref a, Ref b, double scale) {
+    measures.add(new Measure(getNumericColumn(a), getNumericColumn(b), scale));
+    return this;
+  }
+
+  /**
+   * Runs the query on a shared fork-join pool.
+   */
+  public List<Group> execute() {
+    return execute(POOL);
+  }
+
+  /**
+   * Runs the query on the given pool, and returns the groups ordered by key.
+   */
+  public List<Group> execute(ForkJoinPool pool) {
+    GroupSums sums = pool.invoke(new AggregateTask(0, table.getRowCount()));
+    List<Group> groups = Lists.newArrayListWithCapacity(sums.size);
+    for (int slot = 0; slot < sums.keys.length; ++slot) {
+      if (sums.counts[slot] == 0) {
+        continue;
+      }
+      String[] keys = new String[groupKeys.size()];
+      long key = sums.keys[slot];
+      for (int i = groupKeys.size() - 1; i >= 0; --i) {
+        GroupKey groupKey = groupKeys.get(i);
+        int code = (int) (key % groupKey.range());
+        key /= groupKey.range();
+        keys[i] = code < groupKey.labels.size() ? groupKey.labels.get(code) : null;
+      }
+      groups.add(new Group(Collections.unmodifiableList(Arrays.asList(keys)),
+          sums.counts[slot], Arrays.copyOfRange(
+              sums.sums, slot * measures.size(), (slot + 1) * measures.size())));
+    }
+    final Comparator<Iterable<String>> keyOrder =
+        Ordering.<String>natural().nullsFirst().lexicographical();
+    Collections.sort(groups, new Comparator<Group>() {
+        public int compare(Group a, Group b) {
+          return keyOrder.compare(a.keys, b.keys);
+        }
+      });
+    return groups;
+  }
+
+  private ColumnQuery addGroupKey(GroupKey groupKey) {
+    groupKeyRange = LongMath.checkedMultiply(groupKeyRange, groupKey.range());
+    groupKeys.add(groupKey);
+    return this;
+  }
+
+  private ColumnTable.Column getColumn(Ref ref) {
+    if (ref.joined) {
+      checkState(joinedTable != null, "Join before referring to joined columns.");
+      return joinedTable.getColumn(ref.fieldName);
+    }
+    return table.getColumn(ref.fieldName);
+  }
+
+  private ColumnTable.StringColumn getStringColumn(Ref ref) {
+    ColumnTable.Column column = getColumn(ref);
+    checkArgument(column instanceof ColumnTable.StringColumn,
+        "Not a string column: %s", ref.fieldName);
+    return (ColumnTable.StringColumn) column;
+  }
+
+  private NumericColumn getNumericColumn(Ref ref) {
+    ColumnTable.Column column = getColumn(ref);
+    checkArgument(!(column instanceof ColumnTable.StringColumn),
+        "Not a numeric column: %s", ref.fieldName);
+    return new NumericColumn(column, ref.joined);
+  }
+
+  private static String prefix(String value, int length) {
+    return value.length() > length ? value.substring(0, length) : value;
+  }
+
+  private interface RowFilter {
+    boolean accept(int row, int joinedRow);
+  }
+
+  /**
+   * Accepts rows by the dictionary code of a string column.
+   */
+  private static class CodeFilter implements RowFilter {
+    final ColumnTable.StringColumn column;
+    final boolean joined;
+    final boolean[] accepted;
+
+    CodeFilter(ColumnTable.StringColumn column, boolean joined, boolean[] accepted) {
+      this.column = column;
+      this.joined = joined;
+      this.accepted = accepted;
+    }
+
+    public boolean accept(int row, int joinedRow) {
+      int code = column.codes[joined ? joinedRow : row];
+      return code >= 0 && accepted[code];
+    }
+  }
+
+  /**
+   * Maps the dictionary codes of a string column to group codes. Nulls get the code
+   * after the last label.
+   */
+  private static class GroupKey {
+    final ColumnTable.StringColumn column;
+    final boolean joined;
+    final int[] groupCodes;
+    final List<String> labels;
+
+    GroupKey(ColumnTable.StringColumn column, boolean joined, int[] groupCodes,
+        List<String> labels) {
+      this.column = column;
+      this.joined = joined;
+      this.groupCodes = groupCodes;
+      this.labels = labels;
+    }
+
+    int range() {
+      return labels.size() + 1;
+    }
+
+    int getCode(int row, int joinedRow) {
+      int code = column.codes[joined ? joinedRow : row];
+      return code < 0 ? labels.size() : groupCodes[code];
+    }
+  }
+
+  /**
+   * Reads an integer or floating point column as doubles.
+   */
+  private static class NumericColumn {
+    final ColumnTable.Column column;
+    final long[] longs;
+    final double[] doubles;
+    final boolean joined;
+
+    NumericColumn(ColumnTable.Column column, boolean joined) {
+      this.column = column;
+      this.longs = column instanceof ColumnTable.LongColumn
+          ? ((ColumnTable.LongColumn) column).values : null;
+      this.doubles = column instanceof ColumnTable.DoubleColumn
+          ? ((ColumnTable.DoubleColumn) column).values : null;
+      this.joined = joined;
+    }
+
+    boolean isNull(int row) {
+      return column.isNull(row);
+    }
+
+    double get(int row) {
+      return doubles != null ? doubles[row] : longs[row];
+    }
+  }
+
+  private static class Measure {
+    final NumericColumn a;
+    final NumericColumn b;
+    final double scale;
+
+    Measure(NumericColumn a, NumericColumn b, double scale) {
+      this.a = a;
+      this.b = b;
+      this.scale = scale;
+    }
+
+    /**
+     * Adds the value for the row to the sum, unless it's null.
+     */
+    void addTo(double[] sums, int index, int row, int joinedRow) {
+      int ra = a.joined ? joinedRow : row;
+      if (a.isNull(ra)) {
+        return;
+      }
+      if (b == null) {
+        sums[index] += a.get(ra);
+        return;
+      }
+      int rb = b.joined ? joinedRow : row;
+      if (!b.isNull(rb)) {
+        sums[index] += a.get(ra) * b.get(rb) * scale;
+      }
+    }
+  }
+
+  /**
+   * Row counts and sums by group key, in open addressing arrays. Slots with a zero
+   * count are empty.
+   */
+  private static class GroupSums {
+    final int measureCount;
+    long[] keys = new long[16];
+    long[] counts = new long[16];
+    double[] sums;
+    int size = 0;
+
+    GroupSums(int measureCount) {
+      this.measureCount = measureCount;
+      sums = new double[keys.length * measureCount];
+    }
+
+    /**
+     * Returns the slot for the key, adding it if it's not present.
+     */
+    int getSlot(long key) {
+      int mask = keys.length - 1;
+      int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+      while (counts[slot] != 0 && keys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      if (counts[slot] == 0) {
+        if (2 * (size + 1) > keys.length) {
+          grow();
+          return getSlot(key);
+        }
+        keys[slot] = key;
+        ++size;
+      }
+      return slot;
+    }
+
+    void mergeFrom(GroupSums other) {
+      for (int from = 0; from < other.keys.length; ++from) {
+        if (other.counts[from] != 0) {
+          int to = getSlot(other.keys[from]);
+          counts[to] += other.counts[from];
+          for (int i = 0; i < measureCount; ++i) {
+            sums[to * measureCount + i] += other.sums[from * measureCount + i];
+          }
+        }
+      }
+    }
+
+    private void grow() {
+      GroupSums grown = new GroupSums(measureCount);
+      grown.keys = new long[keys.length * 2];
+      grown.counts = new long[keys.length * 2];
+      grown.sums = new double[keys.length * 2 * measureCount];
+      grown.mergeFrom(this);
+      keys = grown.keys;
+      counts = grown.counts;
+      sums = grown.sums;
+    }
+  }
+
+  /**
+   * Aggregates a range of rows, splitting it in half until it's small enough.
+   */
+  private class AggregateTask extends RecursiveTask<GroupSums> {
+    private final int fromRow;
+    private final int toRow;
+
+    AggregateTask(int fromRow, int toRow) {
+      this.fromRow = fromRow;
+      this.toRow = toRow;
+    }
+
+    @Override
+    protected GroupSums compute() {
+      if (toRow - fromRow <= SPLIT_ROW_COUNT) {
+        return aggregate(fromRow, toRow);
+      }
+      int middleRow = (fromRow + toRow) >>> 1;
+      AggregateTask left = new AggregateTask(fromRow, middleRow);
+      left.fork();
+      GroupSums right = new AggregateTask(middleRow, toRow).compute();
+      GroupSums sums = left.join();
+      sums.mergeFrom(right);
+      return sums;
+    }
+  }
+
+  private GroupSums aggregate(int fromRow, int toRow) {
+    GroupSums sums = new GroupSums(measures.size());
+    for (int row = fromRow; row < toRow; ++row) {
+      if (joinIndex == null) {
+        aggregateRow(sums, row, -1);
+      } else if (!joinKey.isNull(row)) {
+        for (int joinedRow = joinIndex.getFirstRow(joinKey.values[row]); joinedRow >= 0;
+             joinedRow = joinIndex.getNextRow(joinedRow)) {
+          aggregateRow(sums, row, joinedRow);
+        }
+      }
+    }
+    return sums;
+  }
+
+  private void aggregateRow(GroupSums sums, int row, int joinedRow) {
+    for (RowFilter filter : filters) {
+      if (!filter.accept(row, joinedRow)) {
+        return;
+      }
+    }
+    long key = 0;
+    for (GroupKey groupKey : groupKeys) {
+      key = key * groupKey.range() + groupKey.getCode(row, joinedRow);
+    }
+    int slot = sums.getSlot(key);
+    ++sums.counts[slot];
+    for (int i = 0; i < measures.size(); ++i) {
+      measures.get(i).addTo(sums.sums, slot * measures.size() + i, row, joinedRow);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * Holds the tables of a database schema in memory as ColumnTables, for running
+ * ColumnQuery reports without going through SQLite.
+ */
+public class ColumnStore {
+  private final ImmutableMap<String, ColumnTable> tables;
+
+  private ColumnStore(ImmutableMap<String, ColumnTable> tables) {
+    this.tables = tables;
+  }
+
+  public ColumnTable getTable(String tableName) {
+    ColumnTable table = tables.get(tableName);
+    checkArgument(table != null, "No such table: %s", tableName);
+    return table;
+  }
+
+  /**
+   * Reads every table of the database into memory.
+   */
+  public static <T extends Message> ColumnStore load(SqProto<T> sqProto) throws SQLException {
+    ImmutableMap.Builder<String, ColumnTable> tables = ImmutableMap.builder();
+    for (FieldDescriptor table : sqProto.getDatabaseSchema().getFields()) {
+      ColumnTable.Builder b = new ColumnTable.Builder(table.getMessageType());
+      sqProto.readTable(table, b);
+      tables.put(table.getName(), b.build());
+    }
+    return new ColumnStore(tables.build());
+  }
+
+  /**
+   * Receives batches of records, such as the converted records of an import, and
+   * appends them to the tables.
+   */
+  public static class Builder<T extends Message> implements Receiver<T> {
+    private final Map<FieldDescriptor, ColumnTable.Builder> tables = Maps.newLinkedHashMap();
+
+    public Builder(T template) {
+      for (FieldDescriptor table : template.getDescriptorForType().getFields()) {
+        if (table.isRepeated() && table.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+          tables.put(table, new ColumnTable.Builder(table.getMessageType()));
+        }
+      }
+    }
+
+    public void receive(T batch) {
+      for (Map.Entry<FieldDescriptor, ColumnTable.Builder> table : tables.entrySet()) {
+        int recordCount = batch.getRepeatedFieldCount(table.getKey());
+        for (int i = 0; i < recordCount; ++i) {
+          table.getValue().receive((Message) batch.getRepeatedField(table.getKey(), i));
+        }
+      }
+    }
+
+    public ColumnStore build() {
+      ImmutableMap.Builder<String, ColumnTable> built = ImmutableMap.builder();
+      for (Map.Entry<FieldDescriptor, ColumnTable.Builder> table : tables.entrySet()) {
+        built.put(table.getKey().getName(), table.getValue().build());
+      }
+      return new ColumnStore(built.build());
+    }
+  }
+}
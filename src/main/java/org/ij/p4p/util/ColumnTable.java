@@ -0,0 +1,329 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the records of a table in memory in columnar form, with a primitive array
+ * per field and a bitmap of null values. Integers, enums and booleans are stored as
+ * longs, floating point numbers as doubles, and strings as int codes into a
+ * dictionary of distinct values. Byte string fields are not stored.
+ *
+ * Tables are immutable once built, so they can be scanned concurrently.
+ */
+public class ColumnTable {
+  private final Descriptor tableSchema;
+  private final int rowCount;
+  private final ImmutableMap<String, Column> columns;
+  private final Map<String, LongHashIndex> indexes = Maps.newHashMap();
+
+  private ColumnTable(Descriptor tableSchema, int rowCount, ImmutableMap<String, Column> columns) {
+    this.tableSchema = tableSchema;
+    this.rowCount = rowCount;
+    this.columns = columns;
+  }
+
+  public Descriptor getTableSchema() {
+    return tableSchema;
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Returns the column for a field, or throws if the field isn't stored.
+   */
+  public Column getColumn(String fieldName) {
+    Column column = columns.get(fieldName);
+    checkArgument(column != null, "No such column: %s.%s", tableSchema.getName(), fieldName);
+    return column;
+  }
+
+  public LongColumn getLongColumn(String fieldName) {
+    Column column = getColumn(fieldName);
+    checkArgument(column instanceof LongColumn, "Not an integer column: %s", fieldName);
+    return (LongColumn) column;
+  }
+
+  public DoubleColumn getDoubleColumn(String fieldName) {
+    Column column = getColumn(fieldName);
+    checkArgument(column instanceof DoubleColumn, "Not a floating point column: %s", fieldName);
+    return (DoubleColumn) column;
+  }
+
+  public StringColumn getStringColumn(String fieldName) {
+    Column column = getColumn(fieldName);
+    checkArgument(column instanceof StringColumn, "Not a string column: %s", fieldName);
+    return (StringColumn) column;
+  }
+
+  /**
+   * Returns a hash index on an integer column, building it on first use.
+   */
+  public synchronized LongHashIndex getIndex(String fieldName) {
+    LongHashIndex index = indexes.get(fieldName);
+    if (index == null) {
+      index = LongHashIndex.build(getLongColumn(fieldName));
+      indexes.put(fieldName, index);
+    }
+    return index;
+  }
+
+  /**
+   * Base class for columns, with a bitmap of null values.
+   */
+  public abstract static class Column {
+    final long[] nulls;
+
+    Column(long[] nulls) {
+      this.nulls = nulls;
+    }
+
+    public boolean isNull(int row) {
+      return (nulls[row >>> 6] & (1L << row)) != 0;
+    }
+  }
+
+  public static class LongColumn extends Column {
+    final long[] values;
+
+    LongColumn(long[] nulls, long[] values) {
+      super(nulls);
+      this.values = values;
+    }
+
+    public long get(int row) {
+      return values[row];
+    }
+  }
+
+  public static class DoubleColumn extends Column {
+    final double[] values;
+
+    DoubleColumn(long[] nulls, double[] values) {
+      super(nulls);
+      this.values = values;
+    }
+
+    public double get(int row) {
+      return values[row];
+    }
+  }
+
+  /**
+   * Stores strings as codes into a dictionary. Null values have the code -1.
+   */
+  public static class StringColumn extends Column {
+    final int[] codes;
+    final ImmutableList<String> dictionary;
+
+    StringColumn(long[] nulls, int[] codes, ImmutableList<String> dictionary) {
+      super(nulls);
+      this.codes = codes;
+      this.dictionary = dictionary;
+    }
+
+    public int getCode(int row) {
+      return codes[row];
+    }
+
+    public String get(int row) {
+      return codes[row] < 0 ? null : dictionary.get(codes[row]);
+    }
+
+    public ImmutableList<String> getDictionary() {
+      return dictionary;
+    }
+  }
+
+  /**
+   * Appends records to growable column arrays.
+   */
+  public static class Builder implements Receiver<Message> {
+    private final Descriptor tableSchema;
+    private final List<ColumnBuilder> builders = Lists.newArrayList();
+    private int rowCount = 0;
+
+    public Builder(Descriptor tableSchema) {
+      this.tableSchema = tableSchema;
+      for (FieldDescriptor field : tableSchema.getFields()) {
+        switch (field.getJavaType()) {
+          case BOOLEAN:
+          case ENUM:
+          case INT:
+          case LONG:
+            builders.add(new LongColumnBuilder(field));
+            break;
+          case FLOAT:
+          case DOUBLE:
+            builders.add(new DoubleColumnBuilder(field));
+            break;
+          case STRING:
+            builders.add(new StringColumnBuilder(field));
+            break;
+          default:
+            // Byte strings and messages aren't stored.
+        }
+      }
+    }
+
+    public void receive(Message record) {
+      checkArgument(record.getDescriptorForType() == tableSchema);
+      for (ColumnBuilder builder : builders) {
+        builder.append(record, rowCount);
+      }
+      ++rowCount;
+    }
+
+    public ColumnTable build() {
+      ImmutableMap.Builder<String, Column> columns = ImmutableMap.builder();
+      for (ColumnBuilder builder : builders) {
+        columns.put(builder.field.getName(), builder.build(rowCount));
+      }
+      return new ColumnTable(tableSchema, rowCount, columns.build());
+    }
+  }
+
+  private abstract static class ColumnBuilder {
+    final FieldDescriptor field;
+    long[] nulls = new long[16];
+
+    ColumnBuilder(FieldDescriptor field) {
+      this.field = field;
+    }
+
+    void append(Message record, int row) {
+      if (row >>> 6 >= nulls.length) {
+        nulls = Arrays.copyOf(nulls, nulls.length * 2);
+      }
+      ensureCapacity(row + 1);
+      if (record.hasField(field)) {
+        set(row, record.getField(field));
+      } else {
+        nulls[row >>> 6] |= 1L << row;
+        setNull(row);
+      }
+    }
+
+    long[] buildNulls(int rowCount) {
+      return Arrays.copyOf(nulls, (rowCount + 63) >>> 6);
+    }
+
+    abstract void ensureCapacity(int capacity);
+
+    abstract void set(int row, Object value);
+
+    void setNull(int row) {
+    }
+
+    abstract Column build(int rowCount);
+  }
+
+  private static class LongColumnBuilder extends ColumnBuilder {
+    long[] values = new long[1024];
+
+    LongColumnBuilder(FieldDescriptor field) {
+      super(field);
+    }
+
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+      }
+    }
+
+    void set(int row, Object value) {
+      switch (field.getJavaType()) {
+        case BOOLEAN:
+          values[row] = (Boolean) value ? 1 : 0;
+          break;
+        case ENUM:
+          values[row] = ((EnumValueDescriptor) value).getNumber();
+          break;
+        case INT:
+          // Unsigned 32 bit values are widened without sign extension.
+          int intValue = (Integer) value;
+          values[row] = field.getType() == FieldDescriptor.Type.UINT32
+              || field.getType() == FieldDescriptor.Type.FIXED32
+              ? intValue & 0xFFFFFFFFL : intValue;
+          break;
+        default:
+          values[row] = (Long) value;
+      }
+    }
+
+    Column build(int rowCount) {
+      return new LongColumn(buildNulls(rowCount), Arrays.copyOf(values, rowCount));
+    }
+  }
+
+  private static class DoubleColumnBuilder extends ColumnBuilder {
+    double[] values = new double[1024];
+
+    DoubleColumnBuilder(FieldDescriptor field) {
+      super(field);
+    }
+
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+      }
+    }
+
+    void set(int row, Object value) {
+      values[row] = ((Number) value).doubleValue();
+    }
+
+    Column build(int rowCount) {
+      return new DoubleColumn(buildNulls(rowCount), Arrays.copyOf(values, rowCount));
+    }
+  }
+
+  private static class StringColumnBuilder extends ColumnBuilder {
+    final Map<String, Integer> codes = Maps.newHashMap();
+    final List<String> dictionary = Lists.newArrayList();
+    int[] values = new int[1024];
+
+    StringColumnBuilder(FieldDescriptor field) {
+      super(field);
+    }
+
+    void ensureCapacity(int capacity) {
+      if (capacity > values.length) {
+        values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+      }
+    }
+
+    void set(int row, Object value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = dictionary.size();
+        codes.put((String) value, code);
+        dictionary.add((String) value);
+      }
+      values[row] = code;
+    }
+
+    void setNull(int row) {
+      values[row] = -1;
+    }
+
+    Column build(int rowCount) {
+      return new StringColumn(buildNulls(rowCount), Arrays.copyOf(values, rowCount),
+          ImmutableList.copyOf(dictionary));
+    }
+  }
+}
@@ -1,22 +1,27 @@
 package org.ij.p4p.util;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.truth.Truth.assertThat;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.CharMatcher;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
 import com.google.common.io.Files;
 import com.google.protobuf.Descriptors.Descriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
 import com.google.protobuf.Message;
 import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
 import org.apache.commons.csv.CSVRecord;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Iterator;
+import java.util.List;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -79,51 +84,102 @@ public class CsvToPb {
   /**
    * Parses CSV files from the Zip and returns records in batches. Expects the template
    * proto to have repeated fields of type message, with field names matching the zip entry
-   * file names (non-matching zip entries are skipped).
+   * file names (non-matching zip entries are skipped). Each batch is a database proto
+   * with one table set.
    */
   public static <T extends Message> void parseTablesFromZip(
-      ZipInputStream in, CSVFormat format, T template, final int batchSize,
+      ZipInputStream in, CSVFormat format, T template, int batchSize,
       Receiver<TableRecord> inconsistent, Receiver<T> recv) throws IOException {
+    parseTablesFromZip(in, format, template, BatchSizer.fixed(batchSize), inconsistent, recv);
+  }
+
+  /**
+   * Parses CSV files from the Zip and returns records in batches, as above, with the
+   * size of each batch chosen by the sizer.
+   */
+  public static <T extends Message> void parseTablesFromZip(
+      ZipInputStream in, CSVFormat format, final T template, BatchSizer sizer,
+      Receiver<TableRecord> inconsistent, final Receiver<T> recv) throws IOException {
+    final Message.Builder b = template.newBuilderForType();
+    parseTablesFromZip(in, format, template, sizer, inconsistent,
+        new BatchReceiver<Message>() {
+          public void receive(FieldDescriptor table, List<Message> records) {
+            b.setField(table, records);
+            recv.receive((T) b.build());
+            b.clear();
+          }
+        });
+  }
+
+  /**
+   * Parses CSV files from the Zip and returns records in batches of one table, as
+   * above, without building a database proto for each batch. Each entry is inflated
+   * ahead on another thread while it's parsed.
+   */
+  public static <T extends Message> void parseTablesFromZip(
+      ZipInputStream in, CSVFormat format, T template, BatchSizer sizer,
+      Receiver<TableRecord> inconsistent, BatchReceiver<Message> recv) throws IOException {
+    Descriptor d = getDatabaseDescriptor(template);
+    byte[][] buffers = ReadAheadInputStream.newBuffers();
+    List<Message> batch = Lists.newArrayList();
     for (ZipEntry e = in.getNextEntry(); e != null; e = in.getNextEntry()) {
-      String tableName = Files.getNameWithoutExtension(e.getName());
-      if (hasField(template, tableName)) {
-        parseTableFromCsv(tableName, in, format, template, batchSize, inconsistent, recv);
+      FieldDescriptor table = d.findFieldByName(Files.getNameWithoutExtension(e.getName()));
+      if (table != null) {
+        Tracer.Span span = Tracer.begin(Tracer.Stage.ENTRY_READ, table.getName());
+        ReadAheadInputStream entry = new ReadAheadInputStream(in, buffers);
+        try {
+          int recordCount = parseTableFromCsv(table, entry, format, template, sizer,
+              inconsistent, batch, recv);
+          span.end(recordCount, entry.getByteCount());
+        } finally {
+          entry.close();
+        }
       }
     }
   }
 
   /**
-   * Parses CSV data and returns records in batches. Expects the template proto to have
-   * repeated fields of type message, with a field named the same as tableName.
+   * Parses CSV data and returns records in batches, filling and reusing the batch list,
+   * and tells the sizer the bytes parsed and the time received of each batch. Returns
+   * the number of records.
    */
-  private static <T extends Message> void parseTableFromCsv(
-      String tableName, InputStream in, CSVFormat csvFormat, T template, final int batchSize,
-      final Receiver<TableRecord> inconsistent, final Receiver<T> recv) throws IOException {
-    final Descriptor d = getDatabaseDescriptor(template);
-    final FieldDescriptor field = d.findFieldByName(tableName);
-    final Message.Builder b = template.newBuilderForType();
-    final AtomicInteger recordCount = new AtomicInteger();
-    parseCsvDataByFieldName(
+  private static <T extends Message> int parseTableFromCsv(
+      final FieldDescriptor table, ReadAheadInputStream in, CSVFormat csvFormat, T template,
+      BatchSizer sizer, final Receiver<TableRecord> inconsistent, List<Message> batch,
+      BatchReceiver<Message> recv) throws IOException {
+    Iterator<Message> records = iterateCsvDataByFieldName(
         csvFormat,
-        b.newBuilderForField(field).build(),
+        template.newBuilderForType().newBuilderForField(table).build(),
         new InputStreamReader(in, Charsets.UTF_8),
         new Receiver<CSVRecord>() {
           public void receive(CSVRecord record) {
-            inconsistent.receive(new TableRecord(field, record));
-          }
-        },
-        new Receiver<Message>() {
-          public void receive(Message record) {
-            b.addRepeatedField(field, record);
-            if (recordCount.incrementAndGet() % batchSize == 0) {
-              recv.receive((T) b.build());
-              b.clear();
-            }
+            inconsistent.receive(new TableRecord(table, record));
           }
         });
-    if (recordCount.get() % batchSize != 0) {
-      recv.receive((T) b.build());
+    int recordCount = 0;
+    long byteCount = 0;
+    int batchSize = sizer.getBatchSize(table);
+    // Each span starts with the first record of its batch, so none is left open.
+    Tracer.Span span = null;
+    while (records.hasNext()) {
+      if (span == null) {
+        span = Tracer.begin(Tracer.Stage.BATCH_PARSED, table.getName());
+      }
+      batch.add(records.next());
+      if (batch.size() >= batchSize || !records.hasNext()) {
+        span.end(batch.size(), in.getByteCount() - byteCount);
+        sizer.recordParsed(table, batch.size(), in.getByteCount() - byteCount);
+        byteCount = in.getByteCount();
+        recordCount += batch.size();
+        long start = System.nanoTime();
+        recv.receive(table, batch);
+        sizer.recordReceived(table, batch.size(), System.nanoTime() - start);
+        batch.clear();
+        batchSize = sizer.getBatchSize(table);
+        span = null;
+      }
     }
+    return recordCount;
   }
 
   /**
@@ -136,35 +192,130 @@ public class CsvToPb {
   public static <T extends Message> void parseCsvDataByFieldName(
       CSVFormat format, T template, Reader in, Receiver<CSVRecord> inconsistent,
       Receiver<T> recv) throws IOException {
-    Descriptor schema = getTableDescriptor(template);
-    final int fieldCount = schema.getFields().size();
+    Iterator<T> records = iterateCsvDataByFieldName(format, template, in, inconsistent);
+    while (records.hasNext()) {
+      recv.receive(records.next());
+    }
+  }
+
+  /**
+   * Returns an iterator over CSV data in proto format, which parses the records as it
+   * advances, mapping the CSV column header to the proto field names as in
+   * parseCsvDataByFieldName. Closing the iterator closes the reader.
+   */
+  public static <T extends Message> CloseableIterator<T> iterateCsvDataByFieldName(
+      CSVFormat format, T template, Reader in, Receiver<CSVRecord> inconsistent)
+      throws IOException {
+    return new CsvRecordIterator<T>(
+        format.withHeader().parse(in), template, getTableDescriptor(template), inconsistent);
+  }
+
+  /**
+   * Returns an iterator over the records of one table in the Zip, which parses them
+   * as it advances, so that the table never has to fit in memory. Skips ahead to the
+   * Zip entry named after the table. Throws an exception if there are inconsistent
+   * records. Closing the iterator closes the Zip, which may be done before the end to
+   * stop reading early.
+   */
+  public static <T extends Message> CloseableIterator<Message> iterateTableFromZip(
+      ZipInputStream in, CSVFormat format, T template, String tableName) throws IOException {
+    final FieldDescriptor table = getDatabaseDescriptor(template).findFieldByName(tableName);
+    checkArgument(table != null, "No such table: %s", tableName);
+    for (ZipEntry e = in.getNextEntry(); e != null; e = in.getNextEntry()) {
+      if (Files.getNameWithoutExtension(e.getName()).equals(tableName)) {
+        return iterateCsvDataByFieldName(
+            format,
+            template.newBuilderForType().newBuilderForField(table).build(),
+            new InputStreamReader(in, Charsets.UTF_8),
+            new Receiver<CSVRecord>() {
+              public void receive(CSVRecord record) {
+                throw new InconsistentRecordException(new TableRecord(table, record));
+              }
+            });
+      }
+    }
+    in.close();
+    throw new FileNotFoundException("No Zip entry for table: " + tableName);
+  }
+
+  /**
+   * Parses the records from a CSV parser into protos, one at a time.
+   */
+  private static class CsvRecordIterator<T extends Message> extends AbstractIterator<T>
+      implements CloseableIterator<T> {
+    private final CSVParser parser;
+    private final Iterator<CSVRecord> records;
+    private final T template;
+    private final List<FieldDescriptor> fields;
+    private final Receiver<CSVRecord> inconsistent;
+
+    CsvRecordIterator(CSVParser parser, T template, Descriptor schema,
+        Receiver<CSVRecord> inconsistent) {
+      this.parser = parser;
+      this.records = parser.iterator();
+      this.template = template;
+      this.fields = schema.getFields();
+      this.inconsistent = inconsistent;
+    }
+
+    @Override
+    protected T computeNext() {
+      while (records.hasNext()) {
+        CSVRecord record = records.next();
+        if (!record.isConsistent()) {
+          inconsistent.receive(record);
+          continue;
+        }
+        Message.Builder b = template.newBuilderForType();
+        for (FieldDescriptor field : fields) {
+          if (record.isMapped(field.getName())) {
+            setTrimmedValue(b, field, record.get(field.getName()));
+          }
+        }
+        return (T) b.build();
+      }
+      return endOfData();
+    }
+
+    public void close() throws IOException {
+      parser.close();
+    }
+  }
+
+  /**
+   * Parses CSV data into proto format by column position, for files whose column
+   * headers vary: the first column maps to the first field of the template proto, and
+   * so on. The header row is skipped, and records with fewer columns than the template
+   * has fields are returned via the inconsistent record receiver.
+   */
+  public static <T extends Message> void parseCsvDataByPosition(
+      CSVFormat format, T template, Reader in, Receiver<CSVRecord> inconsistent,
+      Receiver<T> recv) throws IOException {
+    List<FieldDescriptor> fields = getTableDescriptor(template).getFields();
     for (CSVRecord record : format.withHeader().parse(in)) {
-      if (!record.isConsistent()) {
+      if (record.size() < fields.size()) {
         inconsistent.receive(record);
         continue;
       }
       Message.Builder b = template.newBuilderForType();
-      for (FieldDescriptor field : schema.getFields()) {
-        if (record.isMapped(field.getName())) {
-          String value = record.get(field.getName());
-          if (value != null) {
-            // Guava is known to correctly handle Unicode whitespace.
-            value = CharMatcher.WHITESPACE.trimFrom(value);
-            if (!value.isEmpty()) {
-              b.setField(field, value);
-            }
-          }
-        }
+      for (int i = 0; i < fields.size(); ++i) {
+        setTrimmedValue(b, fields.get(i), record.get(i));
       }
       recv.receive((T) b.build());
     }
   }
 
   /**
-   * Returns true if the template proto has a field with the given name.
+   * Sets a string field with whitespace trimmed, leaving it unset if empty.
    */
-  private static <T extends Message> boolean hasField(T template, String fieldName) {
-    return template.getDescriptorForType().findFieldByName(fieldName) != null;
+  private static void setTrimmedValue(Message.Builder b, FieldDescriptor field, String value) {
+    if (value != null) {
+      // Guava is known to correctly handle Unicode whitespace.
+      value = CharMatcher.WHITESPACE.trimFrom(value);
+      if (!value.isEmpty()) {
+        b.setField(field, value);
+      }
+    }
   }
 
   /**
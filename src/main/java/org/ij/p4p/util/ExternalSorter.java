@@ -0,0 +1,226 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Message;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts protos in bounded memory. Records are buffered until the buffer is full, and
+ * then sorted and spilled to a temporary file as a run of length-delimited protos.
+ * The sorted output is a k-way merge of the runs.
+ */
+public class ExternalSorter<T extends Message> implements Receiver<T>, Closeable {
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  private final T templateProto;
+  private final Comparator<? super T> comparator;
+  private final int maxRecordsInMemory;
+  private final File tempDirectory;
+  private final List<T> buffer;
+  private final List<File> runs = Lists.newArrayList();
+  private boolean sorted = false;
+
+  /**
+   * Creates a sorter that spills to the default temporary file directory.
+   */
+  public ExternalSorter(T templateProto, Comparator<? super T> comparator, int maxRecordsInMemory) {
+    this(templateProto, comparator, maxRecordsInMemory, null);
+  }
+
+  /**
+   * Creates a sorter that spills to a temporary file directory, or the default
+   * temporary file directory when null.
+   */
+  public ExternalSorter(T templateProto, Comparator<? super T> comparator,
+      int maxRecordsInMemory, File tempDirectory) {
+    checkArgument(maxRecordsInMemory > 0);
+    this.templateProto = templateProto;
+    this.comparator = comparator;
+    this.maxRecordsInMemory = maxRecordsInMemory;
+    this.tempDirectory = tempDirectory;
+    this.buffer = Lists.newArrayListWithCapacity(Math.min(maxRecordsInMemory, SqProto.BATCH_SIZE));
+  }
+
+  /**
+   * Adds a record to the sort, spilling a run to disk if the buffer is full.
+   */
+  public void receive(T record) {
+    checkState(!sorted, "Records can't be added after sorting.");
+    buffer.add(record);
+    if (buffer.size() >= maxRecordsInMemory) {
+      try {
+        spill();
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of runs spilled to disk.
+   */
+  public int getRunCount() {
+    return runs.size();
+  }
+
+  /**
+   * Returns the records in sorted order. Records are only read from disk as the
+   * iterator advances. Closing the iterator deletes the temporary files.
+   */
+  public CloseableIterator<T> sorted() throws IOException {
+    checkState(!sorted, "Already sorted.");
+    sorted = true;
+    if (runs.isEmpty()) {
+      Collections.sort(buffer, comparator);
+      final Iterator<T> it = buffer.iterator();
+      return new CloseableIterator<T>() {
+        public boolean hasNext() {
+          return it.hasNext();
+        }
+        public T next() {
+          return it.next();
+        }
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+        public void close() {
+          buffer.clear();
+        }
+      };
+    }
+    if (!buffer.isEmpty()) {
+      spill();
+    }
+    return new MergeIterator();
+  }
+
+  /**
+   * Deletes any temporary files.
+   */
+  public void close() {
+    buffer.clear();
+    for (File run : runs) {
+      run.delete();
+    }
+    runs.clear();
+  }
+
+  /**
+   * Sorts the buffer and writes it to a temporary file.
+   */
+  private void spill() throws IOException {
+    Collections.sort(buffer, comparator);
+    File run = File.createTempFile("sort", ".pb", tempDirectory);
+    run.deleteOnExit();
+    runs.add(run);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE);
+    try {
+      for (T record : buffer) {
+        record.writeDelimitedTo(out);
+      }
+    } finally {
+      out.close();
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Reads a run of records from a temporary file.
+   */
+  private class Run {
+    final InputStream in;
+    T head;
+
+    Run(File file) throws IOException {
+      in = new BufferedInputStream(new FileInputStream(file), IO_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the next record into the head, and returns false at the end of the run.
+     */
+    boolean advance() throws IOException {
+      Message.Builder b = templateProto.newBuilderForType();
+      if (b.mergeDelimitedFrom(in)) {
+        head = (T) b.build();
+        return true;
+      }
+      head = null;
+      in.close();
+      return false;
+    }
+  }
+
+  /**
+   * Merges the runs using a priority queue ordered by the head of each run.
+   */
+  private class MergeIterator implements CloseableIterator<T> {
+    private final PriorityQueue<Run> queue;
+    private final List<Run> open = Lists.newArrayList();
+
+    MergeIterator() throws IOException {
+      queue = new PriorityQueue<Run>(runs.size(), new Comparator<Run>() {
+          public int compare(Run a, Run b) {
+            return comparator.compare(a.head, b.head);
+          }
+        });
+      for (File file : runs) {
+        Run run = new Run(file);
+        open.add(run);
+        if (run.advance()) {
+          queue.add(run);
+        }
+      }
+    }
+
+    public boolean hasNext() {
+      return !queue.isEmpty();
+    }
+
+    public T next() {
+      Run run = queue.poll();
+      if (run == null) {
+        throw new NoSuchElementException();
+      }
+      T record = run.head;
+      try {
+        if (run.advance()) {
+          queue.add(run);
+        }
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+      return record;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+
+    public void close() throws IOException {
+      queue.clear();
+      for (Run run : open) {
+        run.in.close();
+      }
+      ExternalSorter.this.close();
+    }
+  }
+}
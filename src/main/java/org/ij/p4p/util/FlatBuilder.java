@@ -0,0 +1,211 @@
+package org.ij.p4p.util;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Builds FlatBuffers binary data, for writing Arrow metadata without depending on the
+ * FlatBuffers library. Follows the reference Java FlatBufferBuilder: the buffer is
+ * filled from back to front, and offsets are returned relative to the end of the
+ * buffer. Vtables are not deduplicated, since Arrow metadata is small.
+ */
+class FlatBuilder {
+  private ByteBuffer bb;
+  private int space;
+  private int minAlign = 1;
+  private int[] vtable = new int[16];
+  private int vtableInUse = 0;
+  private int objectStart;
+  private int vectorElementCount;
+
+  FlatBuilder(int initialSize) {
+    bb = ByteBuffer.allocate(initialSize).order(ByteOrder.LITTLE_ENDIAN);
+    space = initialSize;
+  }
+
+  /**
+   * Returns the offset of the last value written, relative to the end of the buffer.
+   */
+  int offset() {
+    return bb.capacity() - space;
+  }
+
+  void pad(int byteCount) {
+    for (int i = 0; i < byteCount; ++i) {
+      bb.put(--space, (byte) 0);
+    }
+  }
+
+  /**
+   * Aligns for a value of the given size, after writing additionalBytes.
+   */
+  void prep(int size, int additionalBytes) {
+    minAlign = Math.max(minAlign, size);
+    int alignSize = (~(bb.capacity() - space + additionalBytes) + 1) & (size - 1);
+    while (space < alignSize + size + additionalBytes) {
+      int oldCapacity = bb.capacity();
+      ByteBuffer grown = ByteBuffer.allocate(oldCapacity * 2).order(ByteOrder.LITTLE_ENDIAN);
+      System.arraycopy(bb.array(), 0, grown.array(), oldCapacity, oldCapacity);
+      bb = grown;
+      space += oldCapacity;
+    }
+    pad(alignSize);
+  }
+
+  void putByte(byte x) {
+    bb.put(space -= 1, x);
+  }
+
+  void putShort(short x) {
+    bb.putShort(space -= 2, x);
+  }
+
+  void putInt(int x) {
+    bb.putInt(space -= 4, x);
+  }
+
+  void putLong(long x) {
+    bb.putLong(space -= 8, x);
+  }
+
+  void addByte(byte x) {
+    prep(1, 0);
+    putByte(x);
+  }
+
+  void addShort(short x) {
+    prep(2, 0);
+    putShort(x);
+  }
+
+  void addInt(int x) {
+    prep(4, 0);
+    putInt(x);
+  }
+
+  void addLong(long x) {
+    prep(8, 0);
+    putLong(x);
+  }
+
+  /**
+   * Adds an offset to a previously written object, relative to where it is stored.
+   */
+  void addOffset(int off) {
+    prep(4, 0);
+    putInt(offset() - off + 4);
+  }
+
+  void startVector(int elementSize, int elementCount, int alignment) {
+    vectorElementCount = elementCount;
+    prep(4, elementSize * elementCount);
+    prep(alignment, elementSize * elementCount);
+  }
+
+  int endVector() {
+    putInt(vectorElementCount);
+    return offset();
+  }
+
+  /**
+   * Creates a vector of offsets to previously written objects.
+   */
+  int createOffsetVector(int[] offsets) {
+    startVector(4, offsets.length, 4);
+    for (int i = offsets.length - 1; i >= 0; --i) {
+      addOffset(offsets[i]);
+    }
+    return endVector();
+  }
+
+  int createString(String s) {
+    byte[] utf8 = s.getBytes(Charsets.UTF_8);
+    addByte((byte) 0);
+    startVector(1, utf8.length, 1);
+    space -= utf8.length;
+    System.arraycopy(utf8, 0, bb.array(), space, utf8.length);
+    return endVector();
+  }
+
+  void startTable(int fieldCount) {
+    if (vtable.length < fieldCount) {
+      vtable = new int[fieldCount];
+    }
+    vtableInUse = fieldCount;
+    Arrays.fill(vtable, 0, fieldCount, 0);
+    objectStart = offset();
+  }
+
+  void addFieldByte(int field, byte x, byte defaultValue) {
+    if (x != defaultValue) {
+      addByte(x);
+      vtable[field] = offset();
+    }
+  }
+
+  void addFieldBoolean(int field, boolean x, boolean defaultValue) {
+    addFieldByte(field, (byte) (x ? 1 : 0), (byte) (defaultValue ? 1 : 0));
+  }
+
+  void addFieldShort(int field, short x, short defaultValue) {
+    if (x != defaultValue) {
+      addShort(x);
+      vtable[field] = offset();
+    }
+  }
+
+  void addFieldInt(int field, int x, int defaultValue) {
+    if (x != defaultValue) {
+      addInt(x);
+      vtable[field] = offset();
+    }
+  }
+
+  void addFieldLong(int field, long x, long defaultValue) {
+    if (x != defaultValue) {
+      addLong(x);
+      vtable[field] = offset();
+    }
+  }
+
+  void addFieldOffset(int field, int off) {
+    if (off != 0) {
+      addOffset(off);
+      vtable[field] = offset();
+    }
+  }
+
+  /**
+   * Writes the vtable for the current table, and returns the table offset.
+   */
+  int endTable() {
+    addInt(0);
+    int tableOffset = offset();
+    int i = vtableInUse - 1;
+    while (i >= 0 && vtable[i] == 0) {
+      --i;
+    }
+    int trimmedSize = i + 1;
+    for (; i >= 0; --i) {
+      addShort((short) (vtable[i] != 0 ? tableOffset - vtable[i] : 0));
+    }
+    addShort((short) (tableOffset - objectStart));
+    addShort((short) ((trimmedSize + 2) * 2));
+    // The table starts with a signed offset back to its vtable.
+    bb.putInt(bb.capacity() - tableOffset, offset() - tableOffset);
+    vtableInUse = 0;
+    return tableOffset;
+  }
+
+  /**
+   * Writes the root table offset and returns the finished bytes.
+   */
+  byte[] finish(int rootTable) {
+    prep(minAlign, 4);
+    addOffset(rootTable);
+    return Arrays.copyOfRange(bb.array(), space, bb.capacity());
+  }
+}
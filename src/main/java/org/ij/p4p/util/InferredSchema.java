@@ -0,0 +1,378 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.CaseFormat;
+import com.google.common.base.Charsets;
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.DescriptorValidationException;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FileDescriptor;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A database schema inferred from the CSV files in a Zip, for loading tables that
+ * have no hand-written protos. Each Zip entry becomes a repeated message field of a
+ * DynamicMessage, named after the entry, and each column of its header becomes a
+ * field of the table message. The column types are inferred from a sample of the
+ * first records of each file: Y/N columns are bools, whole numbers are int64, other
+ * numbers are doubles, and the rest are strings. Short numbers with leading zeros,
+ * like "02", are codes and stay strings. The tables can then be loaded with SqProto, with
+ * typed columns.
+ *
+ * Inferring the schema and parsing the records each read the Zip, so the Zip is read
+ * twice. Values after the sample that don't parse as the inferred type are reported
+ * as InvalidValues, and left unset.
+ */
+public class InferredSchema {
+  public static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+  // SQLite keywords, including those of later versions, which can't be used unquoted
+  // as table or column names.
+  private static final ImmutableSet<String> SQL_KEYWORDS = ImmutableSet.of(
+      "abort", "action", "add", "after", "all", "alter", "always", "analyze", "and", "as",
+      "asc", "attach", "autoincrement", "before", "begin", "between", "by", "cascade",
+      "case", "cast", "check", "collate", "column", "commit", "conflict", "constraint",
+      "create", "cross", "current", "current_date", "current_time", "current_timestamp",
+      "database", "default", "deferrable", "deferred", "delete", "desc", "detach",
+      "distinct", "do", "drop", "each", "else", "end", "escape", "except", "exclude",
+      "exclusive", "exists", "explain", "fail", "filter", "first", "following", "for",
+      "foreign", "from", "full", "generated", "glob", "group", "groups", "having", "if",
+      "ignore", "immediate", "in", "index", "indexed", "initially", "inner", "insert",
+      "instead", "intersect", "into", "is", "isnull", "join", "key", "last", "left",
+      "like", "limit", "match", "materialized", "natural", "no", "not", "nothing",
+      "notnull", "null", "nulls", "of", "offset", "on", "or", "order", "others", "outer",
+      "over", "partition", "plan", "pragma", "preceding", "primary", "query", "raise",
+      "range", "recursive", "references", "regexp", "reindex", "release", "rename",
+      "replace", "restrict", "returning", "right", "rollback", "row", "rows", "savepoint",
+      "select", "set", "table", "temp", "temporary", "then", "ties", "to", "transaction",
+      "trigger", "unbounded", "union", "unique", "update", "using", "vacuum", "values",
+      "view", "virtual", "when", "where", "window", "with", "without");
+
+  // Short unsigned numbers with leading zeros are codes, but ids padded to eight or
+  // more digits are numbers.
+  private static final Pattern INTEGER = Pattern.compile("[+-][0-9]+|0|[1-9][0-9]*|0[0-9]{7,}");
+  private static final Pattern REAL = Pattern.compile("[+-]([0-9]+(\\.[0-9]*)?|\\.[0-9]+)"
+      + "|(0|[1-9][0-9]*|0[0-9]{7,})(\\.[0-9]*)?|\\.[0-9]+");
+
+  private final Descriptor databaseSchema;
+  private final Map<String, FieldDescriptor> tablesByEntryName;
+  private final Map<FieldDescriptor, List<String>> headers;
+
+  /**
+   * A value that doesn't parse as the type inferred for its column.
+   */
+  public static class InvalidValue {
+    public final FieldDescriptor table;
+    public final FieldDescriptor field;
+    public final long recordNumber;
+    public final String value;
+
+    InvalidValue(FieldDescriptor table, FieldDescriptor field, long recordNumber, String value) {
+      this.table = table;
+      this.field = field;
+      this.recordNumber = recordNumber;
+      this.value = value;
+    }
+
+    public String toString() {
+      return String.format("table:%s record:%d field:%s value:%s",
+          table.getName(), recordNumber, field.getName(), value);
+    }
+  }
+
+  /**
+   * Tracks which types all of the sampled values of a column parse as.
+   */
+  private static class ColumnSample {
+    boolean allBool = true;
+    boolean allInteger = true;
+    boolean allReal = true;
+    int valueCount = 0;
+
+    void add(String value) {
+      ++valueCount;
+      allBool &= value.equals("Y") || value.equals("N");
+      allInteger &= parseInteger(value) != TextParsers.INVALID;
+      allReal &= REAL.matcher(value).matches();
+    }
+
+    FieldDescriptorProto.Type getType() {
+      if (valueCount == 0) {
+        return FieldDescriptorProto.Type.TYPE_STRING;
+      } else if (allBool) {
+        return FieldDescriptorProto.Type.TYPE_BOOL;
+      } else if (allInteger) {
+        return FieldDescriptorProto.Type.TYPE_INT64;
+      } else if (allReal) {
+        return FieldDescriptorProto.Type.TYPE_DOUBLE;
+      }
+      return FieldDescriptorProto.Type.TYPE_STRING;
+    }
+  }
+
+  /**
+   * Reads the header and up to sampleSize records of each CSV file in the Zip, and
+   * infers the schema. Entries without a header are skipped.
+   */
+  public static InferredSchema infer(
+      ZipInputStream in, CSVFormat format, String databaseName, int sampleSize)
+      throws IOException {
+    checkArgument(sampleSize > 0, "sampleSize=%s", sampleSize);
+    DescriptorProto.Builder database = DescriptorProto.newBuilder().setName(databaseName);
+    FileDescriptorProto.Builder file = FileDescriptorProto.newBuilder()
+        .setName(databaseName + ".proto");
+    Map<String, List<String>> entryHeaders = Maps.newLinkedHashMap();
+    Set<String> tableNames = Sets.newHashSet();
+    Set<String> messageNames = Sets.newHashSet(databaseName);
+    for (ZipEntry e = in.getNextEntry(); e != null; e = in.getNextEntry()) {
+      if (e.isDirectory()) {
+        continue;
+      }
+      Iterator<CSVRecord> records =
+          format.parse(new InputStreamReader(in, Charsets.UTF_8)).iterator();
+      if (!records.hasNext()) {
+        continue;
+      }
+      List<String> header = Lists.newArrayList(records.next());
+      List<ColumnSample> samples = Lists.newArrayList();
+      for (int i = 0; i < header.size(); ++i) {
+        samples.add(new ColumnSample());
+      }
+      for (int n = 0; n < sampleSize && records.hasNext(); ++n) {
+        CSVRecord record = records.next();
+        for (int i = 0; i < header.size() && i < record.size(); ++i) {
+          String value = CharMatcher.WHITESPACE.trimFrom(record.get(i));
+          if (!value.isEmpty()) {
+            samples.get(i).add(value);
+          }
+        }
+      }
+      String tableName = uniqueName(toIdentifier(Files.getNameWithoutExtension(e.getName())),
+          tableNames);
+      String messageName = uniqueName(CaseFormat.LOWER_UNDERSCORE.to(
+          CaseFormat.UPPER_CAMEL, tableName) + "Record", messageNames);
+      DescriptorProto.Builder table = file.addMessageTypeBuilder().setName(messageName);
+      Set<String> fieldNames = Sets.newHashSet();
+      for (int i = 0; i < header.size(); ++i) {
+        table.addFieldBuilder()
+            .setName(uniqueName(toIdentifier(header.get(i)), fieldNames))
+            .setNumber(i + 1)
+            .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+            .setType(samples.get(i).getType());
+      }
+      database.addFieldBuilder()
+          .setName(tableName)
+          .setNumber(entryHeaders.size() + 1)
+          .setLabel(FieldDescriptorProto.Label.LABEL_REPEATED)
+          .setType(FieldDescriptorProto.Type.TYPE_MESSAGE)
+          .setTypeName(messageName);
+      entryHeaders.put(e.getName(), header);
+    }
+    file.addMessageType(database);
+    Descriptor databaseSchema;
+    try {
+      databaseSchema = FileDescriptor.buildFrom(file.build(), new FileDescriptor[0])
+          .findMessageTypeByName(databaseName);
+    } catch (DescriptorValidationException e) {
+      throw new IllegalArgumentException(e);
+    }
+    Map<String, FieldDescriptor> tablesByEntryName = Maps.newHashMap();
+    Map<FieldDescriptor, List<String>> headers = Maps.newHashMap();
+    int number = 0;
+    for (Map.Entry<String, List<String>> e : entryHeaders.entrySet()) {
+      FieldDescriptor table = databaseSchema.getFields().get(number++);
+      tablesByEntryName.put(e.getKey(), table);
+      headers.put(table, ImmutableList.copyOf(e.getValue()));
+    }
+    return new InferredSchema(databaseSchema, tablesByEntryName, headers);
+  }
+
+  private InferredSchema(Descriptor databaseSchema,
+      Map<String, FieldDescriptor> tablesByEntryName, Map<FieldDescriptor, List<String>> headers) {
+    this.databaseSchema = databaseSchema;
+    this.tablesByEntryName = tablesByEntryName;
+    this.headers = headers;
+  }
+
+  /**
+   * Returns the database schema, with a repeated message field for each table.
+   */
+  public Descriptor getDescriptor() {
+    return databaseSchema;
+  }
+
+  /**
+   * Returns an empty database proto, for SqProto.create().
+   */
+  public DynamicMessage getTemplate() {
+    return DynamicMessage.getDefaultInstance(databaseSchema);
+  }
+
+  /**
+   * Parses the CSV files in the Zip into typed records, and returns them in batches of
+   * one table, as CsvToPb.parseTablesFromZip() does. Entries that weren't in the Zip
+   * the schema was inferred from are skipped.
+   */
+  public void parseTablesFromZip(ZipInputStream in, CSVFormat format, int batchSize,
+      Receiver<CsvToPb.TableRecord> inconsistent, Receiver<InvalidValue> invalid,
+      BatchReceiver<Message> recv) throws IOException {
+    checkArgument(batchSize > 0, "Batch size must be positive: %s", batchSize);
+    byte[][] buffers = ReadAheadInputStream.newBuffers();
+    List<Message> batch = Lists.newArrayListWithCapacity(batchSize);
+    for (ZipEntry e = in.getNextEntry(); e != null; e = in.getNextEntry()) {
+      FieldDescriptor table = tablesByEntryName.get(e.getName());
+      if (table != null) {
+        Tracer.Span span = Tracer.begin(Tracer.Stage.ENTRY_READ, table.getName());
+        ReadAheadInputStream entry = new ReadAheadInputStream(in, buffers);
+        try {
+          CSVParser parser = format.parse(new InputStreamReader(entry, Charsets.UTF_8));
+          int recordCount = parseTable(table, entry, parser.iterator(), batchSize,
+              inconsistent, invalid, batch, recv);
+          span.end(recordCount, entry.getByteCount());
+        } finally {
+          entry.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses the records of a table in batches, filling and reusing the batch list, and
+   * returns the number of records.
+   */
+  private int parseTable(FieldDescriptor table, ReadAheadInputStream in,
+      Iterator<CSVRecord> records, int batchSize, Receiver<CsvToPb.TableRecord> inconsistent,
+      Receiver<InvalidValue> invalid, List<Message> batch, BatchReceiver<Message> recv) {
+    checkState(records.hasNext() && Lists.newArrayList(records.next()).equals(headers.get(table)),
+        "The header of %s changed since the schema was inferred", table.getName());
+    List<FieldDescriptor> fields = table.getMessageType().getFields();
+    int recordCount = 0;
+    long byteCount = 0;
+    int invalidCount = 0;
+    // Each span starts with the first record of its batch, so none is left open.
+    Tracer.Span span = null;
+    while (records.hasNext()) {
+      if (span == null) {
+        span = Tracer.begin(Tracer.Stage.BATCH_PARSED, table.getName());
+      }
+      CSVRecord record = records.next();
+      if (record.size() != fields.size()) {
+        inconsistent.receive(new CsvToPb.TableRecord(table, record));
+        continue;
+      }
+      DynamicMessage.Builder row = DynamicMessage.newBuilder(table.getMessageType());
+      for (int i = 0; i < fields.size(); ++i) {
+        String value = CharMatcher.WHITESPACE.trimFrom(record.get(i));
+        if (value.isEmpty()) {
+          continue;
+        }
+        Object parsed = parseValue(fields.get(i), value);
+        if (parsed != null) {
+          row.setField(fields.get(i), parsed);
+        } else {
+          invalid.receive(
+              new InvalidValue(table, fields.get(i), record.getRecordNumber(), value));
+          ++invalidCount;
+        }
+      }
+      batch.add(row.build());
+      if (batch.size() == batchSize || !records.hasNext()) {
+        span.end(batch.size(), in.getByteCount() - byteCount, invalidCount);
+        byteCount = in.getByteCount();
+        invalidCount = 0;
+        recordCount += batch.size();
+        recv.receive(table, batch);
+        batch.clear();
+        span = null;
+      }
+    }
+    if (span != null) {
+      // The last records were inconsistent, and may have followed a partial batch.
+      span.end(batch.size(), in.getByteCount() - byteCount, invalidCount);
+      if (!batch.isEmpty()) {
+        recordCount += batch.size();
+        recv.receive(table, batch);
+        batch.clear();
+      }
+    }
+    return recordCount;
+  }
+
+  /**
+   * Parses a value as the type of its field, or returns null if it doesn't parse.
+   */
+  private static Object parseValue(FieldDescriptor field, String value) {
+    switch (field.getJavaType()) {
+      case BOOLEAN:
+        return value.equals("Y") ? Boolean.TRUE : value.equals("N") ? Boolean.FALSE : null;
+      case LONG:
+        long parsed = parseInteger(value);
+        return parsed == TextParsers.INVALID ? null : Long.valueOf(parsed);
+      case DOUBLE:
+        return REAL.matcher(value).matches() ? Double.valueOf(value) : null;
+      default:
+        return value;
+    }
+  }
+
+  /**
+   * Parses a whole number that isn't a code, or returns TextParsers.INVALID.
+   */
+  private static long parseInteger(String value) {
+    return INTEGER.matcher(value).matches() ? TextParsers.parseLong(value) : TextParsers.INVALID;
+  }
+
+  /**
+   * Converts a file or column name to a lower case identifier, which works as a proto
+   * field name and a SQLite table or column name. Names that would start with a digit
+   * or be a SQL keyword are prefixed, so that the queries don't need quoting, as are
+   * names that SQLite reserves.
+   */
+  static String toIdentifier(String name) {
+    String identifier = CharMatcher.JAVA_LETTER_OR_DIGIT.negate()
+        .trimAndCollapseFrom(name.toLowerCase(Locale.ROOT), '_');
+    if (identifier.isEmpty() || !CharMatcher.JAVA_LETTER.matches(identifier.charAt(0))
+        || SQL_KEYWORDS.contains(identifier) || identifier.startsWith("sqlite_")) {
+      identifier = "c_" + identifier;
+    }
+    return CharMatcher.ASCII.negate().replaceFrom(identifier, '_');
+  }
+
+  /**
+   * Returns the name, with a number appended if it's taken, and takes it.
+   */
+  private static String uniqueName(String name, Set<String> taken) {
+    String unique = name;
+    for (int i = 2; !taken.add(unique); ++i) {
+      unique = name + "_" + i;
+    }
+    return unique;
+  }
+}
@@ -0,0 +1,81 @@
+package org.ij.p4p.util;
+
+import java.util.Arrays;
+
+/**
+ * Maps the values of an integer column to row numbers, using open addressing over
+ * primitive arrays. Rows with the same value are chained, so joins on keys that
+ * aren't unique return every matching row.
+ */
+public class LongHashIndex {
+  private final long[] keys;
+  private final int[] firstRows;
+  private final int[] nextRows;
+  private final int mask;
+  private int keyCount = 0;
+
+  private LongHashIndex(int capacity, int rowCount) {
+    keys = new long[capacity];
+    firstRows = new int[capacity];
+    Arrays.fill(firstRows, -1);
+    nextRows = new int[rowCount];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Indexes the non-null values of the column.
+   */
+  public static LongHashIndex build(ColumnTable.LongColumn column) {
+    int rowCount = column.values.length;
+    LongHashIndex index = new LongHashIndex(
+        Integer.highestOneBit(Math.max(rowCount, 1)) * 4, rowCount);
+    // Insert in reverse, so that chains are in row order.
+    for (int row = rowCount - 1; row >= 0; --row) {
+      if (!column.isNull(row)) {
+        index.insert(column.values[row], row);
+      }
+    }
+    return index;
+  }
+
+  private void insert(long key, int row) {
+    int slot = slot(key);
+    if (firstRows[slot] < 0) {
+      keys[slot] = key;
+      ++keyCount;
+      nextRows[row] = -1;
+    } else {
+      nextRows[row] = firstRows[slot];
+    }
+    firstRows[slot] = row;
+  }
+
+  private int slot(long key) {
+    int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    while (firstRows[slot] >= 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the first row with the key, or -1 if there are none.
+   */
+  public int getFirstRow(long key) {
+    return firstRows[slot(key)];
+  }
+
+  /**
+   * Returns the next row with the same key as the given row, or -1 if there are no more.
+   */
+  public int getNextRow(int row) {
+    return nextRows[row];
+  }
+
+  /**
+   * Returns the number of distinct keys.
+   */
+  public int getKeyCount() {
+    return keyCount;
+  }
+}
@@ -0,0 +1,92 @@
+package org.ij.p4p.util;
+
+import java.util.Arrays;
+
+/**
+ * A set of long values in primitive arrays. Values from 0 to 2^32 - 1, such as record
+ * IDs, are held in a bitmap with pages of 64K bits that are allocated as needed, so
+ * dense IDs cost about one bit each. Other values go into an open addressing hash
+ * table.
+ */
+public class LongSet {
+  private static final int PAGE_BITS = 16;
+  private static final long BITMAP_LIMIT = 1L << 32;
+
+  private long[][] pages = new long[16][];
+  // Zero always goes into the bitmap, so it marks empty slots here.
+  private long[] hashKeys = new long[16];
+  private int hashCount = 0;
+  private int size = 0;
+
+  /**
+   * Adds a value, and returns true if it wasn't already in the set.
+   */
+  public boolean add(long value) {
+    if (value >= 0 && value < BITMAP_LIMIT) {
+      int page = (int) (value >>> PAGE_BITS);
+      if (page >= pages.length) {
+        pages = Arrays.copyOf(pages, Math.max(page + 1, pages.length * 2));
+      }
+      if (pages[page] == null) {
+        pages[page] = new long[1 << (PAGE_BITS - 6)];
+      }
+      int word = ((int) value & ((1 << PAGE_BITS) - 1)) >>> 6;
+      long bit = 1L << value;
+      if ((pages[page][word] & bit) != 0) {
+        return false;
+      }
+      pages[page][word] |= bit;
+      ++size;
+      return true;
+    }
+    if ((hashCount + 1) * 2 > hashKeys.length) {
+      rehash(hashKeys.length * 2);
+    }
+    int slot = slot(hashKeys, value);
+    if (hashKeys[slot] == value) {
+      return false;
+    }
+    hashKeys[slot] = value;
+    ++hashCount;
+    ++size;
+    return true;
+  }
+
+  public boolean contains(long value) {
+    if (value >= 0 && value < BITMAP_LIMIT) {
+      int page = (int) (value >>> PAGE_BITS);
+      if (page >= pages.length || pages[page] == null) {
+        return false;
+      }
+      int word = ((int) value & ((1 << PAGE_BITS) - 1)) >>> 6;
+      return (pages[page][word] & (1L << value)) != 0;
+    }
+    return hashKeys[slot(hashKeys, value)] == value;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private void rehash(int capacity) {
+    long[] rehashed = new long[capacity];
+    for (long key : hashKeys) {
+      if (key != 0) {
+        rehashed[slot(rehashed, key)] = key;
+      }
+    }
+    hashKeys = rehashed;
+  }
+
+  /**
+   * Returns the slot holding the key, or the empty slot where it belongs.
+   */
+  private static int slot(long[] keys, long key) {
+    int mask = keys.length - 1;
+    int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    while (keys[slot] != 0 && keys[slot] != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+}
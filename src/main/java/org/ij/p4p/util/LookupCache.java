@@ -0,0 +1,79 @@
+package org.ij.p4p.util;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableTable;
+import com.google.common.collect.Table;
+import com.google.common.io.Files;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVRecord;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Holds the contents of small lookup tables in memory, as descriptions keyed by table
+ * name and code. Lookup tables are read generically by column position, so they
+ * don't need a proto per table.
+ */
+public class LookupCache {
+  private final ImmutableTable<String, String, String> descriptions;
+
+  public LookupCache(ImmutableTable<String, String, String> descriptions) {
+    this.descriptions = descriptions;
+  }
+
+  /**
+   * Returns the description of a code, or null if the table or code is unknown.
+   */
+  public String getDescription(String tableName, String code) {
+    return descriptions.get(tableName, code);
+  }
+
+  public ImmutableSet<String> getTableNames() {
+    return descriptions.rowKeySet();
+  }
+
+  /**
+   * Returns the total number of codes in the lookup tables.
+   */
+  public int size() {
+    return descriptions.size();
+  }
+
+  /**
+   * Reads the CSV files in the Zip with names (without extension) ending with the
+   * suffix, such as "_L". Records without a code or description are skipped, and if
+   * a code appears more than once, the first description is kept.
+   */
+  public static LookupCache readFromZip(ZipInputStream in, CSVFormat format, String suffix)
+      throws IOException {
+    final Table<String, String, String> descriptions = HashBasedTable.create();
+    for (ZipEntry e = in.getNextEntry(); e != null; e = in.getNextEntry()) {
+      final String tableName = Files.getNameWithoutExtension(e.getName());
+      if (!tableName.endsWith(suffix)) {
+        continue;
+      }
+      CsvToPb.parseCsvDataByPosition(
+          format,
+          LookupEntry.getDefaultInstance(),
+          new InputStreamReader(in, Charsets.UTF_8),
+          new Receiver<CSVRecord>() {
+            public void receive(CSVRecord record) {
+            }
+          },
+          new Receiver<LookupEntry>() {
+            public void receive(LookupEntry entry) {
+              if (entry.hasCode() && entry.hasDescription()
+                  && !descriptions.contains(tableName, entry.getCode())) {
+                descriptions.put(tableName, entry.getCode(), entry.getDescription());
+              }
+            }
+          });
+    }
+    return new LookupCache(ImmutableTable.copyOf(descriptions));
+  }
+}
@@ -0,0 +1,43 @@
+package org.ij.p4p.util;
+
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+/**
+ * Helpers for hashing and comparing the integer values of proto fields.
+ */
+public class Numbers {
+  private Numbers() {
+  }
+
+  /**
+   * Scrambles the bits of a value, so that a range of the results is a random sample
+   * of the values, and numbers can be hashed without allocating. This is the
+   * finalizer of the SplitMix64 generator.
+   */
+  public static long mix(long x) {
+    x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+    x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+    return x ^ (x >>> 31);
+  }
+
+  /**
+   * Returns the value of a boolean, enum or integer field as a long, with unsigned
+   * 32-bit values widened.
+   */
+  public static long toLong(FieldDescriptor field, Object value) {
+    switch (field.getJavaType()) {
+      case BOOLEAN:
+        return ((Boolean) value) ? 1 : 0;
+      case ENUM:
+        return ((EnumValueDescriptor) value).getNumber();
+      case INT:
+        int intValue = (Integer) value;
+        return field.getType() == FieldDescriptor.Type.UINT32
+            || field.getType() == FieldDescriptor.Type.FIXED32
+            ? intValue & 0xFFFFFFFFL : intValue;
+      default:
+        return (Long) value;
+    }
+  }
+}
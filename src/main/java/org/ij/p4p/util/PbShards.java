@@ -0,0 +1,233 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.io.CountingOutputStream;
+import com.google.common.io.Files;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.TextFormat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes batches of records as sharded files of length-delimited protos,
+ * optionally GZIP compressed. The batch protos have the same structure as the SqProto
+ * database schema (repeated fields of records), so the Writer can receive batches from
+ * SqProto.snapshot() or from a CSV import, and the read functions can feed batches to
+ * SqProto.insertSnapshot(). An index file records the number of records and the offset
+ * of each batch within each shard. Each batch of a compressed shard is a separate GZIP
+ * member, so the offsets are positions in the file, where a reader can seek to a batch
+ * and decompress it alone; the members read back as one stream.
+ */
+public class PbShards {
+  public static final String INDEX_FILE_NAME = "index.pbtxt";
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  /**
+   * Receives batches and writes them round-robin to the shards. The index is
+   * written when the writer is closed, and not if it's aborted.
+   */
+  public static class Writer<T extends Message> implements Receiver<T>, Closeable {
+    private final File directory;
+    private final PbShardIndex.Builder index;
+    private final List<CountingOutputStream> shards;
+    private int nextShard = 0;
+
+    private Writer(File directory, PbShardIndex.Builder index,
+        List<CountingOutputStream> shards) {
+      this.directory = directory;
+      this.index = index;
+      this.shards = shards;
+    }
+
+    public void receive(T batch) {
+      int shardIndex = nextShard;
+      nextShard = (nextShard + 1) % shards.size();
+      CountingOutputStream out = shards.get(shardIndex);
+      PbShard.Builder shard = index.getShardBuilder(shardIndex);
+      int recordCount = countRecords(batch);
+      shard.addBlockBuilder().setOffset(out.getCount()).setRecordCount(recordCount);
+      shard.setRecordCount(shard.getRecordCount() + recordCount);
+      try {
+        if (index.getCompressed()) {
+          ByteArrayOutputStream member = new ByteArrayOutputStream();
+          GZIPOutputStream gzip = new GZIPOutputStream(member);
+          batch.writeDelimitedTo(gzip);
+          gzip.close();
+          member.writeTo(out);
+        } else {
+          batch.writeDelimitedTo(out);
+        }
+      } catch (IOException e) {
+        throw Throwables.propagate(e);
+      }
+    }
+
+    public void close() throws IOException {
+      for (int i = 0; i < shards.size(); ++i) {
+        shards.get(i).close();
+        index.getShardBuilder(i).setByteCount(shards.get(i).getCount());
+      }
+      Files.write(TextFormat.printToString(index.build()),
+          new File(directory, INDEX_FILE_NAME), Charsets.UTF_8);
+    }
+
+    /**
+     * Closes the shards without writing the index, so that an incomplete directory
+     * can't be read.
+     */
+    public void abort() {
+      for (CountingOutputStream shard : shards) {
+        try {
+          Closeables.close(shard, true);
+        } catch (IOException e) {
+          // Not thrown when swallowing.
+        }
+      }
+    }
+  }
+
+  /**
+   * Creates the directory and opens a writer with the given number of shards.
+   */
+  public static <T extends Message> Writer<T> newWriter(
+      File directory, int shardCount, boolean compressed, T template) throws IOException {
+    checkArgument(shardCount > 0);
+    directory.mkdirs();
+    checkArgument(directory.isDirectory(), "Not a directory: %s", directory);
+    PbShardIndex.Builder index = PbShardIndex.newBuilder()
+        .setMessageType(template.getDescriptorForType().getFullName())
+        .setCompressed(compressed);
+    List<CountingOutputStream> shards = Lists.newArrayListWithCapacity(shardCount);
+    for (int i = 0; i < shardCount; ++i) {
+      String fileName = String.format("shard-%05d-of-%05d.pb%s",
+          i, shardCount, compressed ? ".gz" : "");
+      index.addShardBuilder().setFileName(fileName).setRecordCount(0);
+      shards.add(new CountingOutputStream(new BufferedOutputStream(
+          new FileOutputStream(new File(directory, fileName)), IO_BUFFER_SIZE)));
+    }
+    return new Writer<T>(directory, index, shards);
+  }
+
+  /**
+   * Reads the index file from the directory.
+   */
+  public static PbShardIndex readIndex(File directory) throws IOException {
+    PbShardIndex.Builder b = PbShardIndex.newBuilder();
+    TextFormat.merge(Files.toString(new File(directory, INDEX_FILE_NAME), Charsets.UTF_8), b);
+    return b.build();
+  }
+
+  /**
+   * Reads the batches from each shard in turn.
+   */
+  public static <T extends Message> void read(
+      File directory, T template, Receiver<T> recv) throws IOException {
+    PbShardIndex index = readIndex(directory);
+    for (PbShard shard : index.getShardList()) {
+      readShard(directory, index, shard, template, recv);
+    }
+  }
+
+  /**
+   * Reads the shards in parallel, using up to threadCount threads. The Receiver is
+   * called concurrently, so it must be thread safe.
+   */
+  public static <T extends Message> void readParallel(
+      final File directory, final T template, int threadCount, final Receiver<T> recv)
+      throws IOException {
+    final PbShardIndex index = readIndex(directory);
+    ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+    try {
+      List<Future<Void>> futures = Lists.newArrayList();
+      for (final PbShard shard : index.getShardList()) {
+        futures.add(executor.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+              readShard(directory, index, shard, template, recv);
+              return null;
+            }
+          }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+          Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+          throw Throwables.propagate(e.getCause());
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Reads the batches from a shard, and verifies the record count against the index.
+   */
+  private static <T extends Message> void readShard(File directory, PbShardIndex index,
+      PbShard shard, T template, Receiver<T> recv) throws IOException {
+    checkArgument(index.getMessageType().equals(template.getDescriptorForType().getFullName()),
+        "Expected %s records.", index.getMessageType());
+    InputStream in = new BufferedInputStream(
+        new FileInputStream(new File(directory, shard.getFileName())), IO_BUFFER_SIZE);
+    if (index.getCompressed()) {
+      in = new GZIPInputStream(in, IO_BUFFER_SIZE);
+    }
+    try {
+      long recordCount = 0;
+      while (true) {
+        Message.Builder b = template.newBuilderForType();
+        if (!b.mergeDelimitedFrom(in)) {
+          break;
+        }
+        T batch = (T) b.build();
+        recordCount += countRecords(batch);
+        recv.receive(batch);
+      }
+      if (recordCount != shard.getRecordCount()) {
+        throw new IOException(String.format("%s: expected %d records, read %d",
+            shard.getFileName(), shard.getRecordCount(), recordCount));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the number of records in a batch, summed over the repeated fields.
+   */
+  private static int countRecords(Message batch) {
+    int recordCount = 0;
+    for (FieldDescriptor table : batch.getDescriptorForType().getFields()) {
+      if (table.isRepeated()) {
+        recordCount += batch.getRepeatedFieldCount(table);
+      }
+    }
+    return recordCount;
+  }
+}
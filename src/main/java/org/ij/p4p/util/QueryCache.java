@@ -0,0 +1,248 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches the results of queries of one database in memory, for reports that run the
+ * same queries over data that rarely changes. Results are keyed on the query with
+ * its whitespace normalized, the parameters, and the generation of the database
+ * (its user_version, which imports increment when they commit). A query that sees a
+ * new generation never matches a result of an older one, and the older results are
+ * dropped. The least recently used results are evicted to keep the cache within a
+ * size in bytes.
+ */
+public class QueryCache {
+  private final Cache<Key, Result> cache;
+  private volatile int lastGeneration = -1;
+
+  /**
+   * Writes the results of a query, for caching the encoded results.
+   */
+  public interface ResultWriter {
+    void write(ResultSet rs, OutputStream out) throws IOException, SQLException;
+  }
+
+  /**
+   * A query and the generation of the data it ran on. The format distinguishes the
+   * different kinds of results of the same query.
+   */
+  private static class Key {
+    final int generation;
+    final String format;
+    final String sql;
+    final List<?> params;
+
+    Key(int generation, String format, String sql, List<?> params) {
+      this.generation = generation;
+      this.format = format;
+      this.sql = sql;
+      this.params = params;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return generation == other.generation && format.equals(other.format)
+          && sql.equals(other.sql) && params.equals(other.params);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(generation, format, sql, params);
+    }
+  }
+
+  /**
+   * A cached result, and its approximate size in bytes.
+   */
+  private static class Result {
+    final Object value;
+    final int size;
+
+    Result(Object value, int size) {
+      this.value = value;
+      this.size = size;
+    }
+  }
+
+  /**
+   * Creates a cache holding up to about maxBytes of results.
+   */
+  public static QueryCache create(long maxBytes) {
+    checkArgument(maxBytes > 0, "maxBytes=%s", maxBytes);
+    return new QueryCache(maxBytes);
+  }
+
+  /**
+   * Use the create() factory function to instantiate.
+   */
+  private QueryCache(long maxBytes) {
+    // A single segment, so that the eviction order is least recently used overall.
+    this.cache = CacheBuilder.newBuilder()
+        .concurrencyLevel(1)
+        .maximumWeight(maxBytes)
+        .weigher(new Weigher<Key, Result>() {
+          public int weigh(Key key, Result result) {
+            return key.sql.length() + result.size;
+          }
+        })
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns the records of a query as protos, like SqProto.readIntoList().
+   */
+  public <P extends Message> ImmutableList<P> readQuery(
+      SqLite sqLite, String sql, List<?> params, final P template) throws SQLException {
+    Result result = get(sqLite, template.getDescriptorForType().getFullName(), sql, params,
+        new Loader() {
+          public Result load(ResultSet rs) throws SQLException {
+            ImmutableList<P> records = ImmutableList.copyOf(SqProto.readIntoList(rs, template));
+            int size = 0;
+            for (P record : records) {
+              size += record.getSerializedSize();
+            }
+            return new Result(records, size);
+          }
+        });
+    return (ImmutableList<P>) result.value;
+  }
+
+  /**
+   * Returns the records of a table, like SqProto.readTable().
+   */
+  public ImmutableList<Message> readTable(SqProto<?> sqProto, FieldDescriptor table)
+      throws SQLException {
+    return readQuery(sqProto.sqLite, "select * from " + table.getName(),
+        ImmutableList.of(), sqProto.getTableTemplate(table));
+  }
+
+  /**
+   * Returns the results of a query as encoded by the writer. The format names the
+   * encoding, and must differ between writers.
+   */
+  public ByteString getEncoded(SqLite sqLite, String format, String sql, List<?> params,
+      final ResultWriter writer) throws SQLException {
+    Result result = get(sqLite, format, sql, params, new Loader() {
+        public Result load(ResultSet rs) throws SQLException {
+          ByteString.Output out = ByteString.newOutput();
+          try {
+            writer.write(rs, out);
+          } catch (IOException e) {
+            throw Throwables.propagate(e);
+          }
+          ByteString encoded = out.toByteString();
+          return new Result(encoded, encoded.size());
+        }
+      });
+    return (ByteString) result.value;
+  }
+
+  /**
+   * Returns the hit and eviction counts of the cache.
+   */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  /**
+   * Returns the number of cached results.
+   */
+  public long size() {
+    return cache.size();
+  }
+
+  private interface Loader {
+    Result load(ResultSet rs) throws SQLException;
+  }
+
+  private Result get(final SqLite sqLite, String format, final String sql,
+      final List<?> params, final Loader loader) throws SQLException {
+    int generation = sqLite.getGeneration();
+    if (generation != lastGeneration) {
+      // The results of other generations won't be used again.
+      cache.invalidateAll();
+      lastGeneration = generation;
+    }
+    Key key = new Key(generation, format, normalize(sql), Lists.newArrayList(params));
+    try {
+      return cache.get(key, new Callable<Result>() {
+          public Result call() throws SQLException {
+            PreparedStatement s = sqLite.connection.prepareStatement(sql);
+            Tracer.Span span = Tracer.begin(Tracer.Stage.QUERY_EXECUTED, sql);
+            try {
+              for (int i = 0; i < params.size(); ++i) {
+                s.setObject(i + 1, params.get(i));
+              }
+              Result result = loader.load(s.executeQuery());
+              span.end(0, result.size);
+              return result;
+            } finally {
+              s.close();
+            }
+          }
+        });
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), SQLException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Collapses runs of whitespace outside of quotes to single spaces, and drops
+   * leading and trailing whitespace and semicolons, so that queries that differ only
+   * in formatting share results.
+   */
+  static String normalize(String sql) {
+    StringBuilder b = new StringBuilder(sql.length());
+    char quote = 0;
+    boolean space = false;
+    for (int i = 0; i < sql.length(); ++i) {
+      char c = sql.charAt(i);
+      if (quote == 0 && Character.isWhitespace(c)) {
+        space = true;
+        continue;
+      }
+      if (space && b.length() > 0) {
+        b.append(' ');
+      }
+      space = false;
+      if (quote == 0 && (c == '\'' || c == '"')) {
+        quote = c;
+      } else if (c == quote) {
+        quote = 0;
+      }
+      b.append(c);
+    }
+    int end = b.length();
+    while (end > 0 && b.charAt(end - 1) == ';') {
+      --end;
+    }
+    return b.substring(0, end).trim();
+  }
+}
@@ -0,0 +1,206 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a stream ahead on its own thread, into a ring of large buffers, so that the
+ * work of producing the bytes, such as inflating a Zip entry, overlaps with the work
+ * of consuming them, such as parsing CSV. The buffers can be reused by the streams of
+ * later entries, since closing a stream waits for its thread to stop reading.
+ *
+ * Closing doesn't close the underlying stream, which may be read again after closing,
+ * as for the next Zip entry. Read errors are thrown to the consumer.
+ */
+public class ReadAheadInputStream extends InputStream {
+  public static final int BUFFER_SIZE = 1 << 20;
+  public static final int BUFFER_COUNT = 4;
+
+  private final InputStream in;
+  private final BlockingQueue<Chunk> empty;
+  private final BlockingQueue<Chunk> filled;
+  private final Thread reader;
+  private volatile boolean closed = false;
+  private Chunk current;
+  private int position;
+  private long byteCount = 0;
+
+  /**
+   * A buffer, and how much of it was filled. A length of -1 marks the end of the
+   * stream, or an error.
+   */
+  private static class Chunk {
+    final byte[] bytes;
+    int length;
+    IOException error;
+
+    Chunk(byte[] bytes) {
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Allocates buffers for read-ahead streams.
+   */
+  public static byte[][] newBuffers() {
+    return new byte[BUFFER_COUNT][BUFFER_SIZE];
+  }
+
+  /**
+   * Starts reading the stream ahead into the buffers, which mustn't be used by another
+   * open stream. Two or more buffers let the reader fill one while another is read.
+   */
+  public ReadAheadInputStream(InputStream in, byte[][] buffers) {
+    checkArgument(buffers.length >= 2, "Read-ahead needs at least two buffers.");
+    this.in = in;
+    this.empty = new ArrayBlockingQueue<Chunk>(buffers.length);
+    // One more for the end marker.
+    this.filled = new ArrayBlockingQueue<Chunk>(buffers.length + 1);
+    for (byte[] buffer : buffers) {
+      empty.add(new Chunk(buffer));
+    }
+    this.reader = new Thread("read-ahead") {
+        public void run() {
+          readAhead();
+        }
+      };
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Fills the empty buffers until the end of the stream, or until closed.
+   */
+  private void readAhead() {
+    Chunk end = new Chunk(null);
+    end.length = -1;
+    try {
+      while (!closed) {
+        Chunk chunk = empty.take();
+        if (closed) {
+          break;
+        }
+        chunk.length = 0;
+        int n = 0;
+        while (chunk.length < chunk.bytes.length
+            && (n = in.read(chunk.bytes, chunk.length, chunk.bytes.length - chunk.length)) >= 0) {
+          chunk.length += n;
+        }
+        if (chunk.length > 0) {
+          filled.add(chunk);
+        }
+        if (n < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      end.error = e;
+    } catch (InterruptedException e) {
+      end.error = new InterruptedIOException();
+    }
+    filled.add(end);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!advance()) {
+      return -1;
+    }
+    return current.bytes[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!advance()) {
+      return -1;
+    }
+    int n = Math.min(len, current.length - position);
+    System.arraycopy(current.bytes, position, b, off, n);
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int available() {
+    return current == null || current.length < 0 ? 0 : current.length - position;
+  }
+
+  /**
+   * Returns the number of bytes read by the consumer so far.
+   */
+  public long getByteCount() {
+    return current == null || current.length < 0 ? byteCount
+        : byteCount - (current.length - position);
+  }
+
+  /**
+   * Moves to the next filled buffer once the current one is read, and returns false
+   * at the end of the stream.
+   */
+  private boolean advance() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+    if (current != null && current.length < 0) {
+      return false;
+    }
+    if (current != null && position < current.length) {
+      return true;
+    }
+    if (current != null) {
+      empty.add(current);
+    }
+    try {
+      current = filled.take();
+    } catch (InterruptedException e) {
+      current = null;
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    position = 0;
+    if (current.error != null) {
+      throw current.error;
+    }
+    if (current.length < 0) {
+      return false;
+    }
+    byteCount += current.length;
+    return true;
+  }
+
+  /**
+   * Stops reading ahead, and waits for the reader thread, so that the underlying
+   * stream can be used again.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    // Return the buffers, in case the reader is waiting for one.
+    if (current != null && current.bytes != null) {
+      empty.add(current);
+    }
+    current = null;
+    for (Chunk chunk; (chunk = filled.poll()) != null;) {
+      if (chunk.bytes != null) {
+        empty.add(chunk);
+      }
+    }
+    try {
+      reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+}
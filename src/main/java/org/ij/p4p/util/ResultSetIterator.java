@@ -0,0 +1,71 @@
+package org.ij.p4p.util;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
+import com.google.protobuf.Message;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Reads the records of a query into protos as the iterator advances, so that only
+ * the current record is held in memory. Closing the iterator closes the statement,
+ * which may be done before the end to stop reading early.
+ */
+class ResultSetIterator<P extends Message> extends AbstractIterator<P>
+    implements CloseableIterator<P> {
+  private final Statement s;
+  private final ResultSet rs;
+  private final P template;
+  private final TableBinder binder;
+  private final int[] columns;
+  private final Tracer.Span span;
+  private int recordCount = 0;
+
+  ResultSetIterator(SqLite sqLite, String query, P template) throws SQLException {
+    this.s = sqLite.connection.createStatement();
+    this.span = Tracer.begin(Tracer.Stage.QUERY_EXECUTED, query);
+    try {
+      this.rs = s.executeQuery(query);
+      this.template = template;
+      this.binder = TableBinder.compile(template.getDescriptorForType());
+      this.columns = binder.findColumns(rs);
+    } catch (SQLException e) {
+      s.close();
+      throw e;
+    }
+  }
+
+  @Override
+  protected P computeNext() {
+    try {
+      if (!rs.next()) {
+        closeStatement();
+        return endOfData();
+      }
+      ++recordCount;
+      Message.Builder b = template.newBuilderForType();
+      binder.read(rs, columns, b);
+      return (P) b.build();
+    } catch (SQLException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  public void close() throws IOException {
+    try {
+      closeStatement();
+    } catch (SQLException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private void closeStatement() throws SQLException {
+    if (!s.isClosed()) {
+      span.end(recordCount, 0);
+      s.close();
+    }
+  }
+}
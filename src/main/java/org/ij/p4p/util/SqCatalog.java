@@ -0,0 +1,183 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Stores snapshots of a SqProto database as partitions, with one SQLite file per
+ * snapshot in a catalog directory. Every partition has the schema of the template
+ * proto, or of an earlier version of it, so retiring a snapshot is a file delete, and
+ * queries scoped to a single snapshot only touch that snapshot's file.
+ *
+ * Queries across snapshots go through a catalog connection, which attaches each
+ * partition under the alias s_[snapshot id] and defines a temporary view per table
+ * that unions the partitions, with a leading snapshot_id column and then the columns
+ * of the template, by name. Columns that a partition lacks are NULL, and partitions
+ * that lack the table are left out. Note that SQLite
+ * limits the number of attached databases (10 by default), which bounds the number
+ * of snapshots that can be queried together.
+ */
+public class SqCatalog<T extends Message> {
+  public static final String FILE_EXTENSION = ".db";
+  public static final String SNAPSHOT_COLUMN = "snapshot_id";
+  private static final Pattern SNAPSHOT_ID = Pattern.compile("[A-Za-z0-9_]+");
+
+  public final File directory;
+  private final T templateProto;
+
+  /**
+   * Instantiates a catalog over a directory, creating the directory if needed.
+   */
+  public static <T extends Message> SqCatalog<T> create(File directory, T template) {
+    directory.mkdirs();
+    checkArgument(directory.isDirectory(), "Not a directory: %s", directory);
+    return new SqCatalog<T>(directory, template);
+  }
+
+  /**
+   * Use the create() factory function to instantiate.
+   */
+  private SqCatalog(File directory, T templateProto) {
+    this.directory = directory;
+    this.templateProto = templateProto;
+  }
+
+  /**
+   * Returns the database file for a snapshot, whether or not it exists.
+   */
+  public File getPartitionFile(String snapshotId) {
+    checkArgument(SNAPSHOT_ID.matcher(snapshotId).matches(), "snapshotId=%s", snapshotId);
+    return new File(directory, snapshotId + FILE_EXTENSION);
+  }
+
+  /**
+   * Returns the ids of the snapshots in the catalog, in sorted order.
+   */
+  public List<String> getSnapshotIds() {
+    List<String> snapshotIds = Lists.newArrayList();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (file.isFile() && name.endsWith(FILE_EXTENSION)) {
+          String snapshotId = name.substring(0, name.length() - FILE_EXTENSION.length());
+          if (SNAPSHOT_ID.matcher(snapshotId).matches()) {
+            snapshotIds.add(snapshotId);
+          }
+        }
+      }
+    }
+    Collections.sort(snapshotIds);
+    return snapshotIds;
+  }
+
+  /**
+   * Opens the database for a single snapshot, creating the file if it doesn't exist.
+   * Tables are not created; call dropAndCreateTables() before importing.
+   */
+  public SqProto<T> openPartition(String snapshotId) throws SQLException {
+    return SqProto.create(SqLite.connect(getPartitionFile(snapshotId).getPath()), templateProto);
+  }
+
+  /**
+   * Retires a snapshot by deleting its database file. Returns false if the snapshot
+   * doesn't exist. Connections to the partition must be closed beforehand.
+   */
+  public boolean dropPartition(String snapshotId) {
+    File file = getPartitionFile(snapshotId);
+    return file.isFile() && file.delete();
+  }
+
+  /**
+   * Opens a catalog connection with all of the snapshots attached.
+   */
+  public SqLite attachAll() throws SQLException {
+    return attach(getSnapshotIds());
+  }
+
+  /**
+   * Opens an in-memory catalog connection, attaches the database for each snapshot,
+   * and creates a view for each table in the schema that unions the snapshots.
+   */
+  public SqLite attach(List<String> snapshotIds) throws SQLException {
+    checkArgument(!snapshotIds.isEmpty(), "No snapshots to attach.");
+    SqLite sqLite = SqLite.connectInMem();
+    for (String snapshotId : snapshotIds) {
+      File file = getPartitionFile(snapshotId);
+      checkArgument(file.isFile(), "No such snapshot: %s", snapshotId);
+      sqLite.attach(file.getPath(), getAlias(snapshotId));
+    }
+    Statement s = sqLite.connection.createStatement();
+    try {
+      for (FieldDescriptor table : templateProto.getDescriptorForType().getFields()) {
+        s.executeUpdate(String.format("create temp view %s as %s",
+            table.getName(), getUnionQuery(sqLite, table, snapshotIds)));
+      }
+    } finally {
+      s.close();
+    }
+    return sqLite;
+  }
+
+  /**
+   * Returns the alias under which a snapshot is attached to a catalog connection.
+   */
+  public static String getAlias(String snapshotId) {
+    return "s_" + snapshotId;
+  }
+
+  /**
+   * Builds a UNION ALL query over the table in each of the attached snapshots that
+   * have it, selecting the columns of the table's fields, or NULL where a snapshot
+   * lacks them. If none of the snapshots have the table, the query has no rows.
+   */
+  private static String getUnionQuery(SqLite sqLite, FieldDescriptor table,
+      List<String> snapshotIds) throws SQLException {
+    ImmutableList.Builder<String> selects = ImmutableList.builder();
+    for (String snapshotId : snapshotIds) {
+      if (sqLite.exists(getAlias(snapshotId), table.getName())) {
+        Set<String> columnNames = Sets.newHashSet();
+        for (SqColumn column : sqLite.getColumns(getAlias(snapshotId), table.getName())) {
+          columnNames.add(column.getColumnName());
+        }
+        selects.add(String.format("select '%s' as %s, %s from %s.%s",
+            snapshotId, SNAPSHOT_COLUMN, getColumns(table, columnNames),
+            getAlias(snapshotId), table.getName()));
+      }
+    }
+    List<String> unions = selects.build();
+    if (unions.isEmpty()) {
+      return String.format("select null as %s, %s where 0",
+          SNAPSHOT_COLUMN, getColumns(table, ImmutableSet.<String>of()));
+    }
+    return Joiner.on(" union all ").join(unions);
+  }
+
+  /**
+   * Returns the select list of the table's fields, with NULL for the fields that
+   * aren't among the column names.
+   */
+  private static String getColumns(FieldDescriptor table, Set<String> columnNames) {
+    List<String> columns = Lists.newArrayList();
+    for (FieldDescriptor field : table.getMessageType().getFields()) {
+      columns.add(columnNames.contains(field.getName())
+          ? field.getName() : "null as " + field.getName());
+    }
+    return Joiner.on(", ").join(columns);
+  }
+}
@@ -0,0 +1,293 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.PeekingIterator;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two databases with the same SqProto schema, and reports the records that
+ * were added, removed or changed in each table. Records are matched by key fields.
+ *
+ * Both versions of a table are streamed in key order and compared with a sorted merge,
+ * so that memory use is bounded regardless of the table size. When a table has an
+ * index on its key fields, SQLite returns the records in key order. Otherwise, the
+ * records are sorted with an ExternalSorter, which spills to disk. Records that share
+ * a key are ordered by the rest of their fields, so that they're paired the same way
+ * whatever order they were stored in, and identical tables have no differences.
+ */
+public class SqDiff<T extends Message> {
+  public static final int MAX_RECORDS_IN_MEMORY = 100000;
+
+  private final SqProto<T> before;
+  private final SqProto<T> after;
+  private final ImmutableMap<String, ImmutableList<String>> tableKeys;
+  private final int maxRecordsInMemory;
+  private final File tempDirectory;
+
+  /**
+   * Instantiates a SqDiff. The table keys map table names to the names of their key
+   * fields. Tables without keys are skipped.
+   */
+  public static <T extends Message> SqDiff<T> create(SqProto<T> before, SqProto<T> after,
+      Map<String, ? extends List<String>> tableKeys) {
+    return create(before, after, tableKeys, MAX_RECORDS_IN_MEMORY, null);
+  }
+
+  /**
+   * Instantiates a SqDiff, specifying the number of records to sort in memory before
+   * spilling to the temporary directory (or the default temporary directory when null).
+   */
+  public static <T extends Message> SqDiff<T> create(SqProto<T> before, SqProto<T> after,
+      Map<String, ? extends List<String>> tableKeys, int maxRecordsInMemory, File tempDirectory) {
+    Descriptor databaseSchema = before.getDatabaseSchema();
+    checkArgument(databaseSchema == after.getDatabaseSchema(), "Schemas don't match.");
+    ImmutableMap.Builder<String, ImmutableList<String>> keys = ImmutableMap.builder();
+    for (Map.Entry<String, ? extends List<String>> e : tableKeys.entrySet()) {
+      FieldDescriptor table = databaseSchema.findFieldByName(e.getKey());
+      checkArgument(table != null, "No such table: %s", e.getKey());
+      checkArgument(!e.getValue().isEmpty(), "No key fields: %s", e.getKey());
+      getFields(table.getMessageType(), e.getValue());
+      keys.put(e.getKey(), ImmutableList.copyOf(e.getValue()));
+    }
+    return new SqDiff<T>(before, after, keys.build(), maxRecordsInMemory, tempDirectory);
+  }
+
+  /**
+   * Use the create() factory function to instantiate.
+   */
+  private SqDiff(SqProto<T> before, SqProto<T> after,
+      ImmutableMap<String, ImmutableList<String>> tableKeys, int maxRecordsInMemory,
+      File tempDirectory) {
+    this.before = before;
+    this.after = after;
+    this.tableKeys = tableKeys;
+    this.maxRecordsInMemory = maxRecordsInMemory;
+    this.tempDirectory = tempDirectory;
+  }
+
+  /**
+   * Compares each table that has key fields, and returns the differences via the Receiver.
+   */
+  public void diff(Receiver<SqRecordDiff> recv) throws SQLException, IOException {
+    for (FieldDescriptor table : before.getDatabaseSchema().getFields()) {
+      List<String> keyNames = tableKeys.get(table.getName());
+      if (keyNames != null) {
+        diffTable(table, getFields(table.getMessageType(), keyNames), recv);
+      }
+    }
+  }
+
+  /**
+   * Compares the two versions of a table with a sorted merge.
+   */
+  private void diffTable(FieldDescriptor table, List<FieldDescriptor> keyFields,
+      Receiver<SqRecordDiff> recv) throws SQLException, IOException {
+    List<FieldDescriptor> fields = table.getMessageType().getFields();
+    Comparator<Message> comparator = new KeyComparator(keyFields);
+    // The other fields break ties between records with the same key.
+    List<FieldDescriptor> sortFields = Lists.newArrayList(keyFields);
+    for (FieldDescriptor field : fields) {
+      if (!keyFields.contains(field)) {
+        sortFields.add(field);
+      }
+    }
+    CloseableIterator<Message> beforeRecords = readSorted(before, table, keyFields, sortFields);
+    try {
+      CloseableIterator<Message> afterRecords = readSorted(after, table, keyFields, sortFields);
+      try {
+        PeekingIterator<Message> a = Iterators.peekingIterator(beforeRecords);
+        PeekingIterator<Message> b = Iterators.peekingIterator(afterRecords);
+        while (a.hasNext() || b.hasNext()) {
+          int c;
+          if (!a.hasNext()) {
+            c = 1;
+          } else if (!b.hasNext()) {
+            c = -1;
+          } else {
+            c = comparator.compare(a.peek(), b.peek());
+          }
+          if (c < 0) {
+            recv.receive(newDiff(SqRecordDiff.Type.REMOVED, table, keyFields, a.next()).build());
+          } else if (c > 0) {
+            recv.receive(newDiff(SqRecordDiff.Type.ADDED, table, keyFields, b.next()).build());
+          } else {
+            Message beforeRecord = a.next();
+            Message afterRecord = b.next();
+            List<String> changed = getChangedFields(fields, beforeRecord, afterRecord);
+            if (!changed.isEmpty()) {
+              recv.receive(newDiff(SqRecordDiff.Type.CHANGED, table, keyFields, afterRecord)
+                  .addAllFieldName(changed).build());
+            }
+          }
+        }
+      } finally {
+        afterRecords.close();
+      }
+    } finally {
+      beforeRecords.close();
+    }
+  }
+
+  /**
+   * Reads a table in the order of the sort fields, which start with the key fields,
+   * either from an index on the keys or via an external sort.
+   */
+  private CloseableIterator<Message> readSorted(SqProto<T> sqProto, FieldDescriptor table,
+      List<FieldDescriptor> keyFields, List<FieldDescriptor> sortFields)
+      throws SQLException, IOException {
+    Message template = sqProto.getTableTemplate(table);
+    if (hasIndex(sqProto.sqLite, table.getName(), keyFields)) {
+      List<String> sortNames = Lists.newArrayListWithCapacity(sortFields.size());
+      for (FieldDescriptor field : sortFields) {
+        sortNames.add(field.getName());
+      }
+      return SqProto.iterateQuery(sqProto.sqLite, String.format("select * from %s order by %s",
+          table.getName(), Joiner.on(",").join(sortNames)), template);
+    }
+    ExternalSorter<Message> sorter = new ExternalSorter<Message>(
+        template, new KeyComparator(sortFields), maxRecordsInMemory, tempDirectory);
+    try {
+      sqProto.readTable(table, sorter);
+      return sorter.sorted();
+    } catch (RuntimeException e) {
+      sorter.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Returns true if the table has an index in the main database with the key fields
+   * as its leading columns.
+   */
+  static boolean hasIndex(SqLite sqLite, String tableName, List<FieldDescriptor> keyFields)
+      throws SQLException {
+    for (SqDatabase database : sqLite.getSchema().getDatabaseList()) {
+      if (!database.getDatabaseName().equals("main")) {
+        continue;
+      }
+      for (SqIndex index : database.getIndexList()) {
+        if (!index.getTableName().equalsIgnoreCase(tableName)
+            || index.getColumnCount() < keyFields.size()) {
+          continue;
+        }
+        boolean matches = true;
+        for (int i = 0; i < keyFields.size(); ++i) {
+          matches &= index.getColumn(i).equalsIgnoreCase(keyFields.get(i).getName());
+        }
+        if (matches) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Builds a diff record, with the key taken from the record.
+   */
+  private static SqRecordDiff.Builder newDiff(SqRecordDiff.Type type, FieldDescriptor table,
+      List<FieldDescriptor> keyFields, Message record) {
+    List<String> keyValues = Lists.newArrayListWithCapacity(keyFields.size());
+    for (FieldDescriptor field : keyFields) {
+      keyValues.add(record.hasField(field) ? String.valueOf(record.getField(field)) : "");
+    }
+    return SqRecordDiff.newBuilder()
+        .setType(type)
+        .setTableName(table.getName())
+        .setRecordKey(Joiner.on(",").join(keyValues));
+  }
+
+  /**
+   * Returns the names of the fields whose values differ between the records.
+   */
+  private static List<String> getChangedFields(
+      List<FieldDescriptor> fields, Message a, Message b) {
+    List<String> changed = Lists.newArrayList();
+    for (FieldDescriptor field : fields) {
+      boolean hasA = a.hasField(field);
+      if (hasA != b.hasField(field)
+          || (hasA && !Objects.equal(a.getField(field), b.getField(field)))) {
+        changed.add(field.getName());
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Looks up fields in the table schema by name.
+   */
+  private static List<FieldDescriptor> getFields(Descriptor tableSchema, List<String> names) {
+    ImmutableList.Builder<FieldDescriptor> fields = ImmutableList.builder();
+    for (String name : names) {
+      FieldDescriptor field = tableSchema.findFieldByName(name);
+      checkArgument(field != null, "No such field: %s.%s", tableSchema.getName(), name);
+      fields.add(field);
+    }
+    return fields.build();
+  }
+
+  /**
+   * Orders records by the values of the key fields. Missing values sort first, as
+   * nulls do in SQLite.
+   */
+  public static class KeyComparator implements Comparator<Message> {
+    private final List<FieldDescriptor> keyFields;
+
+    public KeyComparator(List<FieldDescriptor> keyFields) {
+      this.keyFields = ImmutableList.copyOf(keyFields);
+    }
+
+    public int compare(Message a, Message b) {
+      for (FieldDescriptor field : keyFields) {
+        boolean hasA = a.hasField(field);
+        boolean hasB = b.hasField(field);
+        if (hasA != hasB) {
+          return hasA ? 1 : -1;
+        }
+        if (hasA) {
+          int c = compareValues(field, a.getField(field), b.getField(field));
+          if (c != 0) {
+            return c;
+          }
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * Compares two values of a primitive field.
+     */
+    private static int compareValues(FieldDescriptor field, Object a, Object b) {
+      switch (field.getJavaType()) {
+        case ENUM:
+          return Ints.compare(
+              ((EnumValueDescriptor) a).getNumber(), ((EnumValueDescriptor) b).getNumber());
+        case BYTE_STRING:
+          return UnsignedBytes.lexicographicalComparator().compare(
+              ((ByteString) a).toByteArray(), ((ByteString) b).toByteArray());
+        default:
+          return ((Comparable<Object>) a).compareTo(b);
+      }
+    }
+  }
+}
@@ -4,6 +4,7 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import org.sqlite.SQLiteConfig;
 
 import java.sql.DriverManager;
 import java.sql.Connection;
@@ -13,6 +14,7 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 /**
@@ -25,6 +27,15 @@ public class SqLite {
     this.connection = connection;
   }
 
+  /**
+   * Commits the current transaction.
+   */
+  public void commit() throws SQLException {
+    Tracer.Span span = Tracer.begin(Tracer.Stage.COMMIT, null);
+    connection.commit();
+    span.end(0, 0);
+  }
+
   /**
    * Opens a SQLite connection to a file.
    */
@@ -42,6 +53,21 @@ public class SqLite {
     return new SqLite(connection);
   }
 
+  /**
+   * Opens a read-only SQLite connection to a file. Unlike connect(), each statement
+   * runs in its own transaction, so a long-lived connection sees the latest data.
+   */
+  public static SqLite connectReadOnly(String path) throws SQLException {
+    try {
+      Class.forName("org.sqlite.JDBC");
+    } catch (ClassNotFoundException e) {
+      throw new RuntimeException(e);
+    }
+    SQLiteConfig config = new SQLiteConfig();
+    config.setReadOnly(true);
+    return new SqLite(DriverManager.getConnection("jdbc:sqlite:" + path, config.toProperties()));
+  }
+
   /**
    * Opens a SQLite connection to an in-memory database.
    */
@@ -63,6 +89,49 @@ public class SqLite {
     return connection.prepareStatement("drop table if exists " + name);
   }
 
+  /**
+   * Prepares a DROP VIEW statement.
+   */
+  public PreparedStatement dropView(String name) throws SQLException {
+    return connection.prepareStatement("drop view if exists " + name);
+  }
+
+  /**
+   * Returns true if a table, view, index or trigger has the name in the main database.
+   */
+  public boolean exists(String name) throws SQLException {
+    return exists("main", name);
+  }
+
+  /**
+   * Returns true if a table, view, index or trigger has the name in an attached
+   * database.
+   */
+  public boolean exists(String databaseName, String name) throws SQLException {
+    PreparedStatement s = connection.prepareStatement(
+        String.format("select 1 from %s.sqlite_master where name = ?", databaseName));
+    try {
+      s.setString(1, name);
+      return s.executeQuery().next();
+    } finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Returns true if the name refers to a view in the main database.
+   */
+  public boolean isView(String name) throws SQLException {
+    PreparedStatement s = connection.prepareStatement(
+        "select 1 from sqlite_master where type = 'view' and name = ?");
+    try {
+      s.setString(1, name);
+      return s.executeQuery().next();
+    } finally {
+      s.close();
+    }
+  }
+
   /**
    * Prepares a CREATE TABLE statement.
    */
@@ -71,6 +140,15 @@ public class SqLite {
         "create table if not exists %s(%s)", name, Joiner.on(",").join(columns)));
   }
 
+  /**
+   * Prepares an ALTER TABLE statement that renames a table. Indexes move with the
+   * table, but views that refer to the table by its old name must be recreated.
+   */
+  public PreparedStatement renameTable(String name, String newName) throws SQLException {
+    return connection.prepareStatement(
+        String.format("alter table %s rename to %s", name, newName));
+  }
+
   /**
    * Prepares an INSERT VALUES statement.
    */
@@ -92,6 +170,72 @@ public class SqLite {
     connection.setAutoCommit(false);
   }
 
+  /**
+   * Returns the user_version of the main database, which counts the imports into it.
+   */
+  public int getGeneration() throws SQLException {
+    Statement s = connection.createStatement();
+    try {
+      ResultSet rs = s.executeQuery("pragma user_version");
+      return rs.next() ? rs.getInt(1) : 0;
+    } finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Increments the user_version of the main database, as part of the current
+   * transaction. Caches of query results key on the generation, so this must be done
+   * whenever the data is replaced.
+   */
+  public void bumpGeneration() throws SQLException {
+    int generation = getGeneration();
+    Statement s = connection.createStatement();
+    try {
+      s.executeUpdate("pragma user_version = " + (generation + 1));
+    } finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Switches the database to write-ahead logging, so that readers see the last
+   * committed data while a transaction writes, instead of waiting for it. The mode is
+   * stored in the database file, and has no effect on in-memory databases.
+   */
+  public void enableWal() throws SQLException {
+    connection.setAutoCommit(true);  // The journal mode can't change within a transaction.
+    Statement s = connection.createStatement();
+    try {
+      s.execute("pragma journal_mode = wal");
+    } finally {
+      s.close();
+      connection.setAutoCommit(false);
+    }
+  }
+
+  /**
+   * Returns the columns of each index of a table in the main database, by index name.
+   */
+  public Map<String, List<String>> getIndexes(String tableName) throws SQLException {
+    PreparedStatement s = connection.prepareStatement(
+        "select name from sqlite_master where type = 'index' and tbl_name = ?");
+    Map<String, List<String>> indexes = Maps.newTreeMap();
+    try {
+      s.setString(1, tableName);
+      ResultSet rs = s.executeQuery();
+      while (rs.next()) {
+        indexes.put(rs.getString(1), null);
+      }
+    } finally {
+      s.close();
+    }
+    for (Map.Entry<String, List<String>> e : indexes.entrySet()) {
+      e.setValue(getIndexColumns("main", e.getKey()));
+    }
+    return indexes;
+  }
+
   /**
    * Serializes the schemas for all attached databases to a SqSchema proto.
    */
@@ -143,7 +287,9 @@ public class SqLite {
   private List<SqObject> getObjects(String databaseName) throws SQLException {
     Statement s = connection.createStatement();
     try {
-      ResultSet rs = s.executeQuery(String.format("select * from '%s'.sqlite_master", databaseName));
+      // The temp database has its own name for the master table.
+      ResultSet rs = s.executeQuery(databaseName.equals("temp") ? "select * from sqlite_temp_master"
+          : String.format("select * from '%s'.sqlite_master", databaseName));
       List<SqObject> output = Lists.newArrayListWithCapacity(20);
       while (rs.next()) {
         output.add(toSqObject(rs));
@@ -157,7 +303,7 @@ public class SqLite {
   /**
    * Returns the results of a table_info query.
    */
-  private List<SqColumn> getColumns(String databaseName, String tableName) throws SQLException {
+  List<SqColumn> getColumns(String databaseName, String tableName) throws SQLException {
     Statement s = connection.createStatement();
     try {
       ResultSet rs = s.executeQuery(String.format("pragma '%s'.table_info(%s)", databaseName, tableName));
@@ -1,12 +1,19 @@
 package org.ij.p4p.util;
 
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import com.google.protobuf.ByteString;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.protobuf.Descriptors.Descriptor;
-import com.google.protobuf.Descriptors.EnumValueDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor;
 import com.google.protobuf.Descriptors.FieldDescriptor.JavaType;
 import com.google.protobuf.Message;
@@ -16,8 +23,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Types;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Maps protos to SQLite using reflection.
@@ -33,18 +41,45 @@ import java.util.List;
  * make choices, such as (a) representing the nested data structures using JSON, XML,
  * or as a BLOB (via the proto toByteString method), and (b) what to store in place of
  * a repeated field, if anything, such as a count or an average value.
+ *
+ * String fields with few distinct values can be dictionary encoded. A table with
+ * encoded fields is stored as table_codes, with an integer code in place of each
+ * encoded string, and a table_field_dict table per encoded field maps the codes back
+ * to the strings. A view with the table name joins these to restore the text, so
+ * queries and snapshots see the same records whether or not fields are encoded.
+ *
+ * A database can be reloaded without disturbing its readers through a shadow SqProto,
+ * which stores the tables under names with a _shadow suffix. Once they're loaded and
+ * indexed, replaceLiveTables() swaps them in for the live tables, by renaming.
  */
 public class SqProto<T extends Message> {
   public static final int BATCH_SIZE = 10000;
+  public static final String SHADOW_SUFFIX = "_shadow";
 
   public final SqLite sqLite;
   private final Descriptor databaseSchema;
   private final T templateProto;
+  private final ImmutableSet<FieldDescriptor> encodedFields;
+  // Appended to the names of the tables, for shadow tables.
+  private final String tableSuffix;
+  // Binders compiled for each table, by table field.
+  private final ImmutableMap<FieldDescriptor, TableBinder> binders;
+  // Dictionaries for the encoded fields, by dictionary table name.
+  private final Map<String, Dictionary> dictionaries = Maps.newHashMap();
 
   /**
    * Instantiates a SqProto with the correct descriptor for the schema proto.
    */
   public static <T extends Message> SqProto<T> create(SqLite sqLite, T template) {
+    return create(sqLite, template, ImmutableSet.<FieldDescriptor>of());
+  }
+
+  /**
+   * Instantiates a SqProto that dictionary encodes the given string fields of the
+   * table protos.
+   */
+  public static <T extends Message> SqProto<T> create(
+      SqLite sqLite, T template, Set<FieldDescriptor> encodedFields) {
     Descriptor databaseSchema = template.getDescriptorForType();
     for (FieldDescriptor table : databaseSchema.getFields()) {
       // The database schema proto must contain only repeated proto fields.
@@ -57,25 +92,332 @@ public class SqProto<T extends Message> {
         assertThat(field.getJavaType()).isNotEqualTo(JavaType.MESSAGE);
       }
     }
-    return new SqProto<T>(sqLite, template);
+    for (FieldDescriptor field : encodedFields) {
+      checkArgument(field.getJavaType() == JavaType.STRING,
+          "Only string fields can be encoded: %s", field.getFullName());
+    }
+    return new SqProto<T>(sqLite, template, ImmutableSet.copyOf(encodedFields), "");
   }
 
   /**
    * Use the create() factory function to instantiate.
    */
-  private SqProto(SqLite sqLite, T templateProto) {
+  private SqProto(SqLite sqLite, T templateProto, ImmutableSet<FieldDescriptor> encodedFields,
+      String tableSuffix) {
     this.sqLite = sqLite;
     this.templateProto = templateProto;
     this.databaseSchema = templateProto.getDescriptorForType();
+    this.encodedFields = encodedFields;
+    this.tableSuffix = tableSuffix;
+    ImmutableMap.Builder<FieldDescriptor, TableBinder> binders = ImmutableMap.builder();
+    for (FieldDescriptor table : databaseSchema.getFields()) {
+      binders.put(table, TableBinder.compile(table.getMessageType()));
+    }
+    this.binders = binders.build();
+  }
+
+  /**
+   * The changes made by migrateTables(): the tables that were created, and the fields
+   * that were added to existing tables, by table.
+   */
+  public static class Migration {
+    public final ImmutableSet<FieldDescriptor> createdTables;
+    public final ImmutableListMultimap<FieldDescriptor, FieldDescriptor> addedFields;
+
+    Migration(ImmutableSet<FieldDescriptor> createdTables,
+        ImmutableListMultimap<FieldDescriptor, FieldDescriptor> addedFields) {
+      this.createdTables = createdTables;
+      this.addedFields = addedFields;
+    }
+
+    public boolean isEmpty() {
+      return createdTables.isEmpty() && addedFields.isEmpty();
+    }
+  }
+
+  /**
+   * Returns a SqProto for loading the same tables under shadow names, while readers
+   * keep using the live tables.
+   */
+  public SqProto<T> shadow() {
+    checkState(tableSuffix.isEmpty(), "Already a shadow");
+    return new SqProto<T>(sqLite, templateProto, encodedFields, SHADOW_SUFFIX);
   }
 
   /**
    * Drops and then creates tables corresponding to each field in the schema proto.
+   * With encoded fields, this creates the codes and dictionary tables and the view.
    */
   public void dropAndCreateTables() throws SQLException {
     for (FieldDescriptor table : databaseSchema.getFields()) {
-      sqLite.dropTable(table.getName()).executeUpdate();
-      sqLite.createTable(table.getName(), getSqColumns(table.getMessageType())).executeUpdate();
+      dropTables(table);
+      createTables(table);
+    }
+  }
+
+  /**
+   * Creates the table for a table field, or its codes table, dictionary tables and view.
+   */
+  private void createTables(FieldDescriptor table) throws SQLException {
+    List<FieldDescriptor> fields = table.getMessageType().getFields();
+    if (!isEncoded(table)) {
+      sqLite.createTable(getTableName(table), getSqColumns(fields)).executeUpdate();
+      return;
+    }
+    sqLite.createTable(getPhysicalCodesTableName(table), getSqColumns(fields)).executeUpdate();
+    for (FieldDescriptor field : fields) {
+      if (encodedFields.contains(field)) {
+        String dictionaryTableName = getPhysicalDictionaryTableName(table, field);
+        sqLite.createTable(dictionaryTableName,
+            ImmutableList.of("code int primary key", "value text")).executeUpdate();
+        dictionaries.put(dictionaryTableName, new Dictionary());
+      }
+    }
+    createView(table);
+  }
+
+  /**
+   * Brings the tables in line with the schema proto without dropping any data: creates
+   * the tables that don't exist, and adds a column with ALTER TABLE ADD COLUMN for
+   * each field that an existing table doesn't have. The added columns are null in the
+   * existing records, which updateFields() can fill in. Columns without a field are
+   * left alone, and changing whether a field is encoded requires dropAndCreateTables().
+   */
+  public Migration migrateTables() throws SQLException {
+    Map<String, SqTable> liveTables = Maps.newHashMap();
+    for (SqDatabase database : sqLite.getSchema().getDatabaseList()) {
+      if (database.getDatabaseName().equals("main")) {
+        for (SqTable liveTable : database.getTableList()) {
+          liveTables.put(liveTable.getTableName(), liveTable);
+        }
+      }
+    }
+    ImmutableSet.Builder<FieldDescriptor> createdTables = ImmutableSet.builder();
+    ImmutableListMultimap.Builder<FieldDescriptor, FieldDescriptor> addedFields =
+        ImmutableListMultimap.builder();
+    for (FieldDescriptor table : databaseSchema.getFields()) {
+      boolean encoded = isEncoded(table);
+      String tableName = encoded ? getPhysicalCodesTableName(table) : getTableName(table);
+      String otherTableName = encoded ? getTableName(table) : getPhysicalCodesTableName(table);
+      checkState(!liveTables.containsKey(otherTableName),
+          "The encoding of %s changed, so it must be reloaded", table.getName());
+      SqTable liveTable = liveTables.get(tableName);
+      if (liveTable == null) {
+        dropTables(table);
+        createTables(table);
+        createdTables.add(table);
+        continue;
+      }
+      Set<String> columnNames = Sets.newHashSet();
+      for (SqColumn column : liveTable.getColumnList()) {
+        columnNames.add(column.getColumnName());
+      }
+      boolean added = false;
+      for (FieldDescriptor field : table.getMessageType().getFields()) {
+        String dictionaryTableName = getPhysicalDictionaryTableName(table, field);
+        if (columnNames.contains(field.getName())) {
+          checkState(!encodedFields.contains(field) || liveTables.containsKey(dictionaryTableName),
+              "The encoding of %s changed, so it must be reloaded", field.getFullName());
+          continue;
+        }
+        Statement s = sqLite.connection.createStatement();
+        try {
+          s.executeUpdate(String.format("alter table %s add column %s", tableName,
+              Iterables.getOnlyElement(getSqColumns(ImmutableList.of(field)))));
+        } finally {
+          s.close();
+        }
+        if (encodedFields.contains(field)) {
+          sqLite.dropTable(dictionaryTableName).executeUpdate();
+          sqLite.createTable(dictionaryTableName,
+              ImmutableList.of("code int primary key", "value text")).executeUpdate();
+          dictionaries.put(dictionaryTableName, new Dictionary());
+        }
+        addedFields.put(table, field);
+        added = true;
+      }
+      if (encoded && added) {
+        sqLite.dropView(getTableName(table)).executeUpdate();
+        createView(table);
+      }
+    }
+    return new Migration(createdTables.build(), addedFields.build());
+  }
+
+  /**
+   * Returns the keys that don't identify a single record of the table: the values of
+   * the key fields that more than one record has, and of records with a null key field,
+   * up to the limit. Null values are null in the lists.
+   */
+  public List<List<String>> findAmbiguousKeys(FieldDescriptor table,
+      List<FieldDescriptor> keyFields, int limit) throws SQLException {
+    checkArgument(!keyFields.isEmpty());
+    List<String> columns = Lists.newArrayList();
+    List<String> nullChecks = Lists.newArrayList("count(*) > 1");
+    for (FieldDescriptor field : keyFields) {
+      columns.add(field.getName());
+      nullChecks.add(field.getName() + " is null");
+    }
+    String keyColumns = Joiner.on(", ").join(columns);
+    PreparedStatement s = sqLite.connection.prepareStatement(String.format(
+        "select %s from %s group by %s having %s limit ?", keyColumns, getTableName(table),
+        keyColumns, Joiner.on(" or ").join(nullChecks)));
+    try {
+      s.setInt(1, limit);
+      ResultSet rs = s.executeQuery();
+      List<List<String>> keys = Lists.newArrayList();
+      while (rs.next()) {
+        List<String> key = Lists.newArrayList();
+        for (int i = 1; i <= keyFields.size(); ++i) {
+          key.add(rs.getString(i));
+        }
+        keys.add(key);
+      }
+      return keys;
+    } finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Sets fields of the records in a table that match the given records on the key
+   * fields, such as to fill in the columns added by migrateTables(). Every matching
+   * record is set, so the keys should be unique; see findAmbiguousKeys(). Records with
+   * null keys, or with encoded key values that aren't in the dictionary, match none.
+   */
+  public void updateFields(FieldDescriptor table, List<FieldDescriptor> keyFields,
+      List<FieldDescriptor> fields, List<? extends MessageOrBuilder> records)
+      throws SQLException {
+    checkArgument(!keyFields.isEmpty() && !fields.isEmpty());
+    boolean encoded = isEncoded(table);
+    String tableName = encoded ? getPhysicalCodesTableName(table) : getTableName(table);
+    List<String> assignments = Lists.newArrayList();
+    for (FieldDescriptor field : fields) {
+      assignments.add(field.getName() + " = ?");
+    }
+    List<String> conditions = Lists.newArrayList();
+    for (FieldDescriptor field : keyFields) {
+      conditions.add(field.getName() + " = ?");
+    }
+    List<FieldDescriptor> parameters = Lists.newArrayList(Iterables.concat(fields, keyFields));
+    Dictionary[] parameterDictionaries = new Dictionary[parameters.size()];
+    for (int i = 0; i < parameterDictionaries.length; ++i) {
+      if (encodedFields.contains(parameters.get(i))) {
+        parameterDictionaries[i] =
+            getDictionary(getPhysicalDictionaryTableName(table, parameters.get(i)));
+      }
+    }
+    TableBinder binder = binders.get(table);
+    PreparedStatement update = sqLite.connection.prepareStatement(String.format(
+        "update %s set %s where %s", tableName, Joiner.on(", ").join(assignments),
+        Joiner.on(" and ").join(conditions)));
+    try {
+      records:
+      for (MessageOrBuilder record : records) {
+        for (int i = 0; i < parameters.size(); ++i) {
+          FieldDescriptor field = parameters.get(i);
+          boolean isKey = i >= fields.size();
+          if (isKey && !record.hasField(field)) {
+            continue records;
+          }
+          if (parameterDictionaries[i] == null || !record.hasField(field)) {
+            binder.bind(update, i + 1, field.getIndex(), record);
+          } else if (!isKey) {
+            update.setInt(i + 1, parameterDictionaries[i].encode((String) record.getField(field)));
+          } else {
+            Integer code = parameterDictionaries[i].codes.get((String) record.getField(field));
+            if (code == null) {
+              continue records;
+            }
+            update.setInt(i + 1, code);
+          }
+        }
+        update.addBatch();
+      }
+      update.executeBatch();
+    } finally {
+      update.close();
+    }
+    for (int i = 0; i < fields.size(); ++i) {
+      if (parameterDictionaries[i] != null) {
+        storeNewValues(getPhysicalDictionaryTableName(table, fields.get(i)),
+            parameterDictionaries[i]);
+      }
+    }
+  }
+
+  /**
+   * Replaces the live tables with the tables of this shadow SqProto, by dropping the
+   * live tables and renaming the shadow tables, with their indexes. This only changes
+   * the schema, so it's quick, and when done within a transaction, readers of a
+   * database in WAL mode switch from the old tables to the new tables at the commit.
+   */
+  public void replaceLiveTables() throws SQLException {
+    checkState(!tableSuffix.isEmpty(), "Not a shadow");
+    SqProto<T> live = new SqProto<T>(sqLite, templateProto, encodedFields, "");
+    for (FieldDescriptor table : databaseSchema.getFields()) {
+      live.dropTables(table);
+      if (!isEncoded(table)) {
+        sqLite.renameTable(getTableName(table), table.getName()).executeUpdate();
+        continue;
+      }
+      // The view refers to the shadow tables by name, so it's recreated.
+      sqLite.dropView(getTableName(table)).executeUpdate();
+      sqLite.renameTable(getPhysicalCodesTableName(table), getCodesTableName(table))
+          .executeUpdate();
+      for (FieldDescriptor field : table.getMessageType().getFields()) {
+        if (encodedFields.contains(field)) {
+          sqLite.renameTable(getPhysicalDictionaryTableName(table, field),
+              getDictionaryTableName(table, field)).executeUpdate();
+        }
+      }
+      live.createView(table);
+    }
+    dictionaries.clear();
+  }
+
+  /**
+   * Drops the table or view for a table field, and its codes and dictionary tables.
+   */
+  private void dropTables(FieldDescriptor table) throws SQLException {
+    String tableName = getTableName(table);
+    if (sqLite.isView(tableName)) {
+      sqLite.dropView(tableName).executeUpdate();
+    } else {
+      sqLite.dropTable(tableName).executeUpdate();
+    }
+    sqLite.dropTable(getPhysicalCodesTableName(table)).executeUpdate();
+    for (FieldDescriptor field : table.getMessageType().getFields()) {
+      if (field.getJavaType() == JavaType.STRING) {
+        sqLite.dropTable(getPhysicalDictionaryTableName(table, field)).executeUpdate();
+      }
+    }
+  }
+
+  /**
+   * Creates the view that joins the codes table of a table with encoded fields to
+   * its dictionary tables.
+   */
+  private void createView(FieldDescriptor table) throws SQLException {
+    List<String> columns = Lists.newArrayList();
+    StringBuilder joins = new StringBuilder();
+    for (FieldDescriptor field : table.getMessageType().getFields()) {
+      if (!encodedFields.contains(field)) {
+        columns.add(String.format("t.%s as %s", field.getName(), field.getName()));
+        continue;
+      }
+      String alias = "d" + field.getNumber();
+      columns.add(String.format("%s.value as %s", alias, field.getName()));
+      joins.append(String.format(" left join %s %s on %s.code = t.%s",
+          getPhysicalDictionaryTableName(table, field), alias, alias, field.getName()));
+    }
+    Statement s = sqLite.connection.createStatement();
+    try {
+      s.executeUpdate(String.format("create view %s as select %s from %s t%s",
+          getTableName(table), Joiner.on(", ").join(columns),
+          getPhysicalCodesTableName(table), joins));
+    } finally {
+      s.close();
     }
   }
 
@@ -84,11 +426,85 @@ public class SqProto<T extends Message> {
    */
   public void insertSnapshot(T snapshot) throws SQLException {
     for (FieldDescriptor table : databaseSchema.getFields()) {
-      insertInto(table.getName(), table.getMessageType().getFields(),
-          (List<? extends MessageOrBuilder>) snapshot.getField(table));
+      List<? extends MessageOrBuilder> records =
+          (List<? extends MessageOrBuilder>) snapshot.getField(table);
+      if (!records.isEmpty()) {
+        // Batches usually hold one table of many.
+        insertRecords(table, records);
+      }
+    }
+  }
+
+  /**
+   * Inserts a batch of records into one table, as passed to a BatchReceiver.
+   */
+  public void insertRecords(FieldDescriptor table, List<? extends MessageOrBuilder> records)
+      throws SQLException {
+    checkArgument(binders.containsKey(table), "No such table: %s", table.getName());
+    if (isEncoded(table)) {
+      insertEncoded(table, records);
+    } else {
+      insertInto(getTableName(table), binders.get(table), records);
+    }
+  }
+
+  /**
+   * Creates an index on a field of a table, if it doesn't exist. For a table with
+   * encoded fields, the index is on the codes table behind the view. The index is
+   * named after the live table and field, with a number appended if a live index has
+   * the name while this creates the index on a shadow table.
+   */
+  public void createIndex(FieldDescriptor table, String fieldName) throws SQLException {
+    checkArgument(table.getMessageType().findFieldByName(fieldName) != null,
+        "No such field: %s.%s", table.getName(), fieldName);
+    String tableName = isEncoded(table) ? getPhysicalCodesTableName(table) : getTableName(table);
+    if (sqLite.getIndexes(tableName).containsValue(ImmutableList.of(fieldName))) {
+      return;
+    }
+    String baseName = (isEncoded(table) ? getCodesTableName(table) : table.getName())
+        + "_" + fieldName;
+    String indexName = baseName;
+    for (int i = 1; sqLite.exists(indexName); ++i) {
+      indexName = baseName + "_" + i;
+    }
+    Statement s = sqLite.connection.createStatement();
+    try {
+      s.executeUpdate(String.format("create index %s on %s(%s)",
+          indexName, tableName, fieldName));
+    } finally {
+      s.close();
     }
   }
 
+  /**
+   * Returns the name of the table that stores the codes for a table with encoded fields.
+   */
+  public static String getCodesTableName(FieldDescriptor table) {
+    return table.getName() + "_codes";
+  }
+
+  /**
+   * Returns the name of the table that maps codes to values for an encoded field.
+   */
+  public static String getDictionaryTableName(FieldDescriptor table, FieldDescriptor field) {
+    return table.getName() + "_" + field.getName() + "_dict";
+  }
+
+  /**
+   * Returns the name of the table or view that holds the records of a table field.
+   */
+  public String getTableName(FieldDescriptor table) {
+    return table.getName() + tableSuffix;
+  }
+
+  private String getPhysicalCodesTableName(FieldDescriptor table) {
+    return getCodesTableName(table) + tableSuffix;
+  }
+
+  private String getPhysicalDictionaryTableName(FieldDescriptor table, FieldDescriptor field) {
+    return getDictionaryTableName(table, field) + tableSuffix;
+  }
+
   /**
    * Snapshots the database in batches of records.
    */
@@ -97,13 +513,19 @@ public class SqProto<T extends Message> {
     int recordCount = 0;
     Message.Builder b = templateProto.newBuilderForType();
     for (FieldDescriptor table : databaseSchema.getFields()) {
+      TableBinder binder = binders.get(table);
       Statement s = sqLite.connection.createStatement();
       try {
-        ResultSet rs = s.executeQuery("select * from " + table.getName());
+        ResultSet rs = s.executeQuery("select * from " + getTableName(table));
+        int[] columns = binder.findColumns(rs);
         while (rs.next()) {
           Message.Builder fb = b.newBuilderForField(table);
-          mergeFrom(fb, rs);
+          binder.read(rs, columns, fb);
           b.addRepeatedField(table, fb.build());
+          if (++recordCount % batchSize == 0) {
+            recv.receive((T) b.build());
+            b = templateProto.newBuilderForType();
+          }
         }
       } catch (SQLException e) {
         throw new SQLException("table:" + table.getName(), e);
@@ -112,10 +534,6 @@ public class SqProto<T extends Message> {
       } finally {
         s.close();
       }
-      if (++recordCount % batchSize == 0) {
-        recv.receive((T) b.build());
-        b = templateProto.newBuilderForType();
-      }
     }
     if (recordCount % batchSize != 0) {
       recv.receive((T) b.build());
@@ -136,75 +554,195 @@ public class SqProto<T extends Message> {
   }
 
   /**
-   * Inserts a batch of records into a table in the database.
+   * Reads the records in a table one at a time, without building a snapshot.
    */
-  private void insertInto(String tableName, List<FieldDescriptor> tableSchema,
-      List<? extends MessageOrBuilder> protos) throws SQLException {
-    PreparedStatement insert = sqLite.insertValues(tableName, tableSchema.size());
+  public void readTable(FieldDescriptor table, Receiver<Message> recv) throws SQLException {
+    Statement s = sqLite.connection.createStatement();
+    try {
+      ResultSet rs = s.executeQuery("select * from " + getTableName(table));
+      readIntoProtos(rs, getTableTemplate(table), recv);
+    } finally {
+      s.close();
+    }
+  }
+
+  /**
+   * Returns an iterator over the records in a table, which reads them as it advances.
+   * The iterator must be closed, unless it's read to the end.
+   */
+  public CloseableIterator<Message> iterateTable(FieldDescriptor table) throws SQLException {
+    return iterateQuery(sqLite, "select * from " + getTableName(table), getTableTemplate(table));
+  }
+
+  /**
+   * Returns the default instance of the record type for a table.
+   */
+  public Message getTableTemplate(FieldDescriptor table) {
+    return templateProto.newBuilderForType().newBuilderForField(table).getDefaultInstanceForType();
+  }
+
+  /**
+   * Returns the descriptor for the database schema proto.
+   */
+  public Descriptor getDatabaseSchema() {
+    return databaseSchema;
+  }
+
+  private boolean isEncoded(FieldDescriptor table) {
+    for (FieldDescriptor field : table.getMessageType().getFields()) {
+      if (encodedFields.contains(field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Maps the values of an encoded field to codes, numbered in order of first
+   * appearance. Values after storedCount haven't been inserted into the dictionary
+   * table yet.
+   */
+  private static class Dictionary {
+    final Map<String, Integer> codes = Maps.newHashMap();
+    final List<String> values = Lists.newArrayList();
+    int storedCount = 0;
+
+    int encode(String value) {
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = values.size();
+        codes.put(value, code);
+        values.add(value);
+      }
+      return code;
+    }
+  }
+
+  /**
+   * Returns the dictionary for an encoded field, reading the existing codes from the
+   * database the first time.
+   */
+  private Dictionary getDictionary(String dictionaryTableName) throws SQLException {
+    Dictionary dictionary = dictionaries.get(dictionaryTableName);
+    if (dictionary == null) {
+      dictionary = new Dictionary();
+      Statement s = sqLite.connection.createStatement();
+      try {
+        ResultSet rs = s.executeQuery(
+            "select code, value from " + dictionaryTableName + " order by code");
+        while (rs.next()) {
+          assertThat(rs.getInt(1)).isEqualTo(dictionary.encode(rs.getString(2)));
+        }
+      } finally {
+        s.close();
+      }
+      dictionary.storedCount = dictionary.values.size();
+      dictionaries.put(dictionaryTableName, dictionary);
+    }
+    return dictionary;
+  }
+
+  /**
+   * Inserts a batch of records into the codes table, and any new values into the
+   * dictionary tables.
+   */
+  private void insertEncoded(FieldDescriptor table, List<? extends MessageOrBuilder> protos)
+      throws SQLException {
+    List<FieldDescriptor> tableSchema = table.getMessageType().getFields();
+    TableBinder binder = binders.get(table);
+    Dictionary[] fieldDictionaries = new Dictionary[tableSchema.size()];
+    for (int i = 0; i < fieldDictionaries.length; ++i) {
+      if (encodedFields.contains(tableSchema.get(i))) {
+        fieldDictionaries[i] =
+            getDictionary(getPhysicalDictionaryTableName(table, tableSchema.get(i)));
+      }
+    }
+    PreparedStatement insert =
+        sqLite.insertValues(getPhysicalCodesTableName(table), tableSchema.size());
+    Tracer.Span span = Tracer.begin(Tracer.Stage.BATCH_BOUND, table.getName());
     for (MessageOrBuilder proto : protos) {
-      int insertIndex = 0;
-      for (FieldDescriptor field : tableSchema) {
-        try {
-          setValue(insert, ++insertIndex, field, proto);
-        } catch (RuntimeException e) {
-          throw new SQLException(tableName + ":" + field.getName(), e);
+      for (int i = 0; i < fieldDictionaries.length; ++i) {
+        FieldDescriptor field = tableSchema.get(i);
+        if (fieldDictionaries[i] != null && proto.hasField(field)) {
+          insert.setInt(i + 1, fieldDictionaries[i].encode((String) proto.getField(field)));
+        } else {
+          binder.bind(insert, i + 1, i, proto);
         }
       }
       insert.addBatch();
     }
-    insert.executeBatch();
+    span.end(protos.size(), 0);
+    executeBatch(insert, table.getName(), protos.size());
+    for (int i = 0; i < fieldDictionaries.length; ++i) {
+      if (fieldDictionaries[i] != null) {
+        storeNewValues(getPhysicalDictionaryTableName(table, tableSchema.get(i)),
+            fieldDictionaries[i]);
+      }
+    }
   }
 
   /**
-   * Sets the value of a field in the prepared statement.
+   * Inserts the values added to a dictionary since it was last stored.
    */
-  private static void setValue(PreparedStatement insert,
-      int insertIndex, FieldDescriptor field, MessageOrBuilder proto) throws SQLException {
-    if (proto.hasField(field)) {
-      setPrimitiveValue(insert, insertIndex, field, proto.getField(field));
-    } else {
-      insert.setNull(insertIndex, Types.NULL);
+  private void storeNewValues(String dictionaryTableName, Dictionary dictionary)
+      throws SQLException {
+    if (dictionary.storedCount == dictionary.values.size()) {
+      return;
     }
+    PreparedStatement insertValue = sqLite.insertValues(dictionaryTableName, 2);
+    for (int code = dictionary.storedCount; code < dictionary.values.size(); ++code) {
+      insertValue.setInt(1, code);
+      insertValue.setString(2, dictionary.values.get(code));
+      insertValue.addBatch();
+    }
+    insertValue.executeBatch();
+    dictionary.storedCount = dictionary.values.size();
   }
 
   /**
-   * Sets the value of a primitive field in the prepared statement.
+   * Inserts a batch of records into a table in the database.
    */
-  private static void setPrimitiveValue(PreparedStatement insert,
-      int insertIndex, FieldDescriptor field, Object value) throws SQLException {
-    switch (field.getJavaType()) {
-      case BYTE_STRING:
-        ByteString bValue = (ByteString) value;
-        insert.setBytes(insertIndex, bValue.toByteArray());
-        break;
-      case ENUM:
-        EnumValueDescriptor eValue = (EnumValueDescriptor) value;
-        insert.setInt(insertIndex, eValue.getNumber());
-        break;
-      case STRING:
-        // Not sure which string accessor the setObject method would use.
-        insert.setString(insertIndex, (String) value);
-        break;
-      default:
-        // Set the value based on the boxed type.
-        insert.setObject(insertIndex, value);
+  private void insertInto(String tableName, TableBinder binder,
+      List<? extends MessageOrBuilder> protos) throws SQLException {
+    PreparedStatement insert = sqLite.insertValues(tableName, binder.size());
+    Tracer.Span span = Tracer.begin(Tracer.Stage.BATCH_BOUND, tableName);
+    for (MessageOrBuilder proto : protos) {
+      for (int i = 0; i < binder.size(); ++i) {
+        try {
+          binder.bind(insert, i + 1, i, proto);
+        } catch (RuntimeException e) {
+          throw new SQLException(tableName + ":" + binder.getField(i).getName(), e);
+        }
+      }
+      insert.addBatch();
     }
+    span.end(protos.size(), 0);
+    executeBatch(insert, tableName, protos.size());
+  }
+
+  private static void executeBatch(PreparedStatement insert, String tableName,
+      int recordCount) throws SQLException {
+    Tracer.Span span = Tracer.begin(Tracer.Stage.BATCH_EXECUTED, tableName);
+    insert.executeBatch();
+    span.end(recordCount, 0);
   }
 
   /**
-   * Converts a message descriptor into a SQLite column specification.
+   * Converts fields into a SQLite column specification. Encoded fields are integer
+   * columns.
    */
-  private static List<String> getSqColumns(Descriptor tableSchema) throws SQLException {
-    List<FieldDescriptor> fields = tableSchema.getFields();
+  private List<String> getSqColumns(List<FieldDescriptor> fields) {
     List<String> columns = Lists.newArrayListWithCapacity(fields.size());
     for (FieldDescriptor field : fields) {
-      columns.add(field.getName() + " " + getSqType(field.getJavaType()));
+      columns.add(field.getName() + " " + (encodedFields.contains(field)
+          ? "int" : getSqType(field.getJavaType())));
     }
     return columns;
   }
 
   /**
-   * Maps the JavaType to the SQLite data type.
+   * Maps the JavaType to the SQLite data type. Strings are text columns, since SQLite
+   * gives other type names numeric affinity, which stores codes like "02" as 2.
    */
   private static String getSqType(JavaType type) {
     switch (type) {
@@ -221,7 +759,7 @@ public class SqProto<T extends Message> {
       case LONG:
         return "int";
       case STRING:
-        return "string";
+        return "text";
       default:
         throw new RuntimeException("javaType=" + type.toString());
     }
@@ -241,6 +779,26 @@ public class SqProto<T extends Message> {
     return records;
   }
 
+  /**
+   * Replaces the metadata tables in the database, such as column_stats, with the
+   * contents of the metadata proto.
+   */
+  public static void writeMetadata(SqLite sqLite, SqMetadata metadata) throws SQLException {
+    SqProto<SqMetadata> sqProto = SqProto.create(sqLite, SqMetadata.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(metadata);
+  }
+
+  /**
+   * Returns an iterator over the results of a query, read into protos as it advances.
+   * Columns are matched to fields by name, as in readIntoProtos. The iterator must be
+   * closed, unless it's read to the end.
+   */
+  public static <P extends Message> CloseableIterator<P> iterateQuery(
+      SqLite sqLite, String query, P template) throws SQLException {
+    return new ResultSetIterator<P>(sqLite, query, template);
+  }
+
   /**
    * Returns records from the ResultSet via the Receiver. Uses the template proto
    * field names to extract columns, which must have corresponding data types. Fields
@@ -254,91 +812,12 @@ public class SqProto<T extends Message> {
       assertThat(field.isOptional()).isTrue();
       assertThat(field.getJavaType()).isNotEqualTo(JavaType.MESSAGE);
     }
+    TableBinder binder = TableBinder.compile(schema);
+    int[] columns = binder.findColumns(rs);
     while (rs.next()) {
       Message.Builder b = template.newBuilderForType();
-      mergeFrom(b, rs);
+      binder.read(rs, columns, b);
       recv.receive((P) b.build());
     }
   }
-
-  /**
-   * Populates the builder with data from the current record in the result set. The idea
-   * is based on the TextFormat.merge() function. Note that columns are referenced by name,
-   * such that records can be read from other than the canonical table.
-   */
-  private static void mergeFrom(Message.Builder b, ResultSet rs) throws SQLException {
-    Descriptor tableSchema = b.getDescriptorForType();
-    for (FieldDescriptor field : tableSchema.getFields()) {
-      try {
-        switch (field.getJavaType()) {
-          case MESSAGE:
-            throw new RuntimeException("Nested messages not supported.");
-          case BYTE_STRING:
-            byte[] bytes = rs.getBytes(field.getName());
-            if (bytes != null) {
-              setValue(b, field, ByteString.copyFrom(bytes));
-            }
-            break;
-          case ENUM:
-            int intValue = rs.getInt(field.getName());
-            if (!rs.wasNull()) {
-              setValue(b, field, field.getEnumType().findValueByNumber(intValue));
-            }
-            break;
-          case STRING:
-            // Not sure which string accessor the getObject method would use.
-            String stringValue = rs.getString(field.getName());
-            if (stringValue != null) {
-              setValue(b, field, stringValue);
-            }
-            break;
-          case LONG:
-            // SQLite stores integers using up to 8 bytes depending on the magnitude
-            // of the value, but the getObject method returns an int.
-            long longValue = rs.getLong(field.getName());
-            if (!rs.wasNull()) {
-              setValue(b, field, Long.valueOf(longValue));
-            }
-            break;
-          case BOOLEAN:
-            // The getObject method returns boolean types as integers.
-            boolean boolValue = rs.getBoolean(field.getName());
-            if (!rs.wasNull()) {
-              setValue(b, field, Boolean.valueOf(boolValue));
-            }
-            break;
-          case FLOAT:
-            // The getObject method returns floats as doubles.
-            float floatValue = rs.getFloat(field.getName());
-            if (!rs.wasNull()) {
-              setValue(b, field, Float.valueOf(floatValue));
-            }
-            break;
-          default:
-            Object boxedValue = rs.getObject(field.getName());
-            if (boxedValue != null) {
-              setValue(b, field, boxedValue);
-            }
-        }
-      } catch (SQLException e) {
-        if (e.getMessage().startsWith("no such column:")) {
-          // The table we're extracting from doesn't have the field.
-          continue;
-        } else {
-          throw e;
-        }
-      }
-    }
-  }
-
-  /**
-   * Sets or adds a value to a field in a builder.
-   */
-  private static void setValue(Message.Builder b, FieldDescriptor field, Object value) {
-    try {
-      b.setField(field, value);
-    } catch (RuntimeException e) {
-      throw new RuntimeException(field.getName() + ":" + value, e);
-    }
-  }
 }
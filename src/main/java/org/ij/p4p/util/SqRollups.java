@@ -0,0 +1,335 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maintains rollups, which are small summary tables of sums by group, as batches of
+ * records pass through to be inserted, so that reports can read the rollups instead of
+ * rescanning the tables. Each batch is copied into temporary delta tables, and each
+ * rollup query runs over the deltas joined with the stored records, and adds its sums
+ * to the rollup tables. Records of a table are matched with the parent records that
+ * are already stored or in the same batch, and parent records with the child records
+ * that are already stored, so each pair is counted once, in whichever order the tables
+ * are loaded.
+ *
+ * Records that change after they're inserted are handled with remove() before they
+ * change, and add() after.
+ */
+public class SqRollups<T extends Message> implements Receiver<T> {
+  private static final String DELTA_PREFIX = "rollup_delta_";
+
+  private final SqProto<T> sqProto;
+  private final ImmutableList<SqRollup> rollups;
+  private final Set<FieldDescriptor> tables = Sets.newLinkedHashSet();
+  private final Set<FieldDescriptor> deltaTables = Sets.newHashSet();
+  private final Receiver<T> recv;
+
+  public SqRollups(SqProto<T> sqProto, List<SqRollup> rollups, Receiver<T> recv) {
+    this.sqProto = sqProto;
+    this.rollups = ImmutableList.copyOf(rollups);
+    this.recv = recv;
+    for (SqRollup rollup : rollups) {
+      checkArgument(!rollup.getRollupName().isEmpty() && rollup.getSumCount() > 0,
+          "Incomplete rollup: %s", rollup);
+      tables.add(getTable(rollup.getTableName()));
+      if (rollup.hasParentTableName()) {
+        FieldDescriptor parent = getTable(rollup.getParentTableName());
+        checkArgument(parent.getMessageType().findFieldByName(rollup.getParentKey()) != null,
+            "No parent key: %s", rollup.getRollupName());
+        tables.add(parent);
+      }
+    }
+  }
+
+  /**
+   * Adds the records of the batch to the rollups, and passes the batch on to be
+   * inserted.
+   */
+  public void receive(T batch) {
+    try {
+      Map<FieldDescriptor, List<? extends Message>> records = Maps.newHashMap();
+      for (FieldDescriptor table : tables) {
+        records.put(table, (List<? extends Message>) batch.getField(table));
+      }
+      apply(records, 1);
+    } catch (SQLException e) {
+      throw new UncheckedExecutionException(e);
+    }
+    recv.receive(batch);
+  }
+
+  /**
+   * Adds records of one table to the rollups after they're inserted or changed.
+   */
+  public void add(FieldDescriptor table, List<? extends Message> records)
+      throws SQLException {
+    apply(ImmutableMap.<FieldDescriptor, List<? extends Message>>of(table, records), 1);
+  }
+
+  /**
+   * Removes records of one table from the rollups before they're deleted or changed.
+   * Groups without records are deleted.
+   */
+  public void remove(FieldDescriptor table, List<? extends Message> records)
+      throws SQLException {
+    apply(ImmutableMap.<FieldDescriptor, List<? extends Message>>of(table, records), -1);
+    for (SqRollup rollup : rollups) {
+      Statement s = sqProto.sqLite.connection.createStatement();
+      try {
+        s.executeUpdate(String.format("delete from %s where record_count <= 0",
+            rollup.getRollupName()));
+      } finally {
+        s.close();
+      }
+    }
+  }
+
+  /**
+   * Drops and recreates the rollup tables, empty, and indexes the parent keys of the
+   * tables and their parents, so that each batch is joined with the stored records by
+   * index lookups instead of an automatic index over a whole table.
+   */
+  public void dropAndCreateTables() throws SQLException {
+    for (SqRollup rollup : rollups) {
+      if (rollup.hasParentTableName()) {
+        sqProto.createIndex(getTable(rollup.getTableName()), rollup.getParentKey());
+        sqProto.createIndex(getTable(rollup.getParentTableName()), rollup.getParentKey());
+      }
+      sqProto.sqLite.dropTable(rollup.getRollupName()).executeUpdate();
+      List<String> columns = Lists.newArrayList();
+      List<String> groupColumns = Lists.newArrayList();
+      for (SqRollupColumn column : rollup.getGroupByList()) {
+        columns.add(column.getColumnName());
+        groupColumns.add(column.getColumnName());
+      }
+      for (SqRollupColumn column : rollup.getSumList()) {
+        columns.add(column.getColumnName() + " double");
+      }
+      columns.add("record_count int");
+      sqProto.sqLite.createTable(rollup.getRollupName(), columns).executeUpdate();
+      if (!groupColumns.isEmpty()) {
+        Statement s = sqProto.sqLite.connection.createStatement();
+        try {
+          s.executeUpdate(String.format("create unique index %s_groups on %s(%s)",
+              rollup.getRollupName(), rollup.getRollupName(),
+              Joiner.on(", ").join(groupColumns)));
+        } finally {
+          s.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Recreates the rollup tables from all of the stored records.
+   */
+  public void rebuild() throws SQLException {
+    dropAndCreateTables();
+    for (SqRollup rollup : rollups) {
+      FieldDescriptor table = getTable(rollup.getTableName());
+      String from = sqProto.getTableName(table) + " a";
+      if (rollup.hasParentTableName()) {
+        from += String.format(" join %s b on a.%s = b.%s",
+            sqProto.getTableName(getTable(rollup.getParentTableName())),
+            rollup.getParentKey(), rollup.getParentKey());
+      }
+      addSums(rollup, from, 1);
+    }
+  }
+
+  /**
+   * Copies the records into delta tables, and adds their sums times the sign to the
+   * rollups. Records of a table and its parent are only both in the delta when they
+   * aren't stored yet.
+   */
+  private void apply(Map<FieldDescriptor, List<? extends Message>> records, int sign)
+      throws SQLException {
+    Set<FieldDescriptor> changed = Sets.newHashSet();
+    for (Map.Entry<FieldDescriptor, List<? extends Message>> e : records.entrySet()) {
+      if (!e.getValue().isEmpty()) {
+        fillDelta(e.getKey(), e.getValue());
+        changed.add(e.getKey());
+      }
+    }
+    for (SqRollup rollup : rollups) {
+      for (String from : getDeltaSources(rollup, changed)) {
+        addSums(rollup, from, sign);
+      }
+    }
+    for (FieldDescriptor table : changed) {
+      Statement s = sqProto.sqLite.connection.createStatement();
+      try {
+        s.executeUpdate("delete from temp." + DELTA_PREFIX + table.getName());
+      } finally {
+        s.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the from clauses that match the delta records of the changed tables with
+   * each other and with the stored records: the child deltas with the stored and delta
+   * parents, and the parent deltas with the stored children. Each join with a stored
+   * table is a lookup by its parent key index.
+   */
+  List<String> getDeltaSources(SqRollup rollup, Set<FieldDescriptor> changed) {
+    List<String> sources = Lists.newArrayList();
+    FieldDescriptor table = getTable(rollup.getTableName());
+    if (!rollup.hasParentTableName()) {
+      if (changed.contains(table)) {
+        sources.add(DELTA_PREFIX + table.getName() + " a");
+      }
+      return sources;
+    }
+    FieldDescriptor parent = getTable(rollup.getParentTableName());
+    String joinOn = String.format(" on a.%s = b.%s", rollup.getParentKey(),
+        rollup.getParentKey());
+    if (changed.contains(table)) {
+      sources.add(DELTA_PREFIX + table.getName() + " a join "
+          + sqProto.getTableName(parent) + " b" + joinOn);
+      if (changed.contains(parent)) {
+        sources.add(DELTA_PREFIX + table.getName() + " a join " + DELTA_PREFIX
+            + parent.getName() + " b" + joinOn);
+      }
+    }
+    if (changed.contains(parent)) {
+      sources.add(sqProto.getTableName(table) + " a join " + DELTA_PREFIX
+          + parent.getName() + " b" + joinOn);
+    }
+    return sources;
+  }
+
+  /**
+   * Inserts records into the temporary delta table of their table.
+   */
+  private void fillDelta(FieldDescriptor table, List<? extends Message> records)
+      throws SQLException {
+    String deltaName = DELTA_PREFIX + table.getName();
+    if (deltaTables.add(table)) {
+      Statement s = sqProto.sqLite.connection.createStatement();
+      try {
+        s.executeUpdate(String.format("create temp table if not exists %s(%s)",
+            deltaName, getColumns(table)));
+      } finally {
+        s.close();
+      }
+    }
+    TableBinder binder = TableBinder.compile(table.getMessageType());
+    PreparedStatement insert = sqProto.sqLite.insertValues("temp." + deltaName, binder.size());
+    try {
+      for (Message record : records) {
+        for (int i = 0; i < binder.size(); ++i) {
+          binder.bind(insert, i + 1, i, record);
+        }
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    } finally {
+      insert.close();
+    }
+  }
+
+  /**
+   * Returns the query that sums the records of the from clause by group, selecting the
+   * groups, the sums and the record count.
+   */
+  static String getSumsQuery(SqRollup rollup, String from) {
+    List<String> selected = Lists.newArrayList();
+    List<String> groupNumbers = Lists.newArrayList();
+    for (SqRollupColumn column : rollup.getGroupByList()) {
+      selected.add(column.getExpression());
+      groupNumbers.add(String.valueOf(groupNumbers.size() + 1));
+    }
+    for (SqRollupColumn column : rollup.getSumList()) {
+      selected.add(String.format("total(%s)", column.getExpression()));
+    }
+    selected.add("count(*)");
+    return String.format("select %s from %s%s%s", Joiner.on(", ").join(selected), from,
+        rollup.hasWhere() ? " where " + rollup.getWhere() : "",
+        groupNumbers.isEmpty() ? "" : " group by " + Joiner.on(", ").join(groupNumbers));
+  }
+
+  /**
+   * Sums the records of the from clause by group, and adds the sums times the sign to
+   * the rollup table, updating existing groups and inserting new ones.
+   */
+  private void addSums(SqRollup rollup, String from, int sign) throws SQLException {
+    List<String> groupMatches = Lists.newArrayList();
+    for (SqRollupColumn column : rollup.getGroupByList()) {
+      groupMatches.add(column.getColumnName() + " is ?");
+    }
+    List<String> increments = Lists.newArrayList();
+    for (SqRollupColumn column : rollup.getSumList()) {
+      increments.add(String.format("%s = %s + ?", column.getColumnName(), column.getColumnName()));
+    }
+    increments.add("record_count = record_count + ?");
+    String query = getSumsQuery(rollup, from);
+    int groupCount = rollup.getGroupByCount();
+    int sumCount = rollup.getSumCount();
+    Statement s = sqProto.sqLite.connection.createStatement();
+    PreparedStatement update = sqProto.sqLite.connection.prepareStatement(String.format(
+        "update %s set %s%s", rollup.getRollupName(), Joiner.on(", ").join(increments),
+        groupMatches.isEmpty() ? "" : " where " + Joiner.on(" and ").join(groupMatches)));
+    PreparedStatement insert =
+        sqProto.sqLite.insertValues(rollup.getRollupName(), groupCount + sumCount + 1);
+    try {
+      ResultSet rs = s.executeQuery(query);
+      while (rs.next()) {
+        long recordCount = rs.getLong(groupCount + sumCount + 1);
+        if (recordCount == 0) {
+          // Sums without groups have a result row even when there are no records.
+          continue;
+        }
+        for (int i = 1; i <= sumCount; ++i) {
+          update.setDouble(i, sign * rs.getDouble(groupCount + i));
+          insert.setDouble(groupCount + i, sign * rs.getDouble(groupCount + i));
+        }
+        update.setLong(sumCount + 1, sign * recordCount);
+        insert.setLong(groupCount + sumCount + 1, sign * recordCount);
+        for (int i = 1; i <= groupCount; ++i) {
+          update.setObject(sumCount + 1 + i, rs.getObject(i));
+          insert.setObject(i, rs.getObject(i));
+        }
+        if (update.executeUpdate() == 0) {
+          insert.executeUpdate();
+        }
+      }
+    } finally {
+      s.close();
+      update.close();
+      insert.close();
+    }
+  }
+
+  private FieldDescriptor getTable(String tableName) {
+    FieldDescriptor table = sqProto.getDatabaseSchema().findFieldByName(tableName);
+    checkArgument(table != null, "No such table: %s", tableName);
+    return table;
+  }
+
+  private static String getColumns(FieldDescriptor table) {
+    List<String> columns = Lists.newArrayList();
+    for (FieldDescriptor field : table.getMessageType().getFields()) {
+      columns.add(field.getName());
+    }
+    return Joiner.on(", ").join(columns);
+  }
+}
@@ -0,0 +1,379 @@
+package org.ij.p4p.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves queries of a SQLite database over HTTP on the loopback interface, so that
+ * short analyses can run against a warm JVM with open connections instead of
+ * starting a process and connecting for each query. Queries are registered by name,
+ * and run with positional parameters from the request:
+ *
+ *   GET /query/[name]?arg=2002&arg=2013
+ *
+ * Queries registered with a template proto stream the records as length-delimited
+ * protos (as in PbShards), with columns mapped to fields by name as in SqProto. Other
+ * queries stream tab separated rows, after a header line of column names. GET / lists
+ * the query names. With allowSql(), GET /sql?q=[query]&arg=... runs ad hoc queries,
+ * which return rows.
+ *
+ * Each request thread takes a read-only connection from a pool, which keeps the
+ * prepared statements of the named queries, so the database can't be modified through
+ * the server. With setCache(), the results of named queries are kept in memory until
+ * the database is reimported.
+ */
+public class SqServer {
+  public static final String PROTO_CONTENT_TYPE = "application/x-protobuf";
+  public static final String ROWS_CONTENT_TYPE = "text/tab-separated-values; charset=utf-8";
+
+  private final int poolSize;
+  private final BlockingQueue<PooledConnection> connections;
+  private final Map<String, NamedQuery> queries = Maps.newConcurrentMap();
+  private boolean sqlAllowed = false;
+  private QueryCache cache;
+  private HttpServer server;
+  private ExecutorService executor;
+
+  /**
+   * A named query, and the binder for its template proto, if any.
+   */
+  private static class NamedQuery {
+    final String sql;
+    final Message template;
+    final TableBinder binder;
+
+    NamedQuery(String sql, Message template) {
+      this.sql = sql;
+      this.template = template;
+      this.binder = template == null ? null : TableBinder.compile(template.getDescriptorForType());
+    }
+
+    String getContentType() {
+      return template != null ? PROTO_CONTENT_TYPE : ROWS_CONTENT_TYPE;
+    }
+
+    /**
+     * Names the encoding of the results, for caching.
+     */
+    String getFormat() {
+      return template != null ? template.getDescriptorForType().getFullName() : "rows";
+    }
+
+    QueryCache.ResultWriter getWriter() {
+      return new QueryCache.ResultWriter() {
+        public void write(ResultSet rs, OutputStream out) throws IOException, SQLException {
+          if (template != null) {
+            writeProtos(rs, NamedQuery.this, out);
+          } else {
+            writeRows(rs, out);
+          }
+        }
+      };
+    }
+  }
+
+  /**
+   * A read-only connection, and the statements prepared on it for named queries.
+   */
+  private static class PooledConnection {
+    final SqLite sqLite;
+    final Map<String, PreparedStatement> statements = Maps.newHashMap();
+
+    PooledConnection(SqLite sqLite) {
+      this.sqLite = sqLite;
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement s = statements.get(sql);
+      if (s == null) {
+        s = sqLite.connection.prepareStatement(sql);
+        statements.put(sql, s);
+      }
+      return s;
+    }
+  }
+
+  /**
+   * Opens a pool of read-only connections to a database file. The pool size is also
+   * the number of requests served at once.
+   */
+  public static SqServer create(File databaseFile, int poolSize) throws SQLException {
+    checkArgument(databaseFile.isFile(), "No database file: %s", databaseFile);
+    checkArgument(poolSize > 0, "poolSize=%s", poolSize);
+    SqServer sqServer = new SqServer(poolSize);
+    for (int i = 0; i < poolSize; ++i) {
+      sqServer.connections.add(
+          new PooledConnection(SqLite.connectReadOnly(databaseFile.getPath())));
+    }
+    return sqServer;
+  }
+
+  /**
+   * Use the create() factory function to instantiate.
+   */
+  private SqServer(int poolSize) {
+    this.poolSize = poolSize;
+    this.connections = new ArrayBlockingQueue<PooledConnection>(poolSize);
+  }
+
+  /**
+   * Registers a query that returns tab separated rows.
+   */
+  public SqServer addQuery(String name, String sql) {
+    return addQuery(name, sql, null);
+  }
+
+  /**
+   * Registers a query that returns records of the template proto type.
+   */
+  public SqServer addQuery(String name, String sql, Message template) {
+    checkArgument(!name.isEmpty() && name.indexOf('/') < 0, "name=%s", name);
+    queries.put(name, new NamedQuery(sql, template));
+    return this;
+  }
+
+  /**
+   * Allows ad hoc queries through /sql. The connections are still read-only.
+   */
+  public SqServer allowSql() {
+    sqlAllowed = true;
+    return this;
+  }
+
+  /**
+   * Serves the results of named queries from a cache, until the database is
+   * reimported.
+   */
+  public SqServer setCache(QueryCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
+  /**
+   * Starts serving on a loopback port, or on any free port if the port is zero.
+   */
+  public void start(int port) throws IOException {
+    checkState(server == null, "Already started");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/", new HttpHandler() {
+        public void handle(HttpExchange exchange) throws IOException {
+          try {
+            serve(exchange);
+          } finally {
+            exchange.close();
+          }
+        }
+      });
+    executor = Executors.newFixedThreadPool(poolSize);
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Returns the port being served, which is useful after starting on port zero.
+   */
+  public int getPort() {
+    checkState(server != null, "Not started");
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Stops serving, and closes the connections.
+   */
+  public void stop() throws SQLException {
+    if (server != null) {
+      server.stop(0);
+      executor.shutdown();
+      server = null;
+    }
+    for (PooledConnection connection : connections) {
+      connection.sqLite.connection.close();
+    }
+  }
+
+  private void serve(HttpExchange exchange) throws IOException {
+    if (!exchange.getRequestMethod().equals("GET")) {
+      sendText(exchange, 405, "Only GET is supported.");
+      return;
+    }
+    String path = exchange.getRequestURI().getPath();
+    ListMultimap<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+    if (path.equals("/")) {
+      StringBuilder names = new StringBuilder();
+      for (String name : ImmutableSortedSet.copyOf(queries.keySet())) {
+        names.append(name).append('\n');
+      }
+      sendText(exchange, 200, names.toString());
+    } else if (path.startsWith("/query/")) {
+      NamedQuery query = queries.get(path.substring("/query/".length()));
+      if (query == null) {
+        sendText(exchange, 404, "No such query: " + path);
+        return;
+      }
+      runQuery(exchange, query, params.get("arg"), true);
+    } else if (path.equals("/sql") && sqlAllowed && params.containsKey("q")) {
+      runQuery(exchange, new NamedQuery(params.get("q").get(0), null), params.get("arg"), false);
+    } else {
+      sendText(exchange, 404, "Not found: " + path);
+    }
+  }
+
+  /**
+   * Runs a query on a pooled connection, and streams the results. Named queries keep
+   * their prepared statements on the connection.
+   */
+  private void runQuery(
+      HttpExchange exchange, NamedQuery query, List<String> args, boolean named)
+      throws IOException {
+    PooledConnection connection;
+    try {
+      connection = connections.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      sendText(exchange, 503, "Interrupted");
+      return;
+    }
+    PreparedStatement s = null;
+    try {
+      s = named ? connection.prepare(query.sql)
+          : connection.sqLite.connection.prepareStatement(query.sql);
+      int parameterCount = s.getParameterMetaData().getParameterCount();
+      if (args.size() != parameterCount) {
+        sendText(exchange, 400,
+            String.format("Expected %d args, got %d", parameterCount, args.size()));
+        return;
+      }
+      if (named && cache != null) {
+        ByteString body = cache.getEncoded(connection.sqLite, query.getFormat(), query.sql,
+            args, query.getWriter());
+        exchange.getResponseHeaders().set("Content-Type", query.getContentType());
+        exchange.sendResponseHeaders(200, body.size());
+        body.writeTo(exchange.getResponseBody());
+        return;
+      }
+      for (int i = 0; i < args.size(); ++i) {
+        s.setString(i + 1, args.get(i));
+      }
+      Tracer.Span span = Tracer.begin(Tracer.Stage.QUERY_EXECUTED, query.sql);
+      ResultSet rs = s.executeQuery();
+      try {
+        exchange.getResponseHeaders().set("Content-Type", query.getContentType());
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = new BufferedOutputStream(exchange.getResponseBody());
+        query.getWriter().write(rs, out);
+        out.flush();
+        span.end(0, 0);
+      } finally {
+        rs.close();
+      }
+    } catch (SQLException e) {
+      // Once the results are streaming, the status can't be changed, so the client
+      // sees a truncated response.
+      if (exchange.getResponseCode() < 0) {
+        sendText(exchange, 400, String.valueOf(e.getMessage()));
+      }
+    } finally {
+      try {
+        if (s != null && !named) {
+          s.close();
+        }
+      } catch (SQLException e) {
+        // The connection is still usable.
+      }
+      connections.add(connection);
+    }
+  }
+
+  private static void writeProtos(ResultSet rs, NamedQuery query, OutputStream out)
+      throws IOException, SQLException {
+    int[] columns = query.binder.findColumns(rs);
+    while (rs.next()) {
+      Message.Builder b = query.template.newBuilderForType();
+      query.binder.read(rs, columns, b);
+      b.build().writeDelimitedTo(out);
+    }
+  }
+
+  private static void writeRows(ResultSet rs, OutputStream outputStream)
+      throws IOException, SQLException {
+    ResultSetMetaData md = rs.getMetaData();
+    int columnCount = md.getColumnCount();
+    Writer out = new OutputStreamWriter(outputStream, Charsets.UTF_8);
+    for (int i = 1; i <= columnCount; ++i) {
+      out.write(escape(md.getColumnLabel(i)));
+      out.write(i < columnCount ? '\t' : '\n');
+    }
+    while (rs.next()) {
+      for (int i = 1; i <= columnCount; ++i) {
+        String value = rs.getString(i);
+        out.write(value == null ? "NULL" : escape(value));
+        out.write(i < columnCount ? '\t' : '\n');
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Escapes backslashes, tabs and line breaks, so that each row is one line.
+   */
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\t", "\\t")
+        .replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  private static void sendText(HttpExchange exchange, int status, String text)
+      throws IOException {
+    byte[] bytes = text.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    exchange.getResponseBody().write(bytes);
+  }
+
+  /**
+   * Decodes the parameters of a URL query string, keeping repeated parameters in order.
+   */
+  private static ListMultimap<String, String> parseParams(String rawQuery) throws IOException {
+    ListMultimap<String, String> params = ArrayListMultimap.create();
+    if (rawQuery != null) {
+      for (String param : Splitter.on('&').omitEmptyStrings().split(rawQuery)) {
+        int equals = param.indexOf('=');
+        String name = equals < 0 ? param : param.substring(0, equals);
+        String value = equals < 0 ? "" : param.substring(equals + 1);
+        params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+      }
+    }
+    return params;
+  }
+}
@@ -0,0 +1,259 @@
+package org.ij.p4p.util;
+
+import com.google.common.base.Strings;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.MessageOrBuilder;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * Binds the fields of a table proto to prepared statement parameters and result set
+ * columns. The JDBC accessor for each field is chosen once, when the binder is
+ * compiled for a table descriptor, so that inserting and reading records calls the
+ * typed setters and getters directly instead of switching on the type of every value.
+ */
+class TableBinder {
+  private final Descriptor tableSchema;
+  private final FieldDescriptor[] fields;
+  private final ValueBinder[] binders;
+
+  private TableBinder(Descriptor tableSchema) {
+    this.tableSchema = tableSchema;
+    List<FieldDescriptor> fieldList = tableSchema.getFields();
+    this.fields = fieldList.toArray(new FieldDescriptor[fieldList.size()]);
+    this.binders = new ValueBinder[fields.length];
+    for (int i = 0; i < fields.length; ++i) {
+      binders[i] = getValueBinder(fields[i]);
+    }
+  }
+
+  /**
+   * Compiles a binder for the fields of a table proto, in field order.
+   */
+  static TableBinder compile(Descriptor tableSchema) {
+    return new TableBinder(tableSchema);
+  }
+
+  Descriptor getDescriptor() {
+    return tableSchema;
+  }
+
+  int size() {
+    return fields.length;
+  }
+
+  FieldDescriptor getField(int i) {
+    return fields[i];
+  }
+
+  /**
+   * Sets a parameter of the prepared statement to the value of the i'th field, or to
+   * null if the field isn't set.
+   */
+  void bind(PreparedStatement insert, int insertIndex, int i, MessageOrBuilder proto)
+      throws SQLException {
+    FieldDescriptor field = fields[i];
+    if (proto.hasField(field)) {
+      binders[i].bind(insert, insertIndex, proto.getField(field));
+    } else {
+      insert.setNull(insertIndex, Types.NULL);
+    }
+  }
+
+  /**
+   * Returns the result set column of each field, or zero for fields that the result
+   * set doesn't have. Looking the columns up once saves a search by name per value.
+   */
+  int[] findColumns(ResultSet rs) throws SQLException {
+    int[] columns = new int[fields.length];
+    for (int i = 0; i < fields.length; ++i) {
+      try {
+        columns[i] = rs.findColumn(fields[i].getName());
+      } catch (SQLException e) {
+        String message = Strings.nullToEmpty(e.getMessage());
+        if (message.startsWith("ResultSet closed")) {
+          // SQLite closes the result set of a query without results, which has no
+          // columns to read from.
+          break;
+        }
+        if (!message.startsWith("no such column")) {
+          throw e;
+        }
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Populates the builder from the current record of the result set, using the
+   * columns returned by findColumns. Null values leave fields unset.
+   */
+  void read(ResultSet rs, int[] columns, Message.Builder b) throws SQLException {
+    for (int i = 0; i < fields.length; ++i) {
+      if (columns[i] == 0) {
+        continue;
+      }
+      try {
+        binders[i].read(rs, columns[i], b, fields[i]);
+      } catch (RuntimeException e) {
+        throw new RuntimeException(fields[i].getName() + ":" + rs.getObject(columns[i]), e);
+      }
+    }
+  }
+
+  /**
+   * Moves a value of one Java type between protos and JDBC.
+   */
+  private abstract static class ValueBinder {
+    abstract void bind(PreparedStatement insert, int insertIndex, Object value)
+        throws SQLException;
+
+    abstract void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException;
+  }
+
+  private static final ValueBinder INT_BINDER = new ValueBinder() {
+    void bind(PreparedStatement insert, int insertIndex, Object value) throws SQLException {
+      insert.setInt(insertIndex, (Integer) value);
+    }
+
+    void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException {
+      int value = rs.getInt(column);
+      if (!rs.wasNull()) {
+        b.setField(field, value);
+      }
+    }
+  };
+
+  private static final ValueBinder LONG_BINDER = new ValueBinder() {
+    void bind(PreparedStatement insert, int insertIndex, Object value) throws SQLException {
+      insert.setLong(insertIndex, (Long) value);
+    }
+
+    void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException {
+      // SQLite stores integers using up to 8 bytes depending on the magnitude of the
+      // value, so read them as longs.
+      long value = rs.getLong(column);
+      if (!rs.wasNull()) {
+        b.setField(field, value);
+      }
+    }
+  };
+
+  private static final ValueBinder DOUBLE_BINDER = new ValueBinder() {
+    void bind(PreparedStatement insert, int insertIndex, Object value) throws SQLException {
+      insert.setDouble(insertIndex, (Double) value);
+    }
+
+    void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException {
+      double value = rs.getDouble(column);
+      if (!rs.wasNull()) {
+        b.setField(field, value);
+      }
+    }
+  };
+
+  private static final ValueBinder FLOAT_BINDER = new ValueBinder() {
+    void bind(PreparedStatement insert, int insertIndex, Object value) throws SQLException {
+      insert.setFloat(insertIndex, (Float) value);
+    }
+
+    void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException {
+      float value = rs.getFloat(column);
+      if (!rs.wasNull()) {
+        b.setField(field, value);
+      }
+    }
+  };
+
+  private static final ValueBinder BOOLEAN_BINDER = new ValueBinder() {
+    void bind(PreparedStatement insert, int insertIndex, Object value) throws SQLException {
+      insert.setBoolean(insertIndex, (Boolean) value);
+    }
+
+    void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException {
+      boolean value = rs.getBoolean(column);
+      if (!rs.wasNull()) {
+        b.setField(field, value);
+      }
+    }
+  };
+
+  private static final ValueBinder STRING_BINDER = new ValueBinder() {
+    void bind(PreparedStatement insert, int insertIndex, Object value) throws SQLException {
+      insert.setString(insertIndex, (String) value);
+    }
+
+    void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException {
+      String value = rs.getString(column);
+      if (value != null) {
+        b.setField(field, value);
+      }
+    }
+  };
+
+  private static final ValueBinder BYTES_BINDER = new ValueBinder() {
+    void bind(PreparedStatement insert, int insertIndex, Object value) throws SQLException {
+      insert.setBytes(insertIndex, ((ByteString) value).toByteArray());
+    }
+
+    void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException {
+      byte[] value = rs.getBytes(column);
+      if (value != null) {
+        b.setField(field, ByteString.copyFrom(value));
+      }
+    }
+  };
+
+  private static final ValueBinder ENUM_BINDER = new ValueBinder() {
+    void bind(PreparedStatement insert, int insertIndex, Object value) throws SQLException {
+      insert.setInt(insertIndex, ((EnumValueDescriptor) value).getNumber());
+    }
+
+    void read(ResultSet rs, int column, Message.Builder b, FieldDescriptor field)
+        throws SQLException {
+      int value = rs.getInt(column);
+      if (!rs.wasNull()) {
+        b.setField(field, field.getEnumType().findValueByNumber(value));
+      }
+    }
+  };
+
+  private static ValueBinder getValueBinder(FieldDescriptor field) {
+    switch (field.getJavaType()) {
+      case INT:
+        return INT_BINDER;
+      case LONG:
+        return LONG_BINDER;
+      case DOUBLE:
+        return DOUBLE_BINDER;
+      case FLOAT:
+        return FLOAT_BINDER;
+      case BOOLEAN:
+        return BOOLEAN_BINDER;
+      case STRING:
+        return STRING_BINDER;
+      case BYTE_STRING:
+        return BYTES_BINDER;
+      case ENUM:
+        return ENUM_BINDER;
+      default:
+        throw new RuntimeException("Nested messages not supported: " + field.getFullName());
+    }
+  }
+}
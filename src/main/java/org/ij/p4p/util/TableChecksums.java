@@ -0,0 +1,122 @@
+package org.ij.p4p.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes an order independent checksum of each table as batches of records pass
+ * through, and passes the batches on. The checksum of a table is the sum of the hashes
+ * of its serialized records, so it can be computed in any order with constant memory:
+ * while importing, and again by scanning the database, to verify that every record
+ * was stored and reads back the same.
+ */
+public class TableChecksums<T extends Message> implements Receiver<T> {
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final Map<FieldDescriptor, Checksum> checksums = Maps.newLinkedHashMap();
+  private final Receiver<T> recv;
+
+  public TableChecksums(Descriptor databaseSchema, Receiver<T> recv) {
+    this.recv = recv;
+    for (FieldDescriptor table : databaseSchema.getFields()) {
+      checksums.put(table, new Checksum());
+    }
+  }
+
+  public void receive(T batch) {
+    for (Map.Entry<FieldDescriptor, Checksum> e : checksums.entrySet()) {
+      for (Message record : (List<Message>) batch.getField(e.getKey())) {
+        e.getValue().add(record);
+      }
+    }
+    recv.receive(batch);
+  }
+
+  /**
+   * Returns the checksums of the records received so far, in table order.
+   */
+  public List<SqTableChecksum> getChecksums() {
+    List<SqTableChecksum> results = Lists.newArrayList();
+    for (Map.Entry<FieldDescriptor, Checksum> e : checksums.entrySet()) {
+      results.add(e.getValue().toProto(e.getKey().getName()));
+    }
+    return results;
+  }
+
+  /**
+   * Computes the checksums of the tables in the database, by reading every record.
+   */
+  public static List<SqTableChecksum> scan(SqProto<?> sqProto) throws SQLException {
+    List<SqTableChecksum> results = Lists.newArrayList();
+    for (FieldDescriptor table : sqProto.getDatabaseSchema().getFields()) {
+      final Checksum checksum = new Checksum();
+      sqProto.readTable(table, new Receiver<Message>() {
+          public void receive(Message record) {
+            checksum.add(record);
+          }
+        });
+      results.add(checksum.toProto(table.getName()));
+    }
+    return results;
+  }
+
+  /**
+   * Scans the database, and compares the checksums with those stored in the
+   * table_checksums metadata table. Returns the names of the tables that don't match,
+   * or that have no stored checksum.
+   */
+  public static List<String> verify(SqProto<?> sqProto) throws SQLException {
+    final Map<String, SqTableChecksum> stored = Maps.newHashMap();
+    SqProto<SqMetadata> metadata = SqProto.create(sqProto.sqLite, SqMetadata.getDefaultInstance());
+    metadata.readTable(SqMetadata.getDescriptor().findFieldByName("table_checksums"),
+        new Receiver<Message>() {
+          public void receive(Message record) {
+            SqTableChecksum checksum = (SqTableChecksum) record;
+            stored.put(checksum.getTableName(), checksum);
+          }
+        });
+    List<String> mismatched = Lists.newArrayList();
+    for (SqTableChecksum checksum : scan(sqProto)) {
+      if (!checksum.equals(stored.get(checksum.getTableName()))) {
+        mismatched.add(checksum.getTableName());
+      }
+    }
+    return mismatched;
+  }
+
+  /**
+   * The record count and hash sum of a table. The 128-bit sum is kept in two 64-bit
+   * halves that each wrap around, which is just as order independent.
+   */
+  private static class Checksum {
+    long recordCount = 0;
+    long high = 0;
+    long low = 0;
+
+    void add(Message record) {
+      byte[] hash = HASH.hashBytes(record.toByteArray()).asBytes();
+      high += Longs.fromBytes(
+          hash[0], hash[1], hash[2], hash[3], hash[4], hash[5], hash[6], hash[7]);
+      low += Longs.fromBytes(
+          hash[8], hash[9], hash[10], hash[11], hash[12], hash[13], hash[14], hash[15]);
+      ++recordCount;
+    }
+
+    SqTableChecksum toProto(String tableName) {
+      return SqTableChecksum.newBuilder()
+          .setTableName(tableName)
+          .setRecordCount(recordCount)
+          .setChecksum(String.format("%016x%016x", high, low)).build();
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package org.ij.p4p.util;
+
+/**
+ * Parses values from text without allocating, by reading the characters directly.
+ * Invalid input is reported by returning INVALID rather than by throwing, so callers
+ * can record a parse issue and carry on.
+ */
+public class TextParsers {
+  /**
+   * Returned for text that can't be parsed.
+   */
+  public static final long INVALID = Long.MIN_VALUE;
+
+  private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+  private TextParsers() {
+  }
+
+  /**
+   * Parses a date in YYYYMMDD format to the number of days since 1970-01-01.
+   */
+  public static long parseEpochDay(CharSequence s) {
+    if (s.length() != 8) {
+      return INVALID;
+    }
+    return toEpochDay(parseDigits(s, 0, 4), parseDigits(s, 4, 6), parseDigits(s, 6, 8));
+  }
+
+  /**
+   * Parses a timestamp in YYYY-MM-DD-HH.MM.SS.ffffff format (the fraction is optional
+   * and may have up to nine digits) to milliseconds since 1970-01-01 UTC.
+   */
+  public static long parseEpochMillis(CharSequence s) {
+    int length = s.length();
+    if (length < 19 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != '-'
+        || s.charAt(13) != '.' || s.charAt(16) != '.') {
+      return INVALID;
+    }
+    long epochDay = toEpochDay(parseDigits(s, 0, 4), parseDigits(s, 5, 7), parseDigits(s, 8, 10));
+    int hour = parseDigits(s, 11, 13);
+    int minute = parseDigits(s, 14, 16);
+    int second = parseDigits(s, 17, 19);
+    if (epochDay == INVALID || hour < 0 || hour > 23 || minute < 0 || minute > 59
+        || second < 0 || second > 59) {
+      return INVALID;
+    }
+    int millis = 0;
+    if (length > 19) {
+      if (s.charAt(19) != '.' || length == 20 || length > 29) {
+        return INVALID;
+      }
+      int fraction = parseDigits(s, 20, length);
+      if (fraction < 0) {
+        return INVALID;
+      }
+      // Scale the fraction to milliseconds, truncating any extra digits.
+      int digits = length - 20;
+      for (int i = digits; i < 3; ++i) {
+        fraction *= 10;
+      }
+      for (int i = 3; i < digits; ++i) {
+        fraction /= 10;
+      }
+      millis = fraction;
+    }
+    return epochDay * MILLIS_PER_DAY + ((hour * 60 + minute) * 60 + second) * 1000L + millis;
+  }
+
+  /**
+   * Parses a decimal integer with an optional sign, such as "1766" or "+0000000042".
+   */
+  public static long parseLong(CharSequence s) {
+    int length = s.length();
+    int start = 0;
+    boolean negative = false;
+    if (length > 0 && (s.charAt(0) == '+' || s.charAt(0) == '-')) {
+      negative = s.charAt(0) == '-';
+      start = 1;
+    }
+    if (start == length) {
+      return INVALID;
+    }
+    long value = 0;
+    for (int i = start; i < length; ++i) {
+      int digit = s.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+        return INVALID;
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parses a decimal amount with an optional sign, such as "+000013888939.00", to a
+   * whole number of cents. Digits after the first two decimal places must be zeros,
+   * so that no amount is silently rounded.
+   */
+  public static long parseCents(CharSequence s) {
+    int length = s.length();
+    int i = 0;
+    boolean negative = false;
+    if (length > 0 && (s.charAt(0) == '+' || s.charAt(0) == '-')) {
+      negative = s.charAt(0) == '-';
+      i = 1;
+    }
+    long cents = 0;
+    int digitCount = 0;
+    for (; i < length && s.charAt(i) != '.'; ++i, ++digitCount) {
+      int digit = s.charAt(i) - '0';
+      // Leave room for the cents, so that the total can't overflow.
+      if (digit < 0 || digit > 9 || cents > (Long.MAX_VALUE / 100 - 1 - digit) / 10) {
+        return INVALID;
+      }
+      cents = cents * 10 + digit;
+    }
+    cents *= 100;
+    if (i < length) {
+      // Skip the decimal point.
+      ++i;
+      for (int place = 0; i < length; ++i, ++place, ++digitCount) {
+        int digit = s.charAt(i) - '0';
+        if (digit < 0 || digit > 9 || (place >= 2 && digit != 0)) {
+          return INVALID;
+        }
+        if (place == 0) {
+          cents += digit * 10;
+        } else if (place == 1) {
+          cents += digit;
+        }
+      }
+    }
+    if (digitCount == 0) {
+      return INVALID;
+    }
+    return negative ? -cents : cents;
+  }
+
+  /**
+   * Returns the year of a date or timestamp that starts with four year digits, or -1.
+   */
+  public static int parseYear(CharSequence s) {
+    return s.length() < 4 ? -1 : parseDigits(s, 0, 4);
+  }
+
+  /**
+   * Parses the characters from start to end as an unsigned decimal number. Returns -1
+   * if any of them isn't a digit. At most nine digits fit.
+   */
+  static int parseDigits(CharSequence s, int start, int end) {
+    int value = 0;
+    for (int i = start; i < end; ++i) {
+      int digit = s.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+
+  /**
+   * Converts a date in the proleptic Gregorian calendar to days since 1970-01-01, or
+   * returns INVALID if the month or day is out of range.
+   */
+  static long toEpochDay(int year, int month, int day) {
+    if (year < 1 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+      return INVALID;
+    }
+    // Count years from March, so that the leap day is at the end of the year.
+    int y = month <= 2 ? year - 1 : year;
+    int era = y / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+
+  private static int daysInMonth(int year, int month) {
+    switch (month) {
+      case 2:
+        boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+        return leap ? 29 : 28;
+      case 4:
+      case 6:
+      case 9:
+      case 11:
+        return 30;
+      default:
+        return 31;
+    }
+  }
+}
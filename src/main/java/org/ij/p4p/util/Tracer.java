@@ -0,0 +1,66 @@
+package org.ij.p4p.util;
+
+/**
+ * Times the stages of imports and queries, so that a slow import can be profiled in
+ * production. When the JDK has Flight Recorder, and the JFR events were compiled in
+ * (on JDK 11 or later), each stage is a JFR event, recorded along with the GC and I/O
+ * events whenever a recording is on. Otherwise the stages aren't recorded.
+ */
+public abstract class Tracer {
+  public enum Stage {
+    /** Reading a Zip entry, from opening it to the last record. */
+    ENTRY_READ,
+    /** Parsing a batch of CSV records into protos. */
+    BATCH_PARSED,
+    /** Converting a batch of records from text, with the issues found. */
+    BATCH_CONVERTED,
+    /** Binding a batch of records to an insert statement. */
+    BATCH_BOUND,
+    /** Executing a batch insert statement. */
+    BATCH_EXECUTED,
+    /** Committing a transaction. */
+    COMMIT,
+    /** Running a query and reading its results. */
+    QUERY_EXECUTED
+  }
+
+  /**
+   * A stage in progress, which is recorded when it ends.
+   */
+  public abstract static class Span {
+    public void end(long recordCount, long byteCount) {
+      end(recordCount, byteCount, 0);
+    }
+
+    public abstract void end(long recordCount, long byteCount, long issueCount);
+  }
+
+  private static final Span NO_SPAN = new Span() {
+      public void end(long recordCount, long byteCount, long issueCount) {
+      }
+    };
+
+  private static final Tracer TRACER = load();
+
+  /**
+   * Begins a stage of work on a table, or a query, given the table name or the SQL of
+   * the query, which may be null.
+   */
+  public static Span begin(Stage stage, String table) {
+    return TRACER == null ? NO_SPAN : TRACER.start(stage, table);
+  }
+
+  protected abstract Span start(Stage stage, String table);
+
+  /**
+   * Returns the JFR tracer, or null if the JDK or the build doesn't have JFR.
+   */
+  private static Tracer load() {
+    try {
+      return (Tracer) Class.forName("org.ij.p4p.util.jfr.JfrTracer")
+          .getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package org.ij.p4p.util.jfr;
+
+import org.ij.p4p.util.Tracer;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records the stages of imports and queries as JDK Flight Recorder events. Loaded by
+ * Tracer when the JDK has JFR. The events are disabled unless a recording is on, or
+ * the JVM is started with -XX:StartFlightRecording, and cost little when disabled.
+ */
+public class JfrTracer extends Tracer {
+  @Category({"p4p", "Import"})
+  @StackTrace(false)
+  abstract static class StageEvent extends Event {
+    @Label("Table or Query")
+    String table;
+
+    @Label("Records")
+    long recordCount;
+
+    @Label("Bytes")
+    @DataAmount
+    long byteCount;
+
+    @Label("Issues")
+    long issueCount;
+  }
+
+  @Name("org.ij.p4p.EntryRead")
+  @Label("Zip Entry Read")
+  static class EntryRead extends StageEvent {
+  }
+
+  @Name("org.ij.p4p.BatchParsed")
+  @Label("Batch Parsed")
+  static class BatchParsed extends StageEvent {
+  }
+
+  @Name("org.ij.p4p.BatchConverted")
+  @Label("Batch Converted")
+  static class BatchConverted extends StageEvent {
+  }
+
+  @Name("org.ij.p4p.BatchBound")
+  @Label("Batch Bound")
+  static class BatchBound extends StageEvent {
+  }
+
+  @Name("org.ij.p4p.BatchExecuted")
+  @Label("Batch Executed")
+  static class BatchExecuted extends StageEvent {
+  }
+
+  @Name("org.ij.p4p.Commit")
+  @Label("Commit")
+  static class Commit extends StageEvent {
+  }
+
+  @Category({"p4p", "Query"})
+  @Name("org.ij.p4p.QueryExecuted")
+  @Label("Query Executed")
+  static class QueryExecuted extends StageEvent {
+  }
+
+  private static class EventSpan extends Span {
+    private final StageEvent event;
+
+    EventSpan(StageEvent event) {
+      this.event = event;
+    }
+
+    public void end(long recordCount, long byteCount, long issueCount) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.recordCount = recordCount;
+        event.byteCount = byteCount;
+        event.issueCount = issueCount;
+        event.commit();
+      }
+    }
+  }
+
+  @Override
+  protected Span start(Stage stage, String table) {
+    StageEvent event;
+    switch (stage) {
+      case ENTRY_READ:
+        event = new EntryRead();
+        break;
+      case BATCH_PARSED:
+        event = new BatchParsed();
+        break;
+      case BATCH_CONVERTED:
+        event = new BatchConverted();
+        break;
+      case BATCH_BOUND:
+        event = new BatchBound();
+        break;
+      case BATCH_EXECUTED:
+        event = new BatchExecuted();
+        break;
+      case COMMIT:
+        event = new Commit();
+        break;
+      default:
+        event = new QueryExecuted();
+        break;
+    }
+    event.table = table;
+    event.begin();
+    return new EventSpan(event);
+  }
+}
@@ -3,21 +3,32 @@ package org.ij.p4p.cats;
 import static com.google.common.truth.Truth.assertThat;
 
 import org.ij.p4p.Tests;
+import org.ij.p4p.util.InferredSchema;
+import org.ij.p4p.util.LookupCache;
+import org.ij.p4p.util.Receiver;
 import org.ij.p4p.util.SqLite;
 import org.ij.p4p.util.SqProto;
+import org.ij.p4p.util.TableChecksums;
 
+import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.DynamicMessage;
 import com.google.protobuf.TextFormat;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.File;
 import java.io.InputStreamReader;
 import java.sql.Statement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
@@ -52,6 +63,570 @@ public class CatsParserTest extends TestCase {
     assertThat(snap).isEqualTo(readSnapshot("cats_snapshot.pbtxt"));
   }
 
+  /**
+   * Imports with the code fields dictionary encoded, and reads back the same records.
+   */
+  public void testParseEncoded() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder().setEncodeCodes(true).build(),
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+          }
+        });
+    assertThat(sqProto.sqLite.isView("asset")).isTrue();
+    assertThat(sqProto.snapshot()).isEqualTo(readSnapshot("cats_snapshot.pbtxt"));
+    Statement s = sqProto.sqLite.connection.createStatement();
+    ResultSet rs = s.executeQuery("select count(*) from asset_seizure_state_dict");
+    assertThat(rs.getInt(1)).isEqualTo(1);
+    s.close();
+  }
+
+  /**
+   * Shares the code values of a field across batches, and only within the field.
+   */
+  public void testCodeInterner() {
+    CatsParser.CodeInterner interner = new CatsParser.CodeInterner();
+    FieldDescriptor state = AssetRecord.getDescriptor().findFieldByName("seizure_state");
+    FieldDescriptor type = AssetRecord.getDescriptor().findFieldByName("asset_type");
+    String first = interner.intern(state, new String("CA"));
+    assertThat(interner.intern(state, new String("CA"))).isSameAs(first);
+    assertThat(interner.intern(type, new String("CA"))).isNotSameAs(first);
+  }
+
+  /**
+   * Reads a lookup table from the Zip, and adds the descriptions during the import.
+   */
+  public void testParseWithDescriptions() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("ASSET_TYP_L.txt"), ByteString.copyFromUtf8(
+            "\"ASSET_TYP\",\"ASSET_TYP_DESC\"\n" +
+            "\"JU\",\"Jewelry\"\n" +
+            "\"FI \",\"Financial Instruments\"\n"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    LookupCache lookups = CatsParser.readLookupTables(Tests.toZipInputStream(entries));
+    assertThat(lookups.size()).isEqualTo(2);
+    assertThat(lookups.getDescription("ASSET_TYP_L", "FI")).isEqualTo("Financial Instruments");
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder().setAddDescriptions(true).build(), lookups,
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+          }
+        });
+    CatsSnapshot expected = readSnapshot("cats_snapshot.pbtxt");
+    CatsSnapshot.Builder b = expected.toBuilder();
+    b.getAssetBuilder(0).setAssetTypeDesc("Jewelry");
+    b.getAssetBuilder(1).setAssetTypeDesc("Financial Instruments");
+    assertThat(sqProto.snapshot()).isEqualTo(b.build());
+  }
+
+  /**
+   * Imports with typed dates, and checks the parsed values and the year index.
+   */
+  public void testParseTypedDates() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder().setTypedDates(true).build(),
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+            assertThat(issue.getType()).isEqualTo(ParseIssue.Type.BATCH_RECORDS);
+          }
+        });
+    CatsSnapshot snap = sqProto.snapshot();
+    AssetRecord asset = snap.getAsset(0);
+    assertThat(asset.getApprovalDateDays()).isEqualTo(16262);
+    assertThat(asset.getApprovalDateYear()).isEqualTo(2014);
+    assertThat(asset.getUpdateTimestampMillis()).isEqualTo(1405079004196L);
+    assertThat(asset.hasSeizureDateDays()).isFalse();
+    assertThat(snap.getAsset(1).getSeizureDateYear()).isEqualTo(1997);
+    assertThat(snap.getEquitableSharing(1).getSharingExecutionDateDays()).isEqualTo(11229);
+    Statement s = sqProto.sqLite.connection.createStatement();
+    ResultSet rs = s.executeQuery(
+        "select count(*) from sqlite_master where type = 'index' and tbl_name = 'asset'");
+    assertThat(rs.getInt(1)).isEqualTo(1);
+    s.close();
+  }
+
+  /**
+   * Imports with fixed point amounts, and checks that malformed numbers are reported
+   * rather than thrown.
+   */
+  public void testParseFixedPointAmounts() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder().setFixedPointAmounts(true).build(),
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+            assertThat(issue.getType()).isEqualTo(ParseIssue.Type.BATCH_RECORDS);
+          }
+        });
+    CatsSnapshot snap = sqProto.snapshot();
+    assertThat(snap.getAsset(0).getAssetValueCents()).isEqualTo(1388893900L);
+    assertThat(snap.getAsset(1).getAssetValueCents()).isEqualTo(13567145L);
+    assertThat(snap.getEquitableSharing(0).getSharingExecutionAmountCents()).isEqualTo(119328L);
+    assertThat(snap.getEquitableSharing(0).getSharingUsmsExpensesCents()).isEqualTo(125860L);
+
+    final List<ParseIssue> issues = Lists.newArrayList();
+    RawDag71 raw = RawDag71.newBuilder()
+        .setSHRCONTRIBHRS("1,766")
+        .setSHREXECAMT("+12.3.4").build();
+    CatsSnapshot converted = CatsParser.convertFromText(
+        CatsRawSnapshot.newBuilder().addDAG71T(raw).build(),
+        ImportOptions.newBuilder().setFixedPointAmounts(true).build(), null,
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+            issues.add(issue);
+          }
+        });
+    assertThat(converted.getEquitableSharing(0).hasContributedHours()).isFalse();
+    assertThat(converted.getEquitableSharing(0).hasSharingExecutionAmountCents()).isFalse();
+    // The first issue counts the converted records.
+    assertThat(issues.subList(1, issues.size())).isEqualTo(ImmutableList.of(
+        ParseIssue.newBuilder()
+            .setType(ParseIssue.Type.INVALID_FIELD_VALUE)
+            .setTableId(2).setFieldId(9).setFieldValue("1,766").build(),
+        ParseIssue.newBuilder()
+            .setType(ParseIssue.Type.INVALID_FIELD_VALUE)
+            .setTableId(2).setFieldId(37).setFieldValue("+12.3.4").build()));
+  }
+
+  /**
+   * Imports with a filter on each table, and counts the dropped records.
+   */
+  public void testParseFiltered() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    ImportOptions.Builder options = ImportOptions.newBuilder();
+    options.addFilterBuilder().setTable("ASSET_T").setField("SZ_ST").addValue("AR");
+    options.addFilterBuilder().setTable("DAG71_T").setField("SHR_EXEC_DT")
+        .setMinValue("2001").setMaxValue("2010");
+    final List<ParseIssue> issues = Lists.newArrayList();
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto, options.build(),
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+            issues.add(issue);
+          }
+        });
+    assertThat(issues).isEqualTo(ImmutableList.of(
+        ParseIssue.newBuilder()
+            .setType(ParseIssue.Type.BATCH_RECORDS)
+            .setTableId(1).setRecordCount(2).setFilteredCount(1).build(),
+        ParseIssue.newBuilder()
+            .setType(ParseIssue.Type.BATCH_RECORDS)
+            .setTableId(2).setRecordCount(2).setFilteredCount(1).build()));
+    CatsSnapshot expected = readSnapshot("cats_snapshot.pbtxt");
+    assertThat(sqProto.snapshot()).isEqualTo(CatsSnapshot.newBuilder()
+        .addAsset(expected.getAsset(1))
+        .addEquitableSharing(expected.getEquitableSharing(0)).build());
+  }
+
+  /**
+   * Samples records by asset ID, and checks that both tables keep the same assets.
+   */
+  public void testSample() throws Exception {
+    CatsRawSnapshot.Builder raw = CatsRawSnapshot.newBuilder();
+    for (int i = 1; i <= 1000; ++i) {
+      raw.addASSETTBuilder().setASSETID(String.format("%013d", i));
+      raw.addDAG71TBuilder().setASSETID(Integer.toString(i));
+    }
+    CatsSnapshot sample = CatsParser.convertFromText(raw.build(),
+        ImportOptions.newBuilder().setSampleFraction(0.1).build(), null,
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+          }
+        });
+    assertThat(sample.getAssetCount()).isGreaterThan(50);
+    assertThat(sample.getAssetCount()).isLessThan(150);
+    assertThat(sample.getEquitableSharingCount()).isEqualTo(sample.getAssetCount());
+    for (int i = 0; i < sample.getAssetCount(); ++i) {
+      assertThat(sample.getEquitableSharing(i).getAssetId())
+          .isEqualTo(sample.getAsset(i).getAssetId());
+    }
+  }
+
+  /**
+   * Imports the assets twice, after the equitable sharing records, whose assets are
+   * missing from the test data.
+   */
+  public void testCheckIntegrity() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"),
+        new ZipEntry("ASSET_T.csv"), Tests.readBytes("cats_asset_table_head.csv"));
+    final List<ParseIssue> issues = Lists.newArrayList();
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder().setCheckIntegrity(true).build(),
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+            if (issue.getType() != ParseIssue.Type.BATCH_RECORDS) {
+              issues.add(issue);
+            }
+          }
+        });
+    assertThat(issues).isEqualTo(ImmutableList.of(
+        ParseIssue.newBuilder()
+            .setType(ParseIssue.Type.DUPLICATE_KEY)
+            .setTableId(1).setFieldValue("656780").build(),
+        ParseIssue.newBuilder()
+            .setType(ParseIssue.Type.DUPLICATE_KEY)
+            .setTableId(1).setFieldValue("665060").build(),
+        ParseIssue.newBuilder()
+            .setType(ParseIssue.Type.ORPHANED_RECORD)
+            .setTableId(2).setFieldId(1).setFieldValue("10077").build(),
+        ParseIssue.newBuilder()
+            .setType(ParseIssue.Type.ORPHANED_RECORD)
+            .setTableId(2).setFieldId(1).setFieldValue("1").build()));
+  }
+
+  /**
+   * Imports with checksums and other options, and verifies the database against them.
+   */
+  public void testChecksums() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder()
+            .setEncodeCodes(true)
+            .setTypedDates(true)
+            .setFixedPointAmounts(true)
+            .setComputeChecksums(true).build(),
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+          }
+        });
+    assertThat(TableChecksums.verify(sqProto)).isEmpty();
+    Statement s = sqProto.sqLite.connection.createStatement();
+    s.executeUpdate("delete from asset_codes where asset_id = 656780");
+    s.close();
+    assertThat(TableChecksums.verify(sqProto)).containsExactly("asset");
+  }
+
+  /**
+   * Reloads a database through shadow tables, while a reader keeps seeing the previous
+   * import until the swap.
+   */
+  public void testShadowReload() throws Exception {
+    File databaseFile = new File(Files.createTempDir(), "cats.db");
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connect(databaseFile.getPath()),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    ImportOptions.Builder options = ImportOptions.newBuilder().setShadowReload(true);
+    options.addFilterBuilder().setTable("ASSET_T").setField("SZ_ST").addValue("AR");
+    final Receiver<ParseIssue> ignoreIssues = new Receiver<ParseIssue>() {
+      public void receive(ParseIssue issue) {
+      }
+    };
+    CatsParser.importIntoDatabase(
+        Tests.toZipInputStream(entries), sqProto, options.build(), ignoreIssues);
+    final SqLite reader = SqLite.connectReadOnly(databaseFile.getPath());
+    assertThat(count(reader, "asset")).isEqualTo(1);
+
+    final List<Integer> countsDuringReload = Lists.newArrayList();
+    options.clearFilter().setEncodeCodes(true).setTypedDates(true);
+    for (int i = 0; i < 2; ++i) {
+      countsDuringReload.clear();
+      CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto, options.build(),
+          new Receiver<ParseIssue>() {
+            public void receive(ParseIssue issue) {
+              if (issue.getTableId() == 2) {
+                // The assets are committed to the shadow tables by now.
+                try {
+                  countsDuringReload.add(count(reader, "asset"));
+                  countsDuringReload.add(count(reader, "asset" + SqProto.SHADOW_SUFFIX));
+                } catch (SQLException e) {
+                  throw new RuntimeException(e);
+                }
+              }
+            }
+          });
+      assertThat(countsDuringReload).isEqualTo(ImmutableList.of(i == 0 ? 1 : 2, 2));
+      assertThat(count(reader, "asset")).isEqualTo(2);
+      assertThat(reader.exists("asset" + SqProto.SHADOW_SUFFIX)).isFalse();
+      assertThat(reader.getIndexes("asset_codes").values())
+          .contains(ImmutableList.of("seizure_date_year"));
+    }
+    assertThat(reader.getGeneration()).isEqualTo(3);
+    reader.connection.close();
+    CatsSnapshot expected = readSnapshot("cats_snapshot.pbtxt");
+    assertThat(sqProto.snapshot().getAsset(1).getAssetId())
+        .isEqualTo(expected.getAsset(1).getAssetId());
+  }
+
+  /**
+   * Migrates an import that lacks some asset columns and the equitable sharing table,
+   * which fills in just those from the Zip.
+   */
+  public void testMigrate() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto);
+    // Recreate the tables of an import from before the columns and table existed.
+    List<String> oldColumns = Lists.newArrayList();
+    for (FieldDescriptor field : AssetRecord.getDescriptor().getFields()) {
+      if (!field.getName().equals("asset_value") && !field.getName().equals("seizure_state")) {
+        oldColumns.add(field.getName());
+      }
+    }
+    Statement s = sqProto.sqLite.connection.createStatement();
+    s.executeUpdate("create table asset_old as select "
+        + Joiner.on(", ").join(oldColumns) + " from asset");
+    s.executeUpdate("drop table asset");
+    s.executeUpdate("alter table asset_old rename to asset");
+    s.executeUpdate("update asset set asset_type = 'XX'");
+    s.executeUpdate("drop table equitable_sharing");
+    s.close();
+
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder().setMigrate(true).build(),
+        new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+          }
+        });
+    // Only the new columns are filled in from the Zip.
+    CatsSnapshot.Builder expected = readSnapshot("cats_snapshot.pbtxt").toBuilder();
+    for (AssetRecord.Builder asset : expected.getAssetBuilderList()) {
+      asset.setAssetType("XX");
+    }
+    assertThat(sqProto.snapshot()).isEqualTo(expected.build());
+    assertThat(sqProto.sqLite.getIndexes("asset").values())
+        .contains(ImmutableList.of("asset_id"));
+    assertThat(sqProto.sqLite.getGeneration()).isEqualTo(2);
+  }
+
+  /**
+   * Verifies that a migration is refused when stored records or records in the Zip
+   * share a key, or lack one.
+   */
+  public void testMigrateAmbiguousKeys() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    ByteString sharing = Tests.readBytes("cats_equitable_sharing_table_head.csv");
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), sharing);
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto);
+    // Recreate equitable_sharing without its last column, with a record stored twice.
+    List<FieldDescriptor> fields = EquitableSharingRecord.getDescriptor().getFields();
+    String dropped = fields.get(fields.size() - 1).getName();
+    List<String> oldColumns = Lists.newArrayList();
+    for (FieldDescriptor field : fields.subList(0, fields.size() - 1)) {
+      oldColumns.add(field.getName());
+    }
+    Statement s = sqProto.sqLite.connection.createStatement();
+    s.executeUpdate("create table sharing_old as select "
+        + Joiner.on(", ").join(oldColumns) + " from equitable_sharing");
+    s.executeUpdate("drop table equitable_sharing");
+    s.executeUpdate("alter table sharing_old rename to equitable_sharing");
+    s.executeUpdate("insert into equitable_sharing select * from equitable_sharing limit 1");
+    sqProto.sqLite.connection.commit();
+    s.close();
+
+    final List<ParseIssue> issues = Lists.newArrayList();
+    Receiver<ParseIssue> issueList = new Receiver<ParseIssue>() {
+        public void receive(ParseIssue issue) {
+          issues.add(issue);
+        }
+      };
+    ImportOptions migrate = ImportOptions.newBuilder().setMigrate(true).build();
+    try {
+      CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto, migrate, issueList);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    assertThat(issues.size()).isEqualTo(1);
+    assertThat(issues.get(0).getType()).isEqualTo(ParseIssue.Type.DUPLICATE_KEY);
+    assertThat(issues.get(0).getTableId()).isEqualTo(CatsSnapshot.EQUITABLE_SHARING_FIELD_NUMBER);
+    assertThat(issues.get(0).getFieldValue()).isEqualTo("10077,DCUSC5000");
+    assertThat(hasColumn(sqProto.sqLite, "equitable_sharing", dropped)).isFalse();
+
+    // With unique stored keys, a duplicate or a missing key in the Zip is also refused.
+    s = sqProto.sqLite.connection.createStatement();
+    s.executeUpdate("delete from equitable_sharing where rowid = (select max(rowid)"
+        + " from equitable_sharing)");
+    sqProto.sqLite.connection.commit();
+    s.close();
+    String[] lines = sharing.toStringUtf8().split("\n");
+    String keyless = lines[2].replaceFirst("^\"0000000000001\"", "\"\"");
+    entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), sharing.concat(
+            ByteString.copyFromUtf8(lines[1] + "\n" + keyless + "\n")));
+    issues.clear();
+    try {
+      CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto, migrate, issueList);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    List<ParseIssue.Type> types = Lists.newArrayList();
+    for (ParseIssue issue : issues) {
+      if (issue.getType() != ParseIssue.Type.BATCH_RECORDS) {
+        types.add(issue.getType());
+      }
+    }
+    assertThat(types).containsExactly(ParseIssue.Type.DUPLICATE_KEY, ParseIssue.Type.MISSING_KEY);
+    assertThat(hasColumn(sqProto.sqLite, "equitable_sharing", dropped)).isFalse();
+    assertThat(count(sqProto.sqLite, "equitable_sharing")).isEqualTo(2);
+  }
+
+  /**
+   * Imports the tables and a lookup table with inferred schemas.
+   */
+  public void testImportAllTables() throws Exception {
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("ASSET_TYP_L.txt"), ByteString.copyFromUtf8(
+            "\"ASSET_TYP\",\"ASSET_TYP_DESC\"\n" +
+            "\"JU\",\"Jewelry\"\n"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    InferredSchema schema = CatsParser.inferAllTables(Tests.toZipInputStream(entries));
+    assertThat(schema.getDescriptor().getFields().size()).isEqualTo(3);
+    FieldDescriptor assetId = schema.getDescriptor().findFieldByName("asset_t")
+        .getMessageType().findFieldByName("asset_id");
+    assertThat(assetId.getJavaType()).isEqualTo(FieldDescriptor.JavaType.LONG);
+
+    final List<ParseIssue> issues = Lists.newArrayList();
+    SqProto<DynamicMessage> sqProto = CatsParser.importAllTables(Tests.toZipInputStream(entries),
+        schema, SqLite.connectInMem(), new Receiver<ParseIssue>() {
+          public void receive(ParseIssue issue) {
+            issues.add(issue);
+          }
+        });
+    assertThat(issues.size()).isEqualTo(3);
+    assertThat(count(sqProto.sqLite, "asset_t")).isEqualTo(2);
+    assertThat(count(sqProto.sqLite, "asset_typ_l")).isEqualTo(1);
+    assertThat(count(sqProto.sqLite, "dag71_t")).isEqualTo(2);
+    // The asset ids match the typed import.
+    CatsSnapshot expected = readSnapshot("cats_snapshot.pbtxt");
+    Statement s = sqProto.sqLite.connection.createStatement();
+    ResultSet rs = s.executeQuery("select typeof(asset_id), asset_id from asset_t");
+    assertThat(rs.next()).isTrue();
+    assertThat(rs.getString(1)).isEqualTo("integer");
+    assertThat(rs.getLong(2)).isEqualTo(expected.getAsset(0).getAssetId());
+    s.close();
+  }
+
+  /**
+   * Fills in the rollups while importing, which match the report queries, and keeps
+   * them up to date when migrating in the equitable sharing table.
+   */
+  public void testRollups() throws Exception {
+    SqProto<CatsSnapshot> sqProto = SqProto.create(
+        SqLite.connectInMem(),
+        CatsSnapshot.getDefaultInstance());
+    // Share the first asset, so that the sharing record joins with it.
+    String sharing = Tests.readBytes("cats_equitable_sharing_table_head.csv").toStringUtf8()
+        .replace("\"0000000010077\"", "\"0000000656780\"");
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), ByteString.copyFromUtf8(sharing));
+    final Receiver<ParseIssue> ignoreIssues = new Receiver<ParseIssue>() {
+      public void receive(ParseIssue issue) {
+      }
+    };
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder().setFillRollups(true).build(), ignoreIssues);
+    String rollupQuery = "select yr, avas, av, iafs, ptsa, sea from sharing_by_year order by yr";
+    List<String> expected = readRows(sqProto.sqLite,
+        CatsServer.SHARING_BY_YEAR + " order by YR");
+    assertThat(expected).isNotEmpty();
+    assertThat(readRows(sqProto.sqLite, rollupQuery)).isEqualTo(expected);
+    assertThat(readRows(sqProto.sqLite, "select yr, st, sea from sharing_by_year_and_state"
+        + " order by yr, st")).isEqualTo(readRows(sqProto.sqLite,
+            CatsServer.SHARING_BY_YEAR_AND_STATE.replace("and YR >= ? and YR <= ?", "")
+            + " order by YR, ST"));
+
+    Statement s = sqProto.sqLite.connection.createStatement();
+    s.executeUpdate("drop table equitable_sharing");
+    s.executeUpdate("delete from sharing_by_year");
+    s.close();
+    CatsParser.importIntoDatabase(Tests.toZipInputStream(entries), sqProto,
+        ImportOptions.newBuilder().setMigrate(true).setFillRollups(true).build(), ignoreIssues);
+    assertThat(readRows(sqProto.sqLite, rollupQuery)).isEqualTo(expected);
+  }
+
+  private static List<String> readRows(SqLite sqLite, String query) throws SQLException {
+    List<String> rows = Lists.newArrayList();
+    Statement s = sqLite.connection.createStatement();
+    try {
+      ResultSet rs = s.executeQuery(query);
+      while (rs.next()) {
+        StringBuilder row = new StringBuilder();
+        for (int i = 1; i <= rs.getMetaData().getColumnCount(); ++i) {
+          row.append(rs.getDouble(i)).append(',');
+        }
+        rows.add(row.toString());
+      }
+    } finally {
+      s.close();
+    }
+    return rows;
+  }
+
+  private static boolean hasColumn(SqLite sqLite, String tableName, String columnName)
+      throws SQLException {
+    Statement s = sqLite.connection.createStatement();
+    try {
+      ResultSet rs = s.executeQuery("pragma table_info(" + tableName + ")");
+      while (rs.next()) {
+        if (rs.getString("name").equals(columnName)) {
+          return true;
+        }
+      }
+      return false;
+    } finally {
+      s.close();
+    }
+  }
+
+  private static int count(SqLite sqLite, String tableName) throws SQLException {
+    Statement s = sqLite.connection.createStatement();
+    try {
+      ResultSet rs = s.executeQuery("select count(*) from " + tableName);
+      rs.next();
+      return rs.getInt(1);
+    } finally {
+      s.close();
+    }
+  }
+
   public void testParseInconsistent() throws Exception {
     SqProto<CatsSnapshot> sqProto = SqProto.create(
         SqLite.connectInMem(),
@@ -0,0 +1,220 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+
+public class ArrowExporterTest extends TestCase {
+  public ArrowExporterTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(ArrowExporterTest.class);
+  }
+
+  private static final FieldDescriptor DESCRIPTION =
+      Produce.getDescriptor().findFieldByName("description");
+
+  /**
+   * Exports the grocery data, and verifies the framing of the Arrow file.
+   */
+  public void testExportTables() throws Exception {
+    File directory = export(ImmutableSet.of(DESCRIPTION));
+    for (String tableName : new String[] {"fresh_produce", "frozen_produce"}) {
+      ByteBuffer bb = read(directory, tableName);
+      int size = bb.limit();
+      assertThat(new String(bb.array(), 0, 6, "US-ASCII")).isEqualTo("ARROW1");
+      assertThat(new String(bb.array(), size - 6, 6, "US-ASCII")).isEqualTo("ARROW1");
+      // The schema message follows the header, after a continuation marker.
+      assertThat(bb.getInt(8)).isEqualTo(0xFFFFFFFF);
+      assertThat(bb.getInt(12) % 8).isEqualTo(0);
+      // The footer precedes its length, and is preceded by the end of stream marker.
+      int footerLength = bb.getInt(size - 10);
+      int footerStart = size - 10 - footerLength;
+      assertThat(bb.getInt(footerStart - 8)).isEqualTo(0xFFFFFFFF);
+      assertThat(bb.getInt(footerStart - 4)).isEqualTo(0);
+      // The root offset of the footer points within the footer.
+      assertThat(bb.getInt(footerStart)).isLessThan(footerLength);
+    }
+  }
+
+  /**
+   * Decodes the schema, the ids of the first record batch, and the dictionary of
+   * the encoded description field.
+   */
+  public void testEncodedContent() throws Exception {
+    ByteBuffer bb = read(export(ImmutableSet.of(DESCRIPTION)), "fresh_produce");
+    int footer = getFooter(bb);
+    List<Integer> fields = getSchemaFields(bb, footer);
+    assertThat(getTypeTypes(bb, fields)).isEqualTo(Lists.newArrayList(
+        "Int", "Int", "Utf8", "FloatingPoint", "FloatingPoint", "Int", "Bool", "Binary"));
+    // Only the description is dictionary encoded.
+    for (int i = 0; i < fields.size(); ++i) {
+      assertThat(field(bb, fields.get(i), 4) != 0).isEqualTo(i == 2);
+    }
+
+    int recordBatch = getBatch(bb, footer, 3, 0);
+    assertThat(bb.getLong(field(bb, recordBatch, 0))).isEqualTo(2L);
+    // The buffers of produce_id follow its validity buffer.
+    ByteBuffer ids = getBuffer(bb, footer, 3, 0, 1);
+    assertThat(ids.limit()).isEqualTo(16);
+    assertThat(ids.getLong(0)).isEqualTo(1L);
+    assertThat(ids.getLong(8)).isEqualTo(2L);
+    // The descriptions are indices into the dictionary.
+    ByteBuffer indices = getBuffer(bb, footer, 3, 0, 5);
+    assertThat(indices.limit()).isEqualTo(8);
+    assertThat(indices.getInt(0)).isEqualTo(0);
+    assertThat(indices.getInt(4)).isEqualTo(1);
+
+    int dictionaryBatch = getBatch(bb, footer, 2, 0);
+    // The dictionary id is the default, 0, so it is omitted.
+    assertThat(field(bb, dictionaryBatch, 0)).isEqualTo(0);
+    assertThat(getStrings(getBuffer(bb, footer, 2, 0, 1), getBuffer(bb, footer, 2, 0, 2)))
+        .isEqualTo(Lists.newArrayList("Honey Crisp", "Florida Navel"));
+  }
+
+  /**
+   * Verifies that strings outside the encoded set are written as plain utf8, without
+   * dictionaries.
+   */
+  public void testPlainStrings() throws Exception {
+    ByteBuffer bb = read(export(ImmutableSet.<FieldDescriptor>of()), "frozen_produce");
+    int footer = getFooter(bb);
+    List<Integer> fields = getSchemaFields(bb, footer);
+    assertThat(getTypeTypes(bb, fields).get(2)).isEqualTo("Utf8");
+    assertThat(field(bb, fields.get(2), 4)).isEqualTo(0);
+    assertThat(vectorLength(bb, field(bb, footer, 2))).isEqualTo(0);
+    // The description has validity, offsets and data buffers, and the null is empty.
+    ByteBuffer validity = getBuffer(bb, footer, 3, 0, 4);
+    assertThat(validity.get(0)).isEqualTo((byte) 3);
+    assertThat(getStrings(getBuffer(bb, footer, 3, 0, 5), getBuffer(bb, footer, 3, 0, 6)))
+        .isEqualTo(Lists.newArrayList("Broccoli Head", "Organic Carrots", ""));
+  }
+
+  private static File export(ImmutableSet<FieldDescriptor> encodedFields) throws Exception {
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connectTemp(), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(SqProtoTest.getGroceryData());
+    File directory = Files.createTempDir();
+    ArrowExporter.exportTables(sqProto, directory, encodedFields);
+    return directory;
+  }
+
+  private static ByteBuffer read(File directory, String tableName) throws Exception {
+    return ByteBuffer.wrap(Files.toByteArray(
+        new File(directory, tableName + ArrowExporter.FILE_EXTENSION)))
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Returns the position of the Footer table.
+   */
+  private static int getFooter(ByteBuffer bb) {
+    int footerStart = bb.limit() - 10 - bb.getInt(bb.limit() - 10);
+    return indirect(bb, footerStart);
+  }
+
+  /**
+   * Returns the positions of the Field tables in the schema of the footer.
+   */
+  private static List<Integer> getSchemaFields(ByteBuffer bb, int footer) {
+    int schema = indirect(bb, field(bb, footer, 1));
+    int vector = indirect(bb, field(bb, schema, 1));
+    List<Integer> fields = Lists.newArrayList();
+    for (int i = 0; i < bb.getInt(vector); ++i) {
+      fields.add(indirect(bb, vector + 4 + 4 * i));
+    }
+    return fields;
+  }
+
+  private static List<String> getTypeTypes(ByteBuffer bb, List<Integer> fields) {
+    String[] names = {"NONE", "Null", "Int", "FloatingPoint", "Binary", "Utf8", "Bool"};
+    List<String> typeTypes = Lists.newArrayList();
+    for (int field : fields) {
+      typeTypes.add(names[bb.get(field(bb, field, 2))]);
+    }
+    return typeTypes;
+  }
+
+  /**
+   * Returns the position of the Block struct in a vector of the footer: 2 for the
+   * dictionaries, or 3 for the record batches.
+   */
+  private static int getBlock(ByteBuffer bb, int footer, int vectorField, int index) {
+    return indirect(bb, field(bb, footer, vectorField)) + 4 + 24 * index;
+  }
+
+  /**
+   * Returns the position of the header of the message in a block, which is a
+   * RecordBatch or DictionaryBatch table.
+   */
+  private static int getBatch(ByteBuffer bb, int footer, int vectorField, int index) {
+    int block = getBlock(bb, footer, vectorField, index);
+    int message = indirect(bb, (int) bb.getLong(block) + 8);
+    return indirect(bb, field(bb, message, 2));
+  }
+
+  /**
+   * Returns a buffer from the body of the message in a block.
+   */
+  private static ByteBuffer getBuffer(ByteBuffer bb, int footer, int vectorField, int index,
+      int buffer) {
+    int block = getBlock(bb, footer, vectorField, index);
+    int body = (int) bb.getLong(block) + bb.getInt(block + 8);
+    int recordBatch = getBatch(bb, footer, vectorField, index);
+    if (vectorField == 2) {
+      recordBatch = indirect(bb, field(bb, recordBatch, 1));
+    }
+    int buffers = indirect(bb, field(bb, recordBatch, 2));
+    assertThat(buffer).isLessThan(bb.getInt(buffers));
+    int offset = body + (int) bb.getLong(buffers + 4 + 16 * buffer);
+    int length = (int) bb.getLong(buffers + 4 + 16 * buffer + 8);
+    return ByteBuffer.wrap(Arrays.copyOfRange(bb.array(), offset, offset + length))
+        .order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static List<String> getStrings(ByteBuffer offsets, ByteBuffer data) {
+    List<String> strings = Lists.newArrayList();
+    for (int i = 4; i < offsets.limit(); i += 4) {
+      int start = offsets.getInt(i - 4);
+      strings.add(new String(data.array(), start, offsets.getInt(i) - start, Charsets.UTF_8));
+    }
+    return strings;
+  }
+
+  /**
+   * Returns the position of a field of a table, or 0 if the field is absent.
+   */
+  private static int field(ByteBuffer bb, int table, int index) {
+    int vtable = table - bb.getInt(table);
+    int entry = 4 + 2 * index;
+    if (entry >= bb.getShort(vtable)) {
+      return 0;
+    }
+    int offset = bb.getShort(vtable + entry);
+    return offset == 0 ? 0 : table + offset;
+  }
+
+  private static int vectorLength(ByteBuffer bb, int vectorField) {
+    return bb.getInt(indirect(bb, vectorField));
+  }
+
+  private static int indirect(ByteBuffer bb, int position) {
+    return position + bb.getInt(position);
+  }
+}
@@ -0,0 +1,62 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Supplier;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class BatchSizerTest extends TestCase {
+  public BatchSizerTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(BatchSizerTest.class);
+  }
+
+  private static final FieldDescriptor FRESH =
+      GroceryStore.getDescriptor().findFieldByName("fresh_produce");
+  private static final FieldDescriptor FROZEN =
+      GroceryStore.getDescriptor().findFieldByName("frozen_produce");
+
+  public void testFixed() {
+    BatchSizer sizer = BatchSizer.fixed(10);
+    sizer.recordParsed(FRESH, 10, 1000000);
+    sizer.recordReceived(FRESH, 10, 1000000000L);
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(10);
+  }
+
+  /**
+   * Grows the batches from the minimum, up to the sizes that fit the heap and the
+   * target time of each table.
+   */
+  public void testAdaptive() {
+    final long[] heap = {BatchSizer.HEAP_FRACTION * BatchSizer.HEAP_BYTES_PER_TEXT_BYTE
+        * 16 * 1000L};
+    BatchSizer sizer = new BatchSizer(100, 10000, 1000, new Supplier<Long>() {
+        public Long get() {
+          return heap[0];
+        }
+      });
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(100);
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(200);
+    // 16 bytes of text per record fits 1000 records in the heap.
+    sizer.recordParsed(FRESH, 100, 1600);
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(400);
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(800);
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(1000);
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(1000);
+    // 2 ms per record takes 500 records per second.
+    sizer.recordReceived(FRESH, 1000, 2000000000L);
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(500);
+    heap[0] = 0;
+    assertThat(sizer.getBatchSize(FRESH)).isEqualTo(100);
+
+    // Tables are sized separately.
+    assertThat(sizer.getBatchSize(FROZEN)).isEqualTo(100);
+    assertThat(sizer.getBatchSize(FROZEN)).isEqualTo(200);
+  }
+}
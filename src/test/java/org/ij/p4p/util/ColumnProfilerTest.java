@@ -0,0 +1,85 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.List;
+
+public class ColumnProfilerTest extends TestCase {
+  public ColumnProfilerTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(ColumnProfilerTest.class);
+  }
+
+  /**
+   * Profiles the grocery data plus many produce records with distinct IDs, and stores
+   * the statistics in the database.
+   */
+  public void testProfile() throws Exception {
+    ColumnProfiler<GroceryStore> profiler = new ColumnProfiler<GroceryStore>(
+        GroceryStore.getDescriptor(),
+        new Receiver<GroceryStore>() {
+          public void receive(GroceryStore batch) {
+          }
+        });
+    profiler.receive(SqProtoTest.getGroceryData());
+    GroceryStore.Builder b = GroceryStore.newBuilder();
+    for (int i = 0; i < 100000; ++i) {
+      b.addFreshProduceBuilder()
+          .setProduceId(1000 + i)
+          .setDescription(i % 3 == 0 ? "Gala" : "Fuji");
+    }
+    profiler.receive(b.build());
+    SqMetadata metadata = profiler.getMetadata();
+
+    SqColumnStats id = getStats(metadata, "fresh_produce", "produce_id");
+    assertThat(id.getRecordCount()).isEqualTo(100002L);
+    assertThat(id.getNullCount()).isEqualTo(0L);
+    assertThat(id.getMinInteger()).isEqualTo(1L);
+    assertThat(id.getMaxInteger()).isEqualTo(100999L);
+    assertThat(Math.abs(id.getDistinctEstimate() - 100002) < 5000).isTrue();
+
+    SqColumnStats price = getStats(metadata, "fresh_produce", "retail_price");
+    assertThat(price.getNullCount()).isEqualTo(100000L);
+    assertThat(price.getMinReal()).isEqualTo(2.99);
+    assertThat(price.getMaxReal()).isEqualTo(3.99);
+    assertThat(price.getDistinctEstimate()).isEqualTo(2L);
+
+    SqColumnStats description = getStats(metadata, "fresh_produce", "description");
+    assertThat(description.getMinText()).isEqualTo("Florida Navel");
+    assertThat(description.getMaxText()).isEqualTo("Honey Crisp");
+    List<SqTopValue> top = Lists.newArrayList();
+    for (SqTopValue value : metadata.getColumnTopValuesList()) {
+      if (value.getColumnName().equals("description")
+          && value.getTableName().equals("fresh_produce")) {
+        top.add(value);
+      }
+    }
+    assertThat(top.size()).isEqualTo(4);
+    assertThat(top.get(0).getValue()).isEqualTo("Fuji");
+    assertThat(top.get(0).getValueCount()).isEqualTo(66666L);
+    assertThat(top.get(1).getValue()).isEqualTo("Gala");
+    assertThat(top.get(1).getValueCount()).isEqualTo(33334L);
+
+    SqLite sqLite = SqLite.connectTemp();
+    SqProto.writeMetadata(sqLite, metadata);
+    SqProto<SqMetadata> sqProto = SqProto.create(sqLite, SqMetadata.getDefaultInstance());
+    assertThat(sqProto.snapshot()).isEqualTo(metadata);
+  }
+
+  private static SqColumnStats getStats(SqMetadata metadata, String table, String column) {
+    for (SqColumnStats stats : metadata.getColumnStatsList()) {
+      if (stats.getTableName().equals(table) && stats.getColumnName().equals(column)) {
+        return stats;
+      }
+    }
+    throw new AssertionError(table + "." + column);
+  }
+}
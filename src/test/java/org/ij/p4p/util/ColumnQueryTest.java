@@ -0,0 +1,107 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.ij.p4p.util.ColumnQuery.column;
+import static org.ij.p4p.util.ColumnQuery.joined;
+
+import com.google.common.collect.ImmutableList;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+public class ColumnQueryTest extends TestCase {
+  public ColumnQueryTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(ColumnQueryTest.class);
+  }
+
+  /**
+   * Runs a join and group-by over enough rows to split across tasks, and compares
+   * the results with the same query in SQLite.
+   */
+  public void testJoinGroupBy() throws Exception {
+    GroceryStore.Builder b = GroceryStore.newBuilder();
+    for (int i = 0; i < 3 * ColumnQuery.SPLIT_ROW_COUNT; ++i) {
+      Produce.Builder fresh = b.addFreshProduceBuilder()
+          .setProduceId(i % 1000)
+          .setDescription(String.format("20%02d%04d", i % 15, i % 365));
+      if (i % 7 != 0) {
+        fresh.setRetailPrice(i % 13 * 0.25);
+      }
+    }
+    // Some keys have two frozen produce records, and some have none.
+    for (int i = 0; i < 1200; ++i) {
+      Produce.Builder frozen = b.addFrozenProduceBuilder()
+          .setProduceId(i % 900)
+          .setExpirationDays(i % 11);
+      if (i % 5 != 0) {
+        frozen.setDescription(i % 3 == 0 ? "AZ" : i % 3 == 1 ? "CA" : "TX");
+      }
+    }
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connectTemp(), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(b.build());
+    ColumnStore store = ColumnStore.load(sqProto);
+    assertThat(store.getTable("fresh_produce").getRowCount())
+        .isEqualTo(3 * ColumnQuery.SPLIT_ROW_COUNT);
+    assertThat(store.getTable("frozen_produce").getIndex("produce_id").getKeyCount())
+        .isEqualTo(900);
+
+    List<ColumnQuery.Group> groups = new ColumnQuery(store.getTable("fresh_produce"))
+        .join("produce_id", store.getTable("frozen_produce"), "produce_id")
+        .whereGreaterThan(column("retail_price"), 1)
+        .whereIn(joined("description"), ImmutableList.of("AZ", "CA"))
+        .wherePrefixBetween(column("description"), 4, "2002", "2011")
+        .groupByPrefix(column("description"), 4)
+        .groupBy(joined("description"))
+        .sum(column("retail_price"))
+        .sumProduct(column("retail_price"), joined("expiration_days"), 0.01)
+        .execute();
+
+    Statement s = sqProto.sqLite.connection.createStatement();
+    ResultSet rs = s.executeQuery(
+        "select substr(a.description, 1, 4) as YR, b.description as ST, count(*), " +
+        "sum(a.retail_price), sum(a.retail_price * b.expiration_days * 0.01) " +
+        "from fresh_produce a join frozen_produce b on a.produce_id = b.produce_id " +
+        "where a.retail_price > 1 and b.description in ('AZ', 'CA') and " +
+        "YR >= '2002' and YR <= '2011' " +
+        "group by YR, ST order by YR, ST");
+    int i = 0;
+    while (rs.next()) {
+      ColumnQuery.Group g = groups.get(i++);
+      assertThat(g.getKeys()).isEqualTo(ImmutableList.of(rs.getString(1), rs.getString(2)));
+      assertThat(g.getRowCount()).isEqualTo(rs.getLong(3));
+      assertEquals(rs.getDouble(4), g.getSum(0), 1e-6);
+      assertEquals(rs.getDouble(5), g.getSum(1), 1e-6);
+    }
+    s.close();
+    assertThat(i).isEqualTo(16);
+    assertThat(groups.size()).isEqualTo(i);
+  }
+
+  /**
+   * Groups on a column with null values, which sort first.
+   */
+  public void testNullGroup() throws Exception {
+    ColumnStore.Builder<GroceryStore> b =
+        new ColumnStore.Builder<GroceryStore>(GroceryStore.getDefaultInstance());
+    b.receive(SqProtoTest.getGroceryData());
+    List<ColumnQuery.Group> groups = new ColumnQuery(b.build().getTable("frozen_produce"))
+        .groupBy(column("description"))
+        .sum(column("expiration_days"))
+        .execute();
+    assertThat(groups.size()).isEqualTo(3);
+    assertThat(groups.get(0).getKeys().get(0)).isNull();
+    assertThat(groups.get(0).getSum(0)).isEqualTo(0.0);
+    assertThat(groups.get(2).getKeys()).isEqualTo(ImmutableList.of("Organic Carrots"));
+    assertThat(groups.get(2).getSum(0)).isEqualTo(10.0);
+  }
+}
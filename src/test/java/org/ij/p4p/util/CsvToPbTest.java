@@ -7,7 +7,11 @@ import org.ij.p4p.cats.CatsRawSnapshot;
 import org.ij.p4p.cats.RawAsset;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
 import com.google.protobuf.TextFormat;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVRecord;
@@ -16,8 +20,11 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.FileNotFoundException;
 import java.io.InputStreamReader;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 
 public class CsvToPbTest extends TestCase {
@@ -57,6 +64,80 @@ public class CsvToPbTest extends TestCase {
     }
   }
 
+  /**
+   * Returns the records in batches of one table, in a list that's reused.
+   */
+  public void testParseBatches() throws Exception {
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    CatsRawSnapshot expected = readSnapshot("cats_raw_snapshot.pbtxt");
+    final CatsRawSnapshot.Builder b = CatsRawSnapshot.newBuilder();
+    final List<Integer> batchSizes = Lists.newArrayList();
+    final Set<List<Message>> batchLists = Sets.newIdentityHashSet();
+    CsvToPb.parseTablesFromZip(
+        Tests.toZipInputStream(entries),
+        CSVFormat.EXCEL,
+        CatsRawSnapshot.getDefaultInstance(),
+        BatchSizer.fixed(2),
+        new Receiver<CsvToPb.TableRecord>() {
+          public void receive(CsvToPb.TableRecord inconsistent) {
+            fail(inconsistent.toString());
+          }
+        },
+        new BatchReceiver<Message>() {
+          public void receive(FieldDescriptor table, List<Message> records) {
+            batchSizes.add(records.size());
+            batchLists.add(records);
+            for (Message record : records) {
+              b.addRepeatedField(table, record);
+            }
+          }
+        });
+    assertThat(b.build()).isEqualTo(expected);
+    assertThat(batchLists.size()).isEqualTo(1);
+    int assetCount = expected.getASSETTCount();
+    int sharingCount = expected.getDAG71TCount();
+    assertThat(batchSizes.size()).isEqualTo((assetCount + 1) / 2 + (sharingCount + 1) / 2);
+    assertThat(batchSizes.get(0)).isEqualTo(Math.min(assetCount, 2));
+  }
+
+  /**
+   * Reads the second table from the Zip one record at a time, and stops early.
+   */
+  public void testIterateTable() throws Exception {
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    CatsRawSnapshot expected = readSnapshot("cats_raw_snapshot.pbtxt");
+    CloseableIterator<Message> records = CsvToPb.iterateTableFromZip(
+        Tests.toZipInputStream(entries),
+        CSVFormat.EXCEL,
+        CatsRawSnapshot.getDefaultInstance(),
+        "DAG71_T");
+    try {
+      assertThat(records.hasNext()).isTrue();
+      assertThat(records.next()).isEqualTo(expected.getDAG71T(0));
+    } finally {
+      records.close();
+    }
+    try {
+      CsvToPb.iterateTableFromZip(
+          Tests.toZipInputStream(entries),
+          CSVFormat.EXCEL,
+          CatsRawSnapshot.getDefaultInstance(),
+          "ASSET_T").close();
+      CsvToPb.iterateTableFromZip(
+          Tests.toZipInputStream(ImmutableMap.<ZipEntry, ByteString>of()),
+          CSVFormat.EXCEL,
+          CatsRawSnapshot.getDefaultInstance(),
+          "ASSET_T");
+      fail("Expected an exception");
+    } catch (FileNotFoundException e) {
+      assertThat(e.getMessage()).isEqualTo("No Zip entry for table: ASSET_T");
+    }
+  }
+
   public static CatsRawSnapshot readSnapshot(String path) throws Exception {
     CatsRawSnapshot.Builder b = CatsRawSnapshot.newBuilder();
     TextFormat.merge(Tests.openTextResource(path), b);
@@ -0,0 +1,156 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.ij.p4p.Tests;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor.Type;
+import com.google.protobuf.DynamicMessage;
+import com.google.protobuf.Message;
+import org.apache.commons.csv.CSVFormat;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+public class InferredSchemaTest extends TestCase {
+  public InferredSchemaTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(InferredSchemaTest.class);
+  }
+
+  private static final Map<ZipEntry, ByteString> ENTRIES = ImmutableMap.of(
+      new ZipEntry("SALES_T.txt"), ByteString.copyFromUtf8(
+          "\"ID\",\"ST_CD\",\"AMT\",\"PAID_FLG\",\"NOTE\",\"Unit Price\",\"EMPTY\"\n"
+          + "1,\"02\",\"+000013888939.00\",\"Y\",\"first\",2.5,\n"
+          + "2,\"10\",\"-12.10\",\"N\",\"7\",3,\n"
+          + "3,\"11\",\"5\",\"N\",\"\",4x,\n"),
+      new ZipEntry("2010 Codes.csv"), ByteString.copyFromUtf8("\"CD\"\n"));
+
+  /**
+   * Infers the column types from the first two records, and loads the records, with
+   * a value in the third that doesn't parse.
+   */
+  public void testInferAndLoad() throws Exception {
+    InferredSchema schema = InferredSchema.infer(
+        Tests.toZipInputStream(ENTRIES), CSVFormat.EXCEL, "Archive", 2);
+    Descriptor database = schema.getDescriptor();
+    assertThat(database.getFields().size()).isEqualTo(2);
+    FieldDescriptor sales = database.findFieldByName("sales_t");
+    assertThat(database.findFieldByName("c_2010_codes")).isNotNull();
+    List<Type> types = Lists.newArrayList();
+    for (FieldDescriptor field : sales.getMessageType().getFields()) {
+      types.add(field.getType());
+    }
+    assertThat(types).isEqualTo(ImmutableList.of(Type.INT64, Type.STRING, Type.DOUBLE,
+        Type.BOOL, Type.STRING, Type.DOUBLE, Type.STRING));
+    assertThat(sales.getMessageType().getFields().get(5).getName()).isEqualTo("unit_price");
+
+    final List<InferredSchema.InvalidValue> invalid = Lists.newArrayList();
+    final SqProto<DynamicMessage> sqProto =
+        SqProto.create(SqLite.connectInMem(), schema.getTemplate());
+    sqProto.dropAndCreateTables();
+    schema.parseTablesFromZip(Tests.toZipInputStream(ENTRIES), CSVFormat.EXCEL, 2,
+        new Receiver<CsvToPb.TableRecord>() {
+          public void receive(CsvToPb.TableRecord inconsistent) {
+            fail(inconsistent.toString());
+          }
+        },
+        new Receiver<InferredSchema.InvalidValue>() {
+          public void receive(InferredSchema.InvalidValue value) {
+            invalid.add(value);
+          }
+        },
+        new BatchReceiver<Message>() {
+          public void receive(FieldDescriptor table, List<Message> records) {
+            try {
+              sqProto.insertRecords(table, records);
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    assertThat(invalid.size()).isEqualTo(1);
+    assertThat(invalid.get(0).toString())
+        .isEqualTo("table:sales_t record:4 field:unit_price value:4x");
+
+    List<?> records = (List<?>) sqProto.snapshot().getField(sales);
+    assertThat(records.size()).isEqualTo(3);
+    DynamicMessage first = (DynamicMessage) records.get(0);
+    List<FieldDescriptor> fields = sales.getMessageType().getFields();
+    assertThat(first.getField(fields.get(0))).isEqualTo(1L);
+    assertThat(first.getField(fields.get(1))).isEqualTo("02");
+    assertThat(first.getField(fields.get(2))).isEqualTo(13888939.0);
+    assertThat(first.getField(fields.get(3))).isEqualTo(true);
+    assertThat(first.hasField(fields.get(6))).isFalse();
+    DynamicMessage third = (DynamicMessage) records.get(2);
+    assertThat(third.hasField(fields.get(4))).isFalse();
+    assertThat(third.hasField(fields.get(5))).isFalse();
+  }
+
+  public void testToIdentifier() {
+    assertThat(InferredSchema.toIdentifier("ASSET_T")).isEqualTo("asset_t");
+    assertThat(InferredSchema.toIdentifier(" Unit  Price ($) ")).isEqualTo("unit_price");
+    assertThat(InferredSchema.toIdentifier("")).isEqualTo("c_");
+    assertThat(InferredSchema.toIdentifier("DESC")).isEqualTo("c_desc");
+    assertThat(InferredSchema.toIdentifier("sqlite_stat1")).isEqualTo("c_sqlite_stat1");
+  }
+
+  /**
+   * Loads a table and columns named after SQL keywords.
+   */
+  public void testKeywordNames() throws Exception {
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ORDER.txt"), ByteString.copyFromUtf8(
+            "\"GROUP\",\"DESC\",\"Select\"\n\"A\",\"first\",1\n"));
+    InferredSchema schema = InferredSchema.infer(
+        Tests.toZipInputStream(entries), CSVFormat.EXCEL, "Archive", 2);
+    FieldDescriptor order = schema.getDescriptor().findFieldByName("c_order");
+    List<String> names = Lists.newArrayList();
+    for (FieldDescriptor field : order.getMessageType().getFields()) {
+      names.add(field.getName());
+    }
+    assertThat(names).isEqualTo(ImmutableList.of("c_group", "c_desc", "c_select"));
+
+    final SqProto<DynamicMessage> sqProto =
+        SqProto.create(SqLite.connectInMem(), schema.getTemplate());
+    sqProto.dropAndCreateTables();
+    schema.parseTablesFromZip(Tests.toZipInputStream(entries), CSVFormat.EXCEL, 2,
+        new Receiver<CsvToPb.TableRecord>() {
+          public void receive(CsvToPb.TableRecord inconsistent) {
+            fail(inconsistent.toString());
+          }
+        },
+        new Receiver<InferredSchema.InvalidValue>() {
+          public void receive(InferredSchema.InvalidValue value) {
+            fail(value.toString());
+          }
+        },
+        new BatchReceiver<Message>() {
+          public void receive(FieldDescriptor table, List<Message> records) {
+            try {
+              sqProto.insertRecords(table, records);
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    List<?> records = (List<?>) sqProto.snapshot().getField(order);
+    assertThat(records.size()).isEqualTo(1);
+    DynamicMessage record = (DynamicMessage) records.get(0);
+    assertThat(record.getField(order.getMessageType().findFieldByName("c_desc")))
+        .isEqualTo("first");
+  }
+}
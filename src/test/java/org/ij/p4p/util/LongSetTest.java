@@ -0,0 +1,44 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+public class LongSetTest extends TestCase {
+  public LongSetTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(LongSetTest.class);
+  }
+
+  /**
+   * Adds values in and out of the bitmap range, and compares with a HashSet.
+   */
+  public void testAddAndContains() {
+    LongSet set = new LongSet();
+    Set<Long> expected = new HashSet<Long>();
+    Random random = new Random(7);
+    long[] edges = {0, 63, 64, 65535, 65536, 0xFFFFFFFFL, 1L << 32, -1, Long.MIN_VALUE};
+    for (long value : edges) {
+      assertThat(set.add(value)).isEqualTo(expected.add(value));
+    }
+    for (int i = 0; i < 100000; ++i) {
+      long value = i % 2 == 0 ? random.nextInt(2000000) : random.nextLong();
+      assertThat(set.add(value)).isEqualTo(expected.add(value));
+    }
+    assertThat(set.size()).isEqualTo(expected.size());
+    for (long value : expected) {
+      assertThat(set.contains(value)).isTrue();
+    }
+    assertThat(set.contains(2000001)).isFalse();
+    assertThat(set.contains(-2)).isFalse();
+    assertThat(set.add(0)).isFalse();
+  }
+}
@@ -0,0 +1,120 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+public class PbShardsTest extends TestCase {
+  public PbShardsTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(PbShardsTest.class);
+  }
+
+  /**
+   * Snapshots a database in small batches to a single shard, and reads it back.
+   */
+  public void testRoundTrip() throws Exception {
+    GroceryStore expected = SqProtoTest.getGroceryData();
+    File directory = Files.createTempDir();
+    PbShards.Writer<GroceryStore> writer = PbShards.newWriter(
+        directory, 1, false, GroceryStore.getDefaultInstance());
+    populate(expected).snapshot(2, writer);
+    writer.close();
+
+    PbShardIndex index = PbShards.readIndex(directory);
+    assertThat(index.getShardCount()).isEqualTo(1);
+    assertThat(index.getShard(0).getRecordCount()).isEqualTo(5L);
+    assertThat(index.getShard(0).getBlockCount()).isEqualTo(3);
+    assertThat(index.getShard(0).getBlock(0).getOffset()).isEqualTo(0L);
+
+    final GroceryStore.Builder b = GroceryStore.newBuilder();
+    PbShards.read(directory, GroceryStore.getDefaultInstance(), new Receiver<GroceryStore>() {
+        public void receive(GroceryStore batch) {
+          b.mergeFrom(batch);
+        }
+      });
+    assertThat(b.build()).isEqualTo(expected);
+  }
+
+  /**
+   * Writes compressed shards, and reads them back in parallel.
+   */
+  public void testParallelRead() throws Exception {
+    GroceryStore expected = SqProtoTest.getGroceryData();
+    File directory = Files.createTempDir();
+    PbShards.Writer<GroceryStore> writer = PbShards.newWriter(
+        directory, 3, true, GroceryStore.getDefaultInstance());
+    populate(expected).snapshot(1, writer);
+    writer.close();
+    assertThat(PbShards.readIndex(directory).getShard(2).getFileName())
+        .isEqualTo("shard-00002-of-00003.pb.gz");
+
+    final Set<Produce> records = Sets.newConcurrentHashSet();
+    PbShards.readParallel(directory, GroceryStore.getDefaultInstance(), 3,
+        new Receiver<GroceryStore>() {
+          public void receive(GroceryStore batch) {
+            records.addAll(batch.getFreshProduceList());
+            records.addAll(batch.getFrozenProduceList());
+          }
+        });
+    assertThat(records).isEqualTo(ImmutableSet.copyOf(Iterables.concat(
+        expected.getFreshProduceList(), expected.getFrozenProduceList())));
+  }
+
+  /**
+   * Decompresses a batch of a compressed shard from its offset in the index.
+   */
+  public void testSeekCompressed() throws Exception {
+    File directory = Files.createTempDir();
+    PbShards.Writer<GroceryStore> writer = PbShards.newWriter(
+        directory, 3, true, GroceryStore.getDefaultInstance());
+    populate(SqProtoTest.getGroceryData()).snapshot(1, writer);
+    writer.close();
+    PbShard shard = PbShards.readIndex(directory).getShard(0);
+    File file = new File(directory, shard.getFileName());
+    assertThat(shard.getByteCount()).isEqualTo(file.length());
+    assertThat(shard.getBlockCount()).isEqualTo(2);
+    InputStream in = new FileInputStream(file);
+    ByteStreams.skipFully(in, shard.getBlock(1).getOffset());
+    GroceryStore batch = GroceryStore.parseDelimitedFrom(new GZIPInputStream(in));
+    in.close();
+    assertThat(batch.getFrozenProduceCount()).isEqualTo(shard.getBlock(1).getRecordCount());
+    assertThat(batch.getFrozenProduce(0).getProduceId()).isEqualTo(4L);
+  }
+
+  /**
+   * Aborts a writer, which leaves no index to read.
+   */
+  public void testAbort() throws Exception {
+    File directory = Files.createTempDir();
+    PbShards.Writer<GroceryStore> writer = PbShards.newWriter(
+        directory, 1, true, GroceryStore.getDefaultInstance());
+    writer.receive(SqProtoTest.getGroceryData());
+    writer.abort();
+    assertThat(new File(directory, PbShards.INDEX_FILE_NAME).exists()).isFalse();
+  }
+
+  private static SqProto<GroceryStore> populate(GroceryStore data) throws Exception {
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connectTemp(), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(data);
+    return sqProto;
+  }
+}
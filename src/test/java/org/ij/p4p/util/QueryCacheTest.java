@@ -0,0 +1,90 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.util.List;
+
+public class QueryCacheTest extends TestCase {
+  public QueryCacheTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(QueryCacheTest.class);
+  }
+
+  public void testNormalize() {
+    assertThat(QueryCache.normalize("\n select  *\n  from t\twhere a = 'x  y' ;\n"))
+        .isEqualTo("select * from t where a = 'x  y'");
+  }
+
+  /**
+   * Reads cached results until the data is reimported with a new generation.
+   */
+  public void testGenerations() throws Exception {
+    File databaseFile = new File(Files.createTempDir(), "grocery.db");
+    GroceryStore data = SqProtoTest.getGroceryData();
+    SqProto<GroceryStore> writer = SqProto.create(
+        SqLite.connect(databaseFile.getPath()), GroceryStore.getDefaultInstance());
+    writer.dropAndCreateTables();
+    writer.insertSnapshot(data);
+    writer.sqLite.bumpGeneration();
+    writer.sqLite.connection.commit();
+
+    SqLite reader = SqLite.connectReadOnly(databaseFile.getPath());
+    assertThat(reader.getGeneration()).isEqualTo(1);
+    QueryCache cache = QueryCache.create(1 << 20);
+    String query = "select * from fresh_produce where produce_id >= ? order by produce_id";
+    List<Produce> produce = cache.readQuery(
+        reader, query, ImmutableList.of(1), Produce.getDefaultInstance());
+    assertThat(produce).isEqualTo(data.getFreshProduceList());
+    assertThat(cache.readQuery(reader, query.replace(" ", "\n  "), ImmutableList.of(1),
+        Produce.getDefaultInstance())).isSameAs(produce);
+    assertThat(cache.stats().hitCount()).isEqualTo(1L);
+    assertThat(cache.readQuery(reader, query, ImmutableList.of(2),
+        Produce.getDefaultInstance())).isEqualTo(data.getFreshProduceList().subList(1, 2));
+    assertThat(cache.size()).isEqualTo(2L);
+
+    // Changes aren't seen until the generation changes.
+    writer.insertSnapshot(GroceryStore.newBuilder()
+        .addFreshProduce(Produce.newBuilder().setProduceId(3)).build());
+    writer.sqLite.connection.commit();
+    assertThat(cache.readQuery(reader, query, ImmutableList.of(1),
+        Produce.getDefaultInstance())).isSameAs(produce);
+    writer.sqLite.bumpGeneration();
+    writer.sqLite.connection.commit();
+    assertThat(cache.readQuery(reader, query, ImmutableList.of(1),
+        Produce.getDefaultInstance()).size()).isEqualTo(3);
+    assertThat(cache.size()).isEqualTo(1L);
+  }
+
+  /**
+   * Evicts the least recently used results to stay within the size.
+   */
+  public void testEviction() throws Exception {
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connectInMem(), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(SqProtoTest.getGroceryData());
+    // Room for about two of the results.
+    QueryCache cache = QueryCache.create(250);
+    String query = "select * from fresh_produce where produce_id = ?";
+    for (int id : new int[] {1, 2, 1, 3}) {
+      cache.readQuery(sqProto.sqLite, query, ImmutableList.of(id), Produce.getDefaultInstance());
+    }
+    assertThat(cache.stats().hitCount()).isEqualTo(1L);
+    assertThat(cache.stats().evictionCount()).isEqualTo(1L);
+    // The result for 2 was least recently used.
+    cache.readQuery(sqProto.sqLite, query, ImmutableList.of(1), Produce.getDefaultInstance());
+    assertThat(cache.stats().hitCount()).isEqualTo(2L);
+    cache.readQuery(sqProto.sqLite, query, ImmutableList.of(2), Produce.getDefaultInstance());
+    assertThat(cache.stats().missCount()).isEqualTo(4L);
+  }
+}
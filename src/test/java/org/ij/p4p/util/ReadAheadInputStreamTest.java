@@ -0,0 +1,85 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.io.ByteStreams;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+public class ReadAheadInputStreamTest extends TestCase {
+  public ReadAheadInputStreamTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(ReadAheadInputStreamTest.class);
+  }
+
+  /**
+   * Reads data through buffers much smaller than the data, reusing the buffers for a
+   * second stream.
+   */
+  public void testRead() throws Exception {
+    byte[] data = new byte[100000];
+    new Random(47).nextBytes(data);
+    byte[][] buffers = new byte[3][1000];
+    InputStream source = new ByteArrayInputStream(data);
+    ReadAheadInputStream in = new ReadAheadInputStream(source, buffers);
+    byte[] start = new byte[10];
+    ByteStreams.readFully(in, start);
+    assertThat(in.read()).isEqualTo(data[10] & 0xff);
+    byte[] rest = ByteStreams.toByteArray(in);
+    assertThat(rest.length).isEqualTo(data.length - 11);
+    assertThat(rest[rest.length - 1]).isEqualTo(data[data.length - 1]);
+    assertThat(in.read()).isEqualTo(-1);
+    in.close();
+
+    in = new ReadAheadInputStream(new ByteArrayInputStream(data, 0, 5), buffers);
+    assertThat(ByteStreams.toByteArray(in)).isEqualTo(new byte[] {
+        data[0], data[1], data[2], data[3], data[4]});
+    in.close();
+  }
+
+  /**
+   * Stops reading ahead when closed early, leaving the rest of the source to read.
+   */
+  public void testCloseEarly() throws Exception {
+    byte[] data = new byte[100000];
+    InputStream source = new ByteArrayInputStream(data);
+    ReadAheadInputStream in = new ReadAheadInputStream(source, new byte[2][1000]);
+    assertThat(in.read()).isEqualTo(0);
+    in.close();
+    // At most the buffers were read ahead.
+    assertThat(source.available()).isAtLeast(data.length - 3000);
+    try {
+      in.read();
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  /**
+   * Passes read errors to the consumer.
+   */
+  public void testError() throws Exception {
+    InputStream failing = new InputStream() {
+        public int read() throws IOException {
+          throw new IOException("Corrupt entry");
+        }
+      };
+    ReadAheadInputStream in = new ReadAheadInputStream(failing, new byte[2][1000]);
+    try {
+      in.read();
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected.getMessage()).isEqualTo("Corrupt entry");
+    }
+    in.close();
+  }
+}
@@ -0,0 +1,115 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+
+public class SqCatalogTest extends TestCase {
+  public SqCatalogTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(SqCatalogTest.class);
+  }
+
+  /**
+   * Populates two snapshot partitions, queries across them through the catalog views,
+   * and then retires one of the snapshots.
+   */
+  public void testPartitions() throws Exception {
+    File directory = Files.createTempDir();
+    SqCatalog<GroceryStore> catalog = SqCatalog.create(
+        directory, GroceryStore.getDefaultInstance());
+    GroceryStore data = SqProtoTest.getGroceryData();
+    for (String snapshotId : ImmutableList.of("201405", "201406")) {
+      SqProto<GroceryStore> partition = catalog.openPartition(snapshotId);
+      partition.dropAndCreateTables();
+      partition.insertSnapshot(data);
+      partition.sqLite.connection.commit();
+      partition.sqLite.connection.close();
+    }
+    assertThat(catalog.getSnapshotIds()).isEqualTo(ImmutableList.of("201405", "201406"));
+
+    SqLite sqLite = catalog.attachAll();
+    Statement s = sqLite.connection.createStatement();
+    ResultSet rs = s.executeQuery(
+        "select snapshot_id, count(*) from frozen_produce group by snapshot_id");
+    assertThat(rs.next()).isTrue();
+    assertThat(rs.getString(1)).isEqualTo("201405");
+    assertThat(rs.getInt(2)).isEqualTo(data.getFrozenProduceCount());
+    assertThat(rs.next()).isTrue();
+    assertThat(rs.getString(1)).isEqualTo("201406");
+    assertThat(rs.getInt(2)).isEqualTo(data.getFrozenProduceCount());
+    assertThat(rs.next()).isFalse();
+    // Queries scoped to a snapshot can reference its alias directly.
+    rs = s.executeQuery("select count(*) from s_201406.fresh_produce");
+    assertThat(rs.getInt(1)).isEqualTo(data.getFreshProduceCount());
+    s.close();
+    sqLite.connection.close();
+
+    assertThat(catalog.dropPartition("201405")).isTrue();
+    assertThat(catalog.dropPartition("201405")).isFalse();
+    assertThat(catalog.getSnapshotIds()).isEqualTo(ImmutableList.of("201406"));
+  }
+
+  /**
+   * Unions a partition with an earlier schema, which has fewer columns in another
+   * order and lacks a table, with a current partition.
+   */
+  public void testEarlierSchemas() throws Exception {
+    File directory = Files.createTempDir();
+    SqCatalog<GroceryStore> catalog = SqCatalog.create(
+        directory, GroceryStore.getDefaultInstance());
+    SqProto<GroceryStore> earlier = catalog.openPartition("201405");
+    Statement s = earlier.sqLite.connection.createStatement();
+    s.executeUpdate("create table fresh_produce(description text, produce_id int)");
+    s.executeUpdate("insert into fresh_produce values ('Gala', 9)");
+    s.close();
+    earlier.sqLite.connection.commit();
+    earlier.sqLite.connection.close();
+    GroceryStore data = SqProtoTest.getGroceryData();
+    SqProto<GroceryStore> current = catalog.openPartition("201406");
+    current.dropAndCreateTables();
+    current.insertSnapshot(data);
+    current.sqLite.connection.commit();
+    current.sqLite.connection.close();
+
+    SqLite sqLite = catalog.attachAll();
+    s = sqLite.connection.createStatement();
+    ResultSet rs = s.executeQuery("select snapshot_id, produce_id, description, "
+        + "retail_price from fresh_produce order by snapshot_id, produce_id");
+    List<String> rows = Lists.newArrayList();
+    while (rs.next()) {
+      rows.add(rs.getString(1) + "," + rs.getString(2) + "," + rs.getString(3) + ","
+          + rs.getString(4));
+    }
+    assertThat(rows).isEqualTo(ImmutableList.of("201405,9,Gala,null",
+        "201406,1,Honey Crisp,2.99", "201406,2,Florida Navel,3.99"));
+    rs = s.executeQuery("select distinct snapshot_id from frozen_produce");
+    assertThat(rs.next()).isTrue();
+    assertThat(rs.getString(1)).isEqualTo("201406");
+    assertThat(rs.next()).isFalse();
+    s.close();
+    sqLite.connection.close();
+
+    // The view of a table that no partition has is empty.
+    assertThat(catalog.dropPartition("201406")).isTrue();
+    sqLite = catalog.attachAll();
+    s = sqLite.connection.createStatement();
+    rs = s.executeQuery("select count(*) from frozen_produce");
+    assertThat(rs.getInt(1)).isEqualTo(0);
+    s.close();
+    sqLite.connection.close();
+  }
+}
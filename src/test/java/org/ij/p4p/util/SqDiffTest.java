@@ -0,0 +1,140 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.List;
+import java.util.Map;
+
+public class SqDiffTest extends TestCase {
+  private static final Map<String, List<String>> KEYS = ImmutableMap.<String, List<String>>of(
+      "fresh_produce", ImmutableList.of("produce_id"),
+      "frozen_produce", ImmutableList.of("produce_id"));
+
+  public SqDiffTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(SqDiffTest.class);
+  }
+
+  /**
+   * Compares two versions of the grocery data, sorting in tiny batches so that the
+   * records are spilled to disk.
+   */
+  public void testDiffExternalSort() throws Exception {
+    assertThat(diff(false)).isEqualTo(getExpected());
+  }
+
+  /**
+   * Compares two versions of the grocery data, reading in key order via indexes.
+   */
+  public void testDiffIndexed() throws Exception {
+    assertThat(diff(true)).isEqualTo(getExpected());
+  }
+
+  /**
+   * Finds no differences between tables with the same records, including records
+   * with the same key, stored in different orders.
+   */
+  public void testDuplicateKeys() throws Exception {
+    for (boolean indexed : new boolean[] {false, true}) {
+      GroceryStore data = SqProtoTest.getGroceryData().toBuilder()
+          .addFrozenProduce(Produce.newBuilder().setProduceId(7).setDescription("Peas"))
+          .addFrozenProduce(Produce.newBuilder().setProduceId(7).setDescription("Corn"))
+          .build();
+      GroceryStore reordered = data.toBuilder()
+          .clearFrozenProduce()
+          .addAllFrozenProduce(Lists.reverse(data.getFrozenProduceList()))
+          .build();
+      final List<SqRecordDiff> diffs = Lists.newArrayList();
+      SqDiff.create(populate(data, indexed), populate(reordered, indexed), KEYS, 1, null)
+          .diff(new Receiver<SqRecordDiff>() {
+            public void receive(SqRecordDiff diff) {
+              diffs.add(diff);
+            }
+          });
+      assertThat(diffs).isEmpty();
+    }
+  }
+
+  public void testExternalSorter() throws Exception {
+    ExternalSorter<Produce> sorter = new ExternalSorter<Produce>(
+        Produce.getDefaultInstance(),
+        new SqDiff.KeyComparator(ImmutableList.of(
+            Produce.getDescriptor().findFieldByName("produce_id"))),
+        2);
+    for (int id : new int[] {5, 3, 1, 4, 2}) {
+      sorter.receive(Produce.newBuilder().setProduceId(id).build());
+    }
+    assertThat(sorter.getRunCount()).isEqualTo(2);
+    List<Long> ids = Lists.newArrayList();
+    CloseableIterator<Produce> it = sorter.sorted();
+    while (it.hasNext()) {
+      ids.add(it.next().getProduceId());
+    }
+    it.close();
+    assertThat(ids).isEqualTo(ImmutableList.of(1L, 2L, 3L, 4L, 5L));
+  }
+
+  private static List<SqRecordDiff> diff(boolean indexed) throws Exception {
+    GroceryStore data = SqProtoTest.getGroceryData();
+    // Change the first fresh record, remove the second frozen record, and add another.
+    GroceryStore.Builder changed = data.toBuilder().clearFrozenProduce();
+    changed.getFreshProduceBuilder(0).setDescription("Gala").setRetailPrice(1.99);
+    changed.addFrozenProduce(data.getFrozenProduce(0));
+    changed.addFrozenProduce(data.getFrozenProduce(2));
+    changed.addFrozenProduceBuilder().setProduceId(6);
+    SqProto<GroceryStore> before = populate(data, indexed);
+    SqProto<GroceryStore> after = populate(changed.build(), indexed);
+    final List<SqRecordDiff> diffs = Lists.newArrayList();
+    SqDiff.create(before, after, KEYS, 1, null).diff(new Receiver<SqRecordDiff>() {
+        public void receive(SqRecordDiff diff) {
+          diffs.add(diff);
+        }
+      });
+    return diffs;
+  }
+
+  private static SqProto<GroceryStore> populate(GroceryStore data, boolean indexed)
+      throws Exception {
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connectTemp(), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(data);
+    if (indexed) {
+      sqProto.sqLite.connection.createStatement().executeUpdate(
+          "create index fresh_produce_id on fresh_produce(produce_id)");
+      sqProto.sqLite.connection.createStatement().executeUpdate(
+          "create index frozen_produce_id on frozen_produce(produce_id)");
+    }
+    assertThat(SqDiff.hasIndex(sqProto.sqLite, "fresh_produce", ImmutableList.of(
+        Produce.getDescriptor().findFieldByName("produce_id")))).isEqualTo(indexed);
+    return sqProto;
+  }
+
+  private static List<SqRecordDiff> getExpected() {
+    return ImmutableList.of(
+        SqRecordDiff.newBuilder()
+            .setType(SqRecordDiff.Type.CHANGED)
+            .setTableName("fresh_produce")
+            .setRecordKey("1")
+            .addFieldName("description")
+            .addFieldName("retail_price").build(),
+        SqRecordDiff.newBuilder()
+            .setType(SqRecordDiff.Type.REMOVED)
+            .setTableName("frozen_produce")
+            .setRecordKey("4").build(),
+        SqRecordDiff.newBuilder()
+            .setType(SqRecordDiff.Type.ADDED)
+            .setTableName("frozen_produce")
+            .setRecordKey("6").build());
+  }
+}
@@ -5,15 +5,19 @@ import static com.google.common.truth.Truth.assertThat;
 import org.ij.p4p.Tests;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
 import com.google.protobuf.TextFormat;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.Collections;
@@ -56,6 +60,110 @@ public class SqProtoTest extends TestCase {
     assertThat(sqProto.snapshot()).isEqualTo(expected);
   }
 
+  /**
+   * Dictionary encodes the description field, and verifies that the views restore
+   * the records, including when more records are inserted by another SqProto.
+   */
+  public void testEncodedFields() throws Exception {
+    GroceryStore expected = getGroceryData();
+    SqLite sqLite = SqLite.connectTemp();
+    ImmutableSet<FieldDescriptor> encodedFields = ImmutableSet.of(
+        Produce.getDescriptor().findFieldByName("description"));
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        sqLite, GroceryStore.getDefaultInstance(), encodedFields);
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(expected);
+    assertThat(sqLite.isView("fresh_produce")).isTrue();
+    assertThat(sqProto.snapshot()).isEqualTo(expected);
+
+    SqProto<GroceryStore> appender = SqProto.create(
+        sqLite, GroceryStore.getDefaultInstance(), encodedFields);
+    GroceryStore.Builder more = GroceryStore.newBuilder()
+        .addFreshProduce(expected.getFreshProduce(1));
+    more.addFreshProduceBuilder().setProduceId(6).setDescription("Fuji");
+    appender.insertSnapshot(more.build());
+    Statement s = sqLite.connection.createStatement();
+    ResultSet rs = s.executeQuery("select value from fresh_produce_description_dict order by code");
+    List<String> values = Lists.newArrayList();
+    while (rs.next()) {
+      values.add(rs.getString(1));
+    }
+    assertThat(values).isEqualTo(Lists.newArrayList("Honey Crisp", "Florida Navel", "Fuji"));
+    rs = s.executeQuery("select description from fresh_produce where produce_id = 6");
+    assertThat(rs.next()).isTrue();
+    assertThat(rs.getString(1)).isEqualTo("Fuji");
+    s.close();
+
+    // Recreating the tables without encoding replaces the views.
+    SqProto.create(sqLite, GroceryStore.getDefaultInstance()).dropAndCreateTables();
+    assertThat(sqLite.isView("fresh_produce")).isFalse();
+  }
+
+  /**
+   * Reads a table one record at a time, and a query that stops early.
+   */
+  public void testIterate() throws Exception {
+    GroceryStore expected = getGroceryData();
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connectTemp(), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(expected);
+    CloseableIterator<Message> records = sqProto.iterateTable(
+        GroceryStore.getDescriptor().findFieldByName("frozen_produce"));
+    List<Message> produce = Lists.newArrayList(records);
+    records.close();
+    assertThat(produce).isEqualTo(expected.getFrozenProduceList());
+
+    CloseableIterator<MarginCalculation> margins = SqProto.iterateQuery(sqProto.sqLite,
+        "select produce_id from frozen_produce order by produce_id desc",
+        MarginCalculation.getDefaultInstance());
+    try {
+      assertThat(margins.next().getProduceId()).isEqualTo(5);
+    } finally {
+      margins.close();
+    }
+  }
+
+  /**
+   * Migrates a database that lacks some columns and a table, and fills them in.
+   */
+  public void testMigrate() throws Exception {
+    GroceryStore expected = getGroceryData();
+    SqLite sqLite = SqLite.connectTemp();
+    sqLite.createTable("fresh_produce", ImmutableList.of("produce_id int", "type int"))
+        .executeUpdate();
+    PreparedStatement insert = sqLite.insertValues("fresh_produce", 2);
+    for (Produce produce : expected.getFreshProduceList()) {
+      insert.setLong(1, produce.getProduceId());
+      insert.setInt(2, produce.getType().getNumber());
+      insert.executeUpdate();
+    }
+    SqProto<GroceryStore> sqProto = SqProto.create(sqLite, GroceryStore.getDefaultInstance());
+    SqProto.Migration migration = sqProto.migrateTables();
+    FieldDescriptor freshProduce = GroceryStore.getDescriptor().findFieldByName("fresh_produce");
+    assertThat(migration.createdTables).containsExactly(
+        GroceryStore.getDescriptor().findFieldByName("frozen_produce"));
+    List<FieldDescriptor> addedFields = migration.addedFields.get(freshProduce);
+    assertThat(addedFields).isEqualTo(Produce.getDescriptor().getFields().subList(2, 8));
+
+    sqProto.updateFields(freshProduce,
+        ImmutableList.of(Produce.getDescriptor().findFieldByName("produce_id")),
+        addedFields, expected.getFreshProduceList());
+    sqProto.insertSnapshot(GroceryStore.newBuilder()
+        .addAllFrozenProduce(expected.getFrozenProduceList()).build());
+    assertThat(sqProto.snapshot()).isEqualTo(expected);
+    assertThat(sqProto.migrateTables().isEmpty()).isTrue();
+
+    // Encoding a field changes the tables, so it takes a reload.
+    try {
+      SqProto.create(sqLite, GroceryStore.getDefaultInstance(), ImmutableSet.of(
+          Produce.getDescriptor().findFieldByName("description"))).migrateTables();
+      fail();
+    } catch (IllegalStateException expectedException) {
+      assertThat(expectedException.getMessage()).contains("fresh_produce");
+    }
+  }
+
   /**
    * Populates a database, queries, and reads the results into a proto.
    */
@@ -0,0 +1,164 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+public class SqRollupsTest extends TestCase {
+  public SqRollupsTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(SqRollupsTest.class);
+  }
+
+  /**
+   * Sums the frozen produce prices by the type of the fresh produce with the same id,
+   * and the fresh produce prices overall.
+   */
+  private static final List<SqRollup> ROLLUPS = ImmutableList.of(
+      SqRollup.newBuilder()
+          .setRollupName("frozen_by_fresh_type")
+          .setTableName("frozen_produce")
+          .setParentTableName("fresh_produce")
+          .setParentKey("produce_id")
+          .setWhere("a.retail_price > 0")
+          .addGroupBy(SqRollupColumn.newBuilder()
+              .setColumnName("fresh_type").setExpression("b.type"))
+          .addSum(SqRollupColumn.newBuilder()
+              .setColumnName("frozen_price").setExpression("a.retail_price"))
+          .build(),
+      SqRollup.newBuilder()
+          .setRollupName("fresh_total")
+          .setTableName("fresh_produce")
+          .addSum(SqRollupColumn.newBuilder()
+              .setColumnName("fresh_price").setExpression("a.retail_price"))
+          .build());
+
+  /**
+   * Fills the rollups as batches are inserted, in either table order, and keeps them
+   * up to date as records are removed, matching the rollups rebuilt from the tables.
+   */
+  public void testIncremental() throws Exception {
+    GroceryStore data = SqProtoTest.getGroceryData();
+    GroceryStore fresh = GroceryStore.newBuilder()
+        .addAllFreshProduce(data.getFreshProduceList()).build();
+    GroceryStore frozen = GroceryStore.newBuilder()
+        .addAllFrozenProduce(data.getFrozenProduceList())
+        .addFrozenProduce(data.getFreshProduce(0).toBuilder().setRetailPrice(10))
+        .build();
+    List<String> expected = null;
+    for (List<GroceryStore> batches : ImmutableList.of(
+        ImmutableList.of(fresh, frozen), ImmutableList.of(frozen, fresh),
+        ImmutableList.of(fresh.toBuilder().mergeFrom(frozen).build()))) {
+      final SqProto<GroceryStore> sqProto = SqProto.create(
+          SqLite.connectInMem(), GroceryStore.getDefaultInstance());
+      sqProto.dropAndCreateTables();
+      SqRollups<GroceryStore> rollups = new SqRollups<GroceryStore>(sqProto, ROLLUPS,
+          new Receiver<GroceryStore>() {
+            public void receive(GroceryStore batch) {
+              try {
+                sqProto.insertSnapshot(batch);
+              } catch (SQLException e) {
+                throw new RuntimeException(e);
+              }
+            }
+          });
+      rollups.dropAndCreateTables();
+      for (GroceryStore batch : batches) {
+        rollups.receive(batch);
+      }
+      List<String> filled = readRollups(sqProto.sqLite);
+      rollups.rebuild();
+      assertThat(filled).isEqualTo(readRollups(sqProto.sqLite));
+      if (expected == null) {
+        expected = filled;
+        assertThat(filled).isNotEmpty();
+      }
+      assertThat(filled).isEqualTo(expected);
+
+      // Remove the fresh apple, which the frozen apple joins with.
+      FieldDescriptor freshProduce = GroceryStore.getDescriptor().findFieldByName("fresh_produce");
+      rollups.remove(freshProduce, ImmutableList.of(data.getFreshProduce(0)));
+      Statement s = sqProto.sqLite.connection.createStatement();
+      s.executeUpdate("delete from fresh_produce where produce_id = 1");
+      s.close();
+      filled = readRollups(sqProto.sqLite);
+      rollups.rebuild();
+      assertThat(filled).isEqualTo(readRollups(sqProto.sqLite));
+      assertThat(filled).isNotEqualTo(expected);
+    }
+  }
+
+  /**
+   * Explains the queries that the rollups run when both tables change, and verifies
+   * that the stored records are joined through the parent key indexes, rather than
+   * scanned or automatically indexed for each batch.
+   */
+  public void testJoinsUseIndexes() throws Exception {
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connectInMem(), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    SqRollups<GroceryStore> rollups = new SqRollups<GroceryStore>(sqProto, ROLLUPS,
+        new Receiver<GroceryStore>() {
+          public void receive(GroceryStore batch) {
+          }
+        });
+    rollups.dropAndCreateTables();
+    rollups.receive(SqProtoTest.getGroceryData());
+    FieldDescriptor fresh = GroceryStore.getDescriptor().findFieldByName("fresh_produce");
+    FieldDescriptor frozen = GroceryStore.getDescriptor().findFieldByName("frozen_produce");
+    List<String> sources =
+        rollups.getDeltaSources(ROLLUPS.get(0), ImmutableSet.of(fresh, frozen));
+    assertThat(sources).hasSize(3);
+    Statement s = sqProto.sqLite.connection.createStatement();
+    for (String from : sources) {
+      ResultSet rs = s.executeQuery(
+          "explain query plan " + SqRollups.getSumsQuery(ROLLUPS.get(0), from));
+      List<String> plan = Lists.newArrayList();
+      while (rs.next()) {
+        plan.add(rs.getString("detail"));
+      }
+      // The stored table of each join is searched by its parent key index.
+      if (from.startsWith("frozen_produce a ")) {
+        assertThat(plan.toString()).contains("SEARCH TABLE frozen_produce AS a USING INDEX");
+      } else if (from.contains(" join fresh_produce b ")) {
+        assertThat(plan.toString()).contains("SEARCH TABLE fresh_produce AS b USING INDEX");
+      }
+      assertThat(plan.toString()).doesNotContain("SCAN TABLE fresh_produce");
+      assertThat(plan.toString()).doesNotContain("SCAN TABLE frozen_produce");
+    }
+    s.close();
+  }
+
+  private static List<String> readRollups(SqLite sqLite) throws SQLException {
+    List<String> rows = Lists.newArrayList();
+    Statement s = sqLite.connection.createStatement();
+    for (String query : ImmutableList.of(
+        "select * from frozen_by_fresh_type order by fresh_type",
+        "select * from fresh_total")) {
+      ResultSet rs = s.executeQuery(query);
+      while (rs.next()) {
+        StringBuilder row = new StringBuilder();
+        for (int i = 1; i <= rs.getMetaData().getColumnCount(); ++i) {
+          row.append(rs.getString(i)).append(',');
+        }
+        rows.add(row.toString());
+      }
+    }
+    s.close();
+    return rows;
+  }
+}
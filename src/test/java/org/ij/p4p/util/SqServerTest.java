@@ -0,0 +1,98 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+public class SqServerTest extends TestCase {
+  public SqServerTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(SqServerTest.class);
+  }
+
+  /**
+   * Serves the grocery data, and runs named queries for rows and protos, with a
+   * cache, and an ad hoc query.
+   */
+  public void testServe() throws Exception {
+    File databaseFile = new File(Files.createTempDir(), "grocery.db");
+    GroceryStore expected = SqProtoTest.getGroceryData();
+    SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connect(databaseFile.getPath()), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    sqProto.insertSnapshot(expected);
+    sqProto.sqLite.connection.commit();
+
+    QueryCache cache = QueryCache.create(1 << 20);
+    SqServer server = SqServer.create(databaseFile, 2)
+        .addQuery("descriptions",
+            "select produce_id, description from fresh_produce where produce_id >= ?")
+        .addQuery("produce", "select * from fresh_produce order by produce_id",
+            Produce.getDefaultInstance())
+        .setCache(cache)
+        .allowSql();
+    server.start(0);
+    try {
+      String base = "http://127.0.0.1:" + server.getPort();
+      assertThat(getText(base + "/")).isEqualTo("descriptions\nproduce\n");
+      assertThat(getText(base + "/query/descriptions?arg=1"))
+          .isEqualTo("produce_id\tdescription\n1\tHoney Crisp\n2\tFlorida Navel\n");
+      assertThat(getText(base + "/query/descriptions?arg=2"))
+          .isEqualTo("produce_id\tdescription\n2\tFlorida Navel\n");
+      assertThat(getText(base + "/query/descriptions?arg=1"))
+          .isEqualTo("produce_id\tdescription\n1\tHoney Crisp\n2\tFlorida Navel\n");
+      assertThat(cache.stats().hitCount()).isEqualTo(1L);
+
+      InputStream in = new URL(base + "/query/produce").openStream();
+      List<Produce> records = Lists.newArrayList();
+      for (Produce record; (record = Produce.parseDelimitedFrom(in)) != null;) {
+        records.add(record);
+      }
+      in.close();
+      assertThat(records).isEqualTo(expected.getFreshProduceList());
+
+      assertThat(getText(base + "/sql?q=select+count(*)+as+n+from+frozen_produce"))
+          .isEqualTo("n\n" + expected.getFrozenProduceCount() + "\n");
+      assertThat(getStatus(base + "/query/descriptions")).isEqualTo(400);
+      assertThat(getStatus(base + "/query/missing")).isEqualTo(404);
+      // The connections are read-only.
+      assertThat(getStatus(base + "/sql?q=delete+from+fresh_produce")).isEqualTo(400);
+    } finally {
+      server.stop();
+    }
+    assertThat(sqProto.snapshot()).isEqualTo(expected);
+  }
+
+  private static String getText(String url) throws Exception {
+    InputStream in = new URL(url).openStream();
+    try {
+      return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static int getStatus(String url) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      return connection.getResponseCode();
+    } finally {
+      connection.disconnect();
+    }
+  }
+}
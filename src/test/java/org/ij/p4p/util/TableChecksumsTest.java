@@ -0,0 +1,57 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.List;
+
+public class TableChecksumsTest extends TestCase {
+  public TableChecksumsTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(TableChecksumsTest.class);
+  }
+
+  /**
+   * Checksums the grocery data while inserting it, in a different order than it's
+   * read back, and verifies against a scan of the database.
+   */
+  public void testChecksums() throws Exception {
+    GroceryStore data = SqProtoTest.getGroceryData();
+    final SqProto<GroceryStore> sqProto = SqProto.create(
+        SqLite.connectTemp(), GroceryStore.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    TableChecksums<GroceryStore> checksums = new TableChecksums<GroceryStore>(
+        GroceryStore.getDescriptor(),
+        new Receiver<GroceryStore>() {
+          public void receive(GroceryStore batch) {
+            try {
+              sqProto.insertSnapshot(batch);
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    checksums.receive(GroceryStore.newBuilder()
+        .addFrozenProduce(data.getFrozenProduce(2))
+        .addFreshProduce(data.getFreshProduce(1)).build());
+    checksums.receive(GroceryStore.newBuilder()
+        .addFrozenProduce(data.getFrozenProduce(1))
+        .addFrozenProduce(data.getFrozenProduce(0))
+        .addFreshProduce(data.getFreshProduce(0)).build());
+    List<SqTableChecksum> expected = checksums.getChecksums();
+    assertThat(expected.get(1).getRecordCount()).isEqualTo(3L);
+    assertThat(TableChecksums.scan(sqProto)).isEqualTo(expected);
+
+    SqProto.writeMetadata(sqProto.sqLite,
+        SqMetadata.newBuilder().addAllTableChecksums(expected).build());
+    assertThat(TableChecksums.verify(sqProto)).isEmpty();
+    sqProto.sqLite.connection.createStatement().executeUpdate(
+        "update frozen_produce set expiration_days = 8 where produce_id = 3");
+    assertThat(TableChecksums.verify(sqProto)).containsExactly("frozen_produce");
+  }
+}
@@ -0,0 +1,56 @@
+package org.ij.p4p.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class TextParsersTest extends TestCase {
+  public TextParsersTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(TextParsersTest.class);
+  }
+
+  public void testParseEpochDay() {
+    assertThat(TextParsers.parseEpochDay("19700101")).isEqualTo(0L);
+    assertThat(TextParsers.parseEpochDay("19691231")).isEqualTo(-1L);
+    assertThat(TextParsers.parseEpochDay("20140711")).isEqualTo(16262L);
+    assertThat(TextParsers.parseEpochDay("20000229")).isEqualTo(11016L);
+    assertThat(TextParsers.parseEpochDay("19000229")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseEpochDay("20141301")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseEpochDay("2014071")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseEpochDay("2014-7-1")).isEqualTo(TextParsers.INVALID);
+  }
+
+  public void testParseEpochMillis() {
+    assertThat(TextParsers.parseEpochMillis("1970-01-01-00.00.00")).isEqualTo(0L);
+    assertThat(TextParsers.parseEpochMillis("2014-07-11-11.43.24.196686"))
+        .isEqualTo(1405079004196L);
+    assertThat(TextParsers.parseEpochMillis("2014-07-11-11.43.24.1"))
+        .isEqualTo(1405079004100L);
+    assertThat(TextParsers.parseEpochMillis("2014-07-11-24.00.00")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseEpochMillis("2014-07-11-11.43.24."))
+        .isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseEpochMillis("20140711")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseYear("2014-07-11-11.43.24")).isEqualTo(2014);
+  }
+
+  public void testParseCents() {
+    assertThat(TextParsers.parseCents("+000013888939.00")).isEqualTo(1388893900L);
+    assertThat(TextParsers.parseCents("+000000001258.60")).isEqualTo(125860L);
+    assertThat(TextParsers.parseCents("-1.5")).isEqualTo(-150L);
+    assertThat(TextParsers.parseCents("+00000000000.000")).isEqualTo(0L);
+    assertThat(TextParsers.parseCents("42")).isEqualTo(4200L);
+    assertThat(TextParsers.parseCents(".07")).isEqualTo(7L);
+    assertThat(TextParsers.parseCents("0.001")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseCents("1.2.3")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseCents("+")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseCents("1e5")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseCents("99999999999999999999")).isEqualTo(TextParsers.INVALID);
+    assertThat(TextParsers.parseLong("+0000000042")).isEqualTo(42L);
+    assertThat(TextParsers.parseLong("-")).isEqualTo(TextParsers.INVALID);
+  }
+}
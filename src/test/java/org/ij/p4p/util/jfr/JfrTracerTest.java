@@ -0,0 +1,102 @@
+package org.ij.p4p.util.jfr;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.ij.p4p.Tests;
+import org.ij.p4p.cats.CatsRawSnapshot;
+import org.ij.p4p.util.CloseableIterator;
+import org.ij.p4p.util.CsvToPb;
+import org.ij.p4p.util.Receiver;
+import org.ij.p4p.util.SqLite;
+import org.ij.p4p.util.SqProto;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Message;
+import org.apache.commons.csv.CSVFormat;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class JfrTracerTest extends TestCase {
+  public JfrTracerTest(String testName) {
+    super(testName);
+  }
+  public static Test suite() {
+    return new TestSuite(JfrTracerTest.class);
+  }
+
+  /**
+   * Records the stages of an import and a query, and sums the records of each kind of
+   * event.
+   */
+  public void testRecording() throws Exception {
+    Map<ZipEntry, ByteString> entries = ImmutableMap.of(
+        new ZipEntry("ASSET_T"), Tests.readBytes("cats_asset_table_head.csv"),
+        new ZipEntry("DAG71_T"), Tests.readBytes("cats_equitable_sharing_table_head.csv"));
+    Recording recording = new Recording();
+    for (String name : new String[] {"EntryRead", "BatchParsed", "BatchBound",
+        "BatchExecuted", "Commit", "QueryExecuted"}) {
+      recording.enable("org.ij.p4p." + name).withThreshold(Duration.ZERO);
+    }
+    recording.start();
+    final SqProto<CatsRawSnapshot> sqProto =
+        SqProto.create(SqLite.connectInMem(), CatsRawSnapshot.getDefaultInstance());
+    sqProto.dropAndCreateTables();
+    CsvToPb.parseTablesFromZip(Tests.toZipInputStream(entries), CSVFormat.EXCEL,
+        CatsRawSnapshot.getDefaultInstance(), 2,
+        new Receiver<CsvToPb.TableRecord>() {
+          public void receive(CsvToPb.TableRecord inconsistent) {
+            fail(inconsistent.toString());
+          }
+        },
+        new Receiver<CatsRawSnapshot>() {
+          public void receive(CatsRawSnapshot batch) {
+            try {
+              sqProto.insertSnapshot(batch);
+            } catch (Exception e) {
+              throw new RuntimeException(e);
+            }
+          }
+        });
+    sqProto.sqLite.commit();
+    CloseableIterator<Message> assets = sqProto.iterateTable(
+        CatsRawSnapshot.getDescriptor().findFieldByName("ASSET_T"));
+    while (assets.hasNext()) {
+      assets.next();
+    }
+    recording.stop();
+    File file = File.createTempFile("imports", ".jfr");
+    recording.dump(file.toPath());
+    recording.close();
+
+    Map<String, Long> recordCounts = Maps.newTreeMap();
+    for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+      String name = event.getEventType().getName();
+      Long count = recordCounts.get(name);
+      recordCounts.put(name, (count == null ? 0 : count) + event.getLong("recordCount"));
+    }
+    file.delete();
+    CatsRawSnapshot snap = sqProto.snapshot();
+    long total = snap.getASSETTCount() + snap.getDAG71TCount();
+    assertThat(recordCounts).isEqualTo(ImmutableMap.builder()
+        .put("org.ij.p4p.BatchBound", total)
+        .put("org.ij.p4p.BatchExecuted", total)
+        .put("org.ij.p4p.BatchParsed", total)
+        .put("org.ij.p4p.Commit", 0L)
+        .put("org.ij.p4p.EntryRead", total)
+        .put("org.ij.p4p.QueryExecuted", (long) snap.getASSETTCount())
+        .build());
+  }
+}